@@ -0,0 +1,267 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+
+/**
+ * Resamples an image to any real-valued scale by area averaging: each result
+ * pixel is the mean of the source pixels it covers, weighted by the covered
+ * area. The filter is separable and is applied on blocks of the result image.
+ * Weights are computed from global coordinates, so blocks computed
+ * independently (and in parallel) join without seams.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class AreaAveragingResampler {
+
+	private final DataType dataType;
+	private final Object[] resultData;
+	private final int resultWidth;
+	private final int resultHeight;
+	private final double sourceX;
+	private final double sourceY;
+	private final double pixelWidth;
+	private final double pixelHeight;
+	private final Dimension sourceSize;
+
+	/**
+	 * @param dataType
+	 *          Data type of the source and result images.
+	 * @param resultData
+	 *          Channel arrays of the result image.
+	 * @param resultWidth
+	 *          Width of the result image.
+	 * @param resultHeight
+	 *          Height of the result image.
+	 * @param sourceRectangle
+	 *          Area of the source image mapped on the whole result image. It may
+	 *          have fractional coordinates.
+	 * @param sourceSize
+	 *          Size of the source image, source pixels are clipped to it.
+	 */
+	public AreaAveragingResampler(DataType dataType, Object[] resultData, int resultWidth, int resultHeight,
+			Rectangle2D sourceRectangle, Dimension sourceSize) {
+		this.dataType = dataType;
+		this.resultData = resultData;
+		this.resultWidth = resultWidth;
+		this.resultHeight = resultHeight;
+		this.sourceX = sourceRectangle.getX();
+		this.sourceY = sourceRectangle.getY();
+		this.pixelWidth = sourceRectangle.getWidth() / resultWidth;
+		this.pixelHeight = sourceRectangle.getHeight() / resultHeight;
+		this.sourceSize = new Dimension(sourceSize);
+	}
+
+	/**
+	 * @param resultBlock
+	 *          Block of the result image.
+	 * @return The source pixels needed to compute the block.
+	 */
+	public Rectangle getSourceRectangle(Rectangle resultBlock) {
+		int x0 = (int) Math.floor(sourceX + resultBlock.x * pixelWidth);
+		int x1 = (int) Math.ceil(sourceX + (resultBlock.x + resultBlock.width) * pixelWidth);
+		int y0 = (int) Math.floor(sourceY + resultBlock.y * pixelHeight);
+		int y1 = (int) Math.ceil(sourceY + (resultBlock.y + resultBlock.height) * pixelHeight);
+		x0 = Math.max(0, Math.min(x0, sourceSize.width - 1));
+		y0 = Math.max(0, Math.min(y0, sourceSize.height - 1));
+		x1 = Math.max(x0 + 1, Math.min(x1, sourceSize.width));
+		y1 = Math.max(y0 + 1, Math.min(y1, sourceSize.height));
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Computes a block of the result image.
+	 *
+	 * @param source
+	 *          Source pixels, as returned for the block by
+	 *          {@link #getSourceRectangle(Rectangle)}. It must have as many
+	 *          channels as the result image.
+	 * @param sourceRectangle
+	 *          Position of the source pixels in the source image.
+	 * @param resultBlock
+	 *          Block of the result image to compute.
+	 */
+	public void resample(IcyBufferedImage source, Rectangle sourceRectangle, Rectangle resultBlock) {
+		Weights columnWeights = new Weights(sourceX, pixelWidth, resultBlock.x, resultBlock.width, sourceRectangle.x,
+				sourceRectangle.x + sourceRectangle.width);
+		Weights rowWeights = new Weights(sourceY, pixelHeight, resultBlock.y, resultBlock.height, sourceRectangle.y,
+				sourceRectangle.y + sourceRectangle.height);
+
+		double[] sourceRow = new double[sourceRectangle.width];
+		double[] filteredRows = new double[sourceRectangle.height * resultBlock.width];
+		double[] resultRow = new double[resultBlock.width];
+		for (int c = 0; c < resultData.length; c++) {
+			Object sourceData = source.getDataXY(c);
+
+			// Horizontal pass on every source row.
+			for (int row = 0; row < sourceRectangle.height; row++) {
+				toDouble(dataType, sourceData, row * sourceRectangle.width, sourceRow);
+				int filteredOffset = row * resultBlock.width;
+				for (int column = 0; column < resultBlock.width; column++) {
+					filteredRows[filteredOffset + column] = columnWeights.apply(column, sourceRow, 0, 1,
+							sourceRectangle.x);
+				}
+			}
+
+			// Vertical pass on the filtered rows.
+			for (int row = 0; row < resultBlock.height; row++) {
+				for (int column = 0; column < resultBlock.width; column++) {
+					resultRow[column] = rowWeights.apply(row, filteredRows, column, resultBlock.width, sourceRectangle.y);
+				}
+				int resultOffset = (resultBlock.y + row) * resultWidth + resultBlock.x;
+				fromDouble(dataType, resultRow, resultData[c], resultOffset);
+			}
+		}
+	}
+
+	/**
+	 * Normalized weights of the source pixels covered by each result pixel
+	 * along one axis.
+	 */
+	private static class Weights {
+		private final int[] first;
+		private final int[] count;
+		private final double[] weights;
+		private final int stride;
+
+		Weights(double origin, double step, int resultStart, int resultCount, int sourceStart, int sourceEnd) {
+			stride = (int) Math.ceil(step) + 1;
+			first = new int[resultCount];
+			count = new int[resultCount];
+			weights = new double[resultCount * stride];
+			for (int i = 0; i < resultCount; i++) {
+				double a = origin + (resultStart + i) * step;
+				double b = a + step;
+				int j0 = Math.max((int) Math.floor(a), sourceStart);
+				int j1 = Math.min((int) Math.ceil(b), sourceEnd);
+				if (j1 <= j0) {
+					// Outside of the source, the nearest source pixel is used.
+					j0 = Math.max(sourceStart, Math.min((int) Math.floor(a), sourceEnd - 1));
+					j1 = j0 + 1;
+				}
+				j1 = Math.min(j1, j0 + stride);
+				double sum = 0;
+				for (int j = j0; j < j1; j++) {
+					double weight = Math.min(b, j + 1) - Math.max(a, j);
+					weights[i * stride + j - j0] = weight;
+					sum += weight;
+				}
+				for (int j = j0; j < j1; j++) {
+					weights[i * stride + j - j0] = (sum > 0)? weights[i * stride + j - j0] / sum: 1d / (j1 - j0);
+				}
+				first[i] = j0;
+				count[i] = j1 - j0;
+			}
+		}
+
+		double apply(int i, double[] values, int offset, int valueStride, int sourceStart) {
+			double value = 0;
+			int index = offset + (first[i] - sourceStart) * valueStride;
+			int weightIndex = i * stride;
+			for (int k = 0; k < count[i]; k++, index += valueStride) {
+				value += weights[weightIndex + k] * values[index];
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Converts {@code values.length} values of a channel array to double.
+	 */
+	static void toDouble(DataType dataType, Object data, int offset, double[] values) {
+		switch (dataType) {
+		case UBYTE:
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((byte[]) data)[offset + i] & 0xFF;
+			break;
+		case BYTE:
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((byte[]) data)[offset + i];
+			break;
+		case USHORT:
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((short[]) data)[offset + i] & 0xFFFF;
+			break;
+		case SHORT:
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((short[]) data)[offset + i];
+			break;
+		case UINT:
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((int[]) data)[offset + i] & 0xFFFFFFFFL;
+			break;
+		case INT:
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((int[]) data)[offset + i];
+			break;
+		case FLOAT:
+			for (int i = 0; i < values.length; i++)
+				values[i] = ((float[]) data)[offset + i];
+			break;
+		case DOUBLE:
+			System.arraycopy((double[]) data, offset, values, 0, values.length);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported data type: " + dataType);
+		}
+	}
+
+	/**
+	 * Stores values in a channel array, rounded and clamped to the range of the
+	 * data type for integer types.
+	 */
+	static void fromDouble(DataType dataType, double[] values, Object data, int offset) {
+		switch (dataType) {
+		case UBYTE:
+		case BYTE:
+			for (int i = 0; i < values.length; i++)
+				((byte[]) data)[offset + i] = (byte) Math.round(clamp(dataType, values[i]));
+			break;
+		case USHORT:
+		case SHORT:
+			for (int i = 0; i < values.length; i++)
+				((short[]) data)[offset + i] = (short) Math.round(clamp(dataType, values[i]));
+			break;
+		case UINT:
+		case INT:
+			for (int i = 0; i < values.length; i++)
+				((int[]) data)[offset + i] = (int) Math.round(clamp(dataType, values[i]));
+			break;
+		case FLOAT:
+			for (int i = 0; i < values.length; i++)
+				((float[]) data)[offset + i] = (float) values[i];
+			break;
+		case DOUBLE:
+			System.arraycopy(values, 0, (double[]) data, offset, values.length);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported data type: " + dataType);
+		}
+	}
+
+	private static double clamp(DataType dataType, double value) {
+		return Math.max(dataType.getMinValue(), Math.min(dataType.getMaxValue(), value));
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes tiled BigTIFF files from already encoded tiles. Tiles are appended in
+ * the order they are given, then the directory (IFD) of each image is written
+ * once all its tiles are in the file. Encoding tiles is left to the caller, so
+ * that it can be done in parallel while this writer only appends bytes.
+ * <p>
+ * This writer is not thread-safe.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class BigTiffTileWriter implements AutoCloseable {
+
+	public static final int PHOTOMETRIC_MIN_IS_BLACK = 1;
+	public static final int PHOTOMETRIC_RGB = 2;
+	public static final int PHOTOMETRIC_YCBCR = 6;
+	public static final int SAMPLE_FORMAT_UINT = 1;
+	public static final int SAMPLE_FORMAT_INT = 2;
+	public static final int SAMPLE_FORMAT_FLOAT = 3;
+	public static final int SUBFILE_TYPE_REDUCED_IMAGE = 1;
+
+	private static final short TYPE_ASCII = 2;
+	private static final short TYPE_SHORT = 3;
+	private static final short TYPE_LONG = 4;
+	private static final short TYPE_LONG8 = 16;
+	private static final short TYPE_IFD8 = 18;
+
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 20;
+
+	/**
+	 * Description of a tiled image of the file, written as a TIFF directory.
+	 */
+	public static class Directory {
+		private final long width;
+		private final long height;
+		private final int tileWidth;
+		private final int tileHeight;
+		private int bitsPerSample = 8;
+		private int samplesPerPixel = 1;
+		private int sampleFormat = SAMPLE_FORMAT_UINT;
+		private int photometricInterpretation = PHOTOMETRIC_MIN_IS_BLACK;
+		private int compression = 1;
+		private long subfileType;
+		private String description;
+		private long[] tileOffsets;
+		private long[] tileByteCounts;
+		private long[] subDirectoryOffsets;
+
+		/**
+		 * @param width
+		 *          Image width.
+		 * @param height
+		 *          Image height.
+		 * @param tileWidth
+		 *          Tile width, multiple of 16.
+		 * @param tileHeight
+		 *          Tile height, multiple of 16.
+		 */
+		public Directory(long width, long height, int tileWidth, int tileHeight) {
+			if (tileWidth <= 0 || tileHeight <= 0 || tileWidth % 16 != 0 || tileHeight % 16 != 0)
+				throw new IllegalArgumentException(
+						String.format("Tile size must be a positive multiple of 16: %dx%d", tileWidth, tileHeight));
+			this.width = width;
+			this.height = height;
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+		}
+
+		public long getWidth() {
+			return width;
+		}
+
+		public long getHeight() {
+			return height;
+		}
+
+		public int getTileWidth() {
+			return tileWidth;
+		}
+
+		public int getTileHeight() {
+			return tileHeight;
+		}
+
+		public int getTilesPerRow() {
+			return (int) ((width + tileWidth - 1) / tileWidth);
+		}
+
+		public int getTilesPerColumn() {
+			return (int) ((height + tileHeight - 1) / tileHeight);
+		}
+
+		public void setBitsPerSample(int bitsPerSample) {
+			this.bitsPerSample = bitsPerSample;
+		}
+
+		public void setSamplesPerPixel(int samplesPerPixel) {
+			this.samplesPerPixel = samplesPerPixel;
+		}
+
+		/**
+		 * @param sampleFormat
+		 *          One of the {@code SAMPLE_FORMAT_*} constants.
+		 */
+		public void setSampleFormat(int sampleFormat) {
+			this.sampleFormat = sampleFormat;
+		}
+
+		/**
+		 * @param photometricInterpretation
+		 *          One of the {@code PHOTOMETRIC_*} constants.
+		 */
+		public void setPhotometricInterpretation(int photometricInterpretation) {
+			this.photometricInterpretation = photometricInterpretation;
+		}
+
+		/**
+		 * @param compression
+		 *          TIFF compression code of the tiles.
+		 */
+		public void setCompression(int compression) {
+			this.compression = compression;
+		}
+
+		/**
+		 * @param subfileType
+		 *          New subfile type, e.g. {@link #SUBFILE_TYPE_REDUCED_IMAGE}.
+		 */
+		public void setSubfileType(long subfileType) {
+			this.subfileType = subfileType;
+		}
+
+		/**
+		 * @param description
+		 *          Image description, e.g. the OME-XML of the file. Null for none.
+		 */
+		public void setDescription(String description) {
+			this.description = description;
+		}
+
+		/**
+		 * @param tileOffsets
+		 *          File offsets of the tiles, row by row.
+		 * @param tileByteCounts
+		 *          Sizes in bytes of the tiles, row by row.
+		 */
+		public void setTiles(long[] tileOffsets, long[] tileByteCounts) {
+			if (tileOffsets.length != tileByteCounts.length)
+				throw new IllegalArgumentException(String.format("%d tile offsets for %d tile byte counts",
+						tileOffsets.length, tileByteCounts.length));
+			this.tileOffsets = tileOffsets;
+			this.tileByteCounts = tileByteCounts;
+		}
+
+		/**
+		 * @param subDirectoryOffsets
+		 *          Offsets of the directories of the sub-images (SubIFDs) of this
+		 *          image. Null for none.
+		 */
+		public void setSubDirectoryOffsets(long[] subDirectoryOffsets) {
+			this.subDirectoryOffsets = subDirectoryOffsets;
+		}
+	}
+
+	private static class Entry {
+		private final int tag;
+		private final short type;
+		private final long count;
+		private final ByteBuffer value;
+
+		Entry(int tag, short type, long count, ByteBuffer value) {
+			this.tag = tag;
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+	}
+
+	private final FileChannel channel;
+	private final ByteOrder byteOrder;
+	private long fileLength;
+	private long nextDirectoryPointer;
+
+	/**
+	 * Creates the file, replacing any existing one, and writes the BigTIFF
+	 * header.
+	 *
+	 * @param file
+	 *          Written file.
+	 * @param bigEndian
+	 *          Byte order of the file. Tile data must be in the same order.
+	 * @throws IOException
+	 *           If the file cannot be created.
+	 */
+	public BigTiffTileWriter(Path file, boolean bigEndian) throws IOException {
+		this.byteOrder = bigEndian? ByteOrder.BIG_ENDIAN: ByteOrder.LITTLE_ENDIAN;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+
+		ByteBuffer header = allocate(HEADER_SIZE);
+		header.put(bigEndian? (byte) 'M': (byte) 'I').put(bigEndian? (byte) 'M': (byte) 'I');
+		header.putShort((short) 43).putShort((short) 8).putShort((short) 0);
+		header.putLong(0);
+		header.flip();
+		writeAt(header, 0);
+		fileLength = HEADER_SIZE;
+		nextDirectoryPointer = 8;
+	}
+
+	public boolean isBigEndian() {
+		return byteOrder == ByteOrder.BIG_ENDIAN;
+	}
+
+	/**
+	 * Appends an encoded tile to the file.
+	 *
+	 * @param tileBytes
+	 *          Encoded tile.
+	 * @return The file offset of the tile.
+	 * @throws IOException
+	 *           If the tile cannot be written.
+	 */
+	public long appendTile(byte[] tileBytes) throws IOException {
+		long offset = fileLength;
+		writeAt(ByteBuffer.wrap(tileBytes), offset);
+		fileLength += tileBytes.length;
+		return offset;
+	}
+
+	/**
+	 * Writes the directory of an image whose tiles are already in the file.
+	 *
+	 * @param directory
+	 *          Image description.
+	 * @param linked
+	 *          True to add the image to the main chain of images of the file,
+	 *          false for sub-images referenced by the SubIFDs of another image.
+	 * @return The file offset of the directory.
+	 * @throws IOException
+	 *           If the directory cannot be written.
+	 */
+	public long writeDirectory(Directory directory, boolean linked) throws IOException {
+		// Samples are always chunky (planar configuration 1), one tile per grid cell
+		int expectedTiles = directory.getTilesPerRow() * directory.getTilesPerColumn();
+		if (directory.tileOffsets == null || directory.tileOffsets.length != expectedTiles)
+			throw new IllegalArgumentException(String.format("Expected %d tiles, got %d", expectedTiles,
+					(directory.tileOffsets != null)? directory.tileOffsets.length: 0));
+
+		List<Entry> entries = createEntries(directory);
+		// Directories start on a word boundary
+		long directoryOffset = fileLength + (fileLength & 1);
+		long directorySize = 8 + (long) entries.size() * ENTRY_SIZE + 8;
+		long valueOffset = directoryOffset + directorySize;
+
+		ByteBuffer directoryBuffer = allocate((int) directorySize);
+		List<ByteBuffer> values = new ArrayList<>();
+		directoryBuffer.putLong(entries.size());
+		for (Entry entry: entries) {
+			directoryBuffer.putShort((short) entry.tag).putShort(entry.type).putLong(entry.count);
+			if (entry.value.remaining() <= 8) {
+				int start = directoryBuffer.position();
+				directoryBuffer.put(entry.value);
+				while (directoryBuffer.position() < start + 8) {
+					directoryBuffer.put((byte) 0);
+				}
+			} else {
+				directoryBuffer.putLong(valueOffset);
+				valueOffset += entry.value.remaining() + (entry.value.remaining() & 1);
+				values.add(entry.value);
+			}
+		}
+		directoryBuffer.putLong(0);
+		directoryBuffer.flip();
+
+		writeAt(directoryBuffer, directoryOffset);
+		long position = directoryOffset + directorySize;
+		for (ByteBuffer value: values) {
+			int size = value.remaining();
+			writeAt(value, position);
+			position += size + (size & 1);
+		}
+		fileLength = position;
+
+		if (linked) {
+			ByteBuffer pointer = allocate(8);
+			pointer.putLong(directoryOffset).flip();
+			writeAt(pointer, nextDirectoryPointer);
+			nextDirectoryPointer = directoryOffset + 8 + (long) entries.size() * ENTRY_SIZE;
+		}
+		return directoryOffset;
+	}
+
+	private List<Entry> createEntries(Directory directory) {
+		List<Entry> entries = new ArrayList<>();
+		entries.add(longEntry(254, directory.subfileType));
+		entries.add(longEntry(256, directory.width));
+		entries.add(longEntry(257, directory.height));
+		entries.add(shortEntry(258, directory.bitsPerSample, directory.samplesPerPixel));
+		entries.add(shortEntry(259, directory.compression, 1));
+		entries.add(shortEntry(262, directory.photometricInterpretation, 1));
+		if (directory.description != null) {
+			byte[] description = (directory.description + '\0').getBytes(StandardCharsets.UTF_8);
+			entries.add(new Entry(270, TYPE_ASCII, description.length, ByteBuffer.wrap(description)));
+		}
+		entries.add(shortEntry(277, directory.samplesPerPixel, 1));
+		entries.add(shortEntry(284, 1, 1));
+		entries.add(longEntry(322, directory.tileWidth));
+		entries.add(longEntry(323, directory.tileHeight));
+		entries.add(long8Entry(324, TYPE_LONG8, directory.tileOffsets));
+		entries.add(long8Entry(325, TYPE_LONG8, directory.tileByteCounts));
+		if (directory.subDirectoryOffsets != null && directory.subDirectoryOffsets.length > 0)
+			entries.add(long8Entry(330, TYPE_IFD8, directory.subDirectoryOffsets));
+		entries.add(shortEntry(339, directory.sampleFormat, directory.samplesPerPixel));
+		return entries;
+	}
+
+	private Entry shortEntry(int tag, int value, int count) {
+		ByteBuffer buffer = allocate(2 * count);
+		for (int i = 0; i < count; i++) {
+			buffer.putShort((short) value);
+		}
+		buffer.flip();
+		return new Entry(tag, TYPE_SHORT, count, buffer);
+	}
+
+	private Entry longEntry(int tag, long value) {
+		ByteBuffer buffer = allocate(4);
+		buffer.putInt((int) value).flip();
+		return new Entry(tag, TYPE_LONG, 1, buffer);
+	}
+
+	private Entry long8Entry(int tag, short type, long[] values) {
+		ByteBuffer buffer = allocate(8 * values.length);
+		for (long value: values) {
+			buffer.putLong(value);
+		}
+		buffer.flip();
+		return new Entry(tag, type, values.length, buffer);
+	}
+
+	private ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size).order(byteOrder);
+	}
+
+	private void writeAt(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+
+/**
+ * Minimum and maximum values of each channel of an image, accumulated region
+ * by region. Each thread keeps its own instance, instances are merged once all
+ * the regions are written. This avoids recomputing the bounds of the whole
+ * image on every change.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class ChannelBounds {
+
+	private final double[] min;
+	private final double[] max;
+
+	/**
+	 * @param channelCount
+	 *          Number of channels of the image.
+	 */
+	public ChannelBounds(int channelCount) {
+		min = new double[channelCount];
+		max = new double[channelCount];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Includes the values of a region in the bounds.
+	 *
+	 * @param data
+	 *          Channel arrays of the image.
+	 * @param dataType
+	 *          Data type of the image.
+	 * @param imageWidth
+	 *          Width of the image.
+	 * @param region
+	 *          Region of the image to include.
+	 */
+	public void update(Object[] data, DataType dataType, int imageWidth, Rectangle region) {
+		if (region.width <= 0 || region.height <= 0)
+			return;
+
+		for (int c = 0; c < min.length; c++) {
+			double channelMin = min[c], channelMax = max[c];
+			for (int y = region.y; y < region.y + region.height; y++) {
+				int start = y * imageWidth + region.x;
+				int end = start + region.width;
+				double value;
+				switch (dataType) {
+				case UBYTE:
+					for (int i = start; i < end; i++) {
+						value = ((byte[]) data[c])[i] & 0xFF;
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				case BYTE:
+					for (int i = start; i < end; i++) {
+						value = ((byte[]) data[c])[i];
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				case USHORT:
+					for (int i = start; i < end; i++) {
+						value = ((short[]) data[c])[i] & 0xFFFF;
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				case SHORT:
+					for (int i = start; i < end; i++) {
+						value = ((short[]) data[c])[i];
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				case UINT:
+					for (int i = start; i < end; i++) {
+						value = ((int[]) data[c])[i] & 0xFFFFFFFFL;
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				case INT:
+					for (int i = start; i < end; i++) {
+						value = ((int[]) data[c])[i];
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				case FLOAT:
+					for (int i = start; i < end; i++) {
+						value = ((float[]) data[c])[i];
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				case DOUBLE:
+					for (int i = start; i < end; i++) {
+						value = ((double[]) data[c])[i];
+						if (value < channelMin)
+							channelMin = value;
+						if (value > channelMax)
+							channelMax = value;
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported data type: " + dataType);
+				}
+			}
+			min[c] = channelMin;
+			max[c] = channelMax;
+		}
+	}
+
+	/**
+	 * Includes the bounds of another instance in these bounds.
+	 *
+	 * @param other
+	 *          Bounds to include. Ignored if null.
+	 */
+	public void merge(ChannelBounds other) {
+		if (other == null)
+			return;
+		for (int c = 0; c < min.length; c++) {
+			min[c] = Math.min(min[c], other.min[c]);
+			max[c] = Math.max(max[c], other.max[c]);
+		}
+	}
+
+	/**
+	 * @param channel
+	 *          Channel index.
+	 * @return The minimum and maximum values of the channel, {0, 0} if no region
+	 *         was included.
+	 */
+	public double[] get(int channel) {
+		if (min[channel] > max[channel])
+			return new double[] {0, 0};
+		return new double[] {min[channel], max[channel]};
+	}
+
+	/**
+	 * Sets these bounds as the channel bounds of the image.
+	 *
+	 * @param image
+	 *          Image with as many channels as these bounds.
+	 */
+	public void applyTo(IcyBufferedImage image) {
+		for (int c = 0; c < min.length; c++) {
+			image.setChannelBounds(c, get(c));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import icy.common.exception.UnsupportedFormatException;
+import icy.sequence.MetaDataUtil;
+import icy.type.DataType;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.meta.OMEXMLMetadata;
+import plugins.kernel.importer.LociImporterPlugin;
+
+/**
+ * Summary of the properties of an image file, obtained with a single file
+ * open. Instances are immutable and can be cached.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ * @see LargeSequenceHelper#getImageInfo(java.io.File)
+ */
+public class ImageInfo {
+
+	/**
+	 * Reads the information of the image opened by the given importer.
+	 *
+	 * @param importer
+	 *          Importer with an opened file.
+	 * @return Information of the first series of the file.
+	 * @throws UnsupportedFormatException
+	 *           If the file can't be read.
+	 * @throws IOException
+	 *           If the file doesn't exist.
+	 */
+	public static ImageInfo read(LociImporterPlugin importer) throws UnsupportedFormatException, IOException {
+		OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
+		ImageInfo info = new ImageInfo();
+		info.name = MetaDataUtil.getName(imgProps, 0);
+		info.sizeX = imgProps.getPixelsSizeX(0).getValue();
+		info.sizeY = imgProps.getPixelsSizeY(0).getValue();
+		info.sizeC = imgProps.getPixelsSizeC(0).getValue();
+		info.dataType = DataType.getDataTypeFromPixelType(imgProps.getPixelsType(0));
+		info.pixelSizeX = getMicrometers(imgProps.getPixelsPhysicalSizeX(0));
+		info.pixelSizeY = getMicrometers(imgProps.getPixelsPhysicalSizeY(0));
+		info.pixelSizeZ = getMicrometers(imgProps.getPixelsPhysicalSizeZ(0));
+		info.tileWidth = importer.getTileWidth(0);
+		info.tileHeight = importer.getTileHeight(0);
+		return info;
+	}
+
+	private static double getMicrometers(Length length) {
+		if (length == null || length.value(UNITS.MICROMETER) == null)
+			return 1d;
+		return length.value(UNITS.MICROMETER).doubleValue();
+	}
+
+	/**
+	 * Reads an image information previously written with
+	 * {@link #write(DataOutput)}.
+	 *
+	 * @param input
+	 *          Input to read from.
+	 * @return The image information.
+	 * @throws IOException
+	 *           If the input cannot be read.
+	 */
+	static ImageInfo read(DataInput input) throws IOException {
+		ImageInfo info = new ImageInfo();
+		info.name = input.readUTF();
+		info.sizeX = input.readInt();
+		info.sizeY = input.readInt();
+		info.sizeC = input.readInt();
+		info.dataType = DataType.valueOf(input.readUTF());
+		info.pixelSizeX = input.readDouble();
+		info.pixelSizeY = input.readDouble();
+		info.pixelSizeZ = input.readDouble();
+		info.tileWidth = input.readInt();
+		info.tileHeight = input.readInt();
+		return info;
+	}
+
+	private String name;
+	private int sizeX;
+	private int sizeY;
+	private int sizeC;
+	private DataType dataType;
+	private double pixelSizeX;
+	private double pixelSizeY;
+	private double pixelSizeZ;
+	private int tileWidth;
+	private int tileHeight;
+
+	private ImageInfo() {
+	}
+
+	/**
+	 * Writes this information so that it can be read with
+	 * {@link #read(DataInput)}.
+	 *
+	 * @param output
+	 *          Output to write to.
+	 * @throws IOException
+	 *           If the output cannot be written.
+	 */
+	void write(DataOutput output) throws IOException {
+		output.writeUTF(name != null? name: "");
+		output.writeInt(sizeX);
+		output.writeInt(sizeY);
+		output.writeInt(sizeC);
+		output.writeUTF(dataType.name());
+		output.writeDouble(pixelSizeX);
+		output.writeDouble(pixelSizeY);
+		output.writeDouble(pixelSizeZ);
+		output.writeInt(tileWidth);
+		output.writeInt(tileHeight);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Dimension getDimension() {
+		return new Dimension(sizeX, sizeY);
+	}
+
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	public int getSizeC() {
+		return sizeC;
+	}
+
+	public DataType getDataType() {
+		return dataType;
+	}
+
+	/**
+	 * @return The size of the image data in bytes (not the file size).
+	 */
+	public long getDataSize() {
+		return (long) sizeX * sizeY * sizeC * dataType.getSize();
+	}
+
+	/**
+	 * @return Physical pixel size in X, Y and Z. Missing sizes default to 1
+	 *         micrometer.
+	 */
+	public Length[] getPixelSize() {
+		return new Length[] {new Length(pixelSizeX, UNITS.MICROMETER), new Length(pixelSizeY, UNITS.MICROMETER),
+				new Length(pixelSizeZ, UNITS.MICROMETER)};
+	}
+
+	public Dimension getTileSize() {
+		return new Dimension(tileWidth, tileHeight);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ImageInfo(%s, %dx%dx%d, %s)", name, sizeX, sizeY, sizeC, dataType);
+	}
+}
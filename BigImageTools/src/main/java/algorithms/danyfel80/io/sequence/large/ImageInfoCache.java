@@ -0,0 +1,223 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import icy.common.exception.UnsupportedFormatException;
+import plugins.kernel.importer.LociImporterPlugin;
+
+/**
+ * Memoizes {@link ImageInfo} instances keyed by file path, size and
+ * modification time, so that probing a file that has not changed does not open
+ * it again. The cache can optionally be persisted in a small index file to
+ * survive across sessions.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class ImageInfoCache {
+
+	private static final int INDEX_VERSION = 1;
+	private static final ImageInfoCache instance = new ImageInfoCache();
+
+	/**
+	 * @return The image information cache shared by the whole process.
+	 */
+	public static ImageInfoCache getInstance() {
+		return instance;
+	}
+
+	private static class FileKey {
+		private final String path;
+		private final long size;
+		private final long modificationTime;
+
+		FileKey(String path, long size, long modificationTime) {
+			this.path = path;
+			this.size = size;
+			this.modificationTime = modificationTime;
+		}
+
+		static FileKey of(Path filePath) throws IOException {
+			Path absolutePath = filePath.toAbsolutePath().normalize();
+			BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+			return new FileKey(absolutePath.toString(), attributes.size(), attributes.lastModifiedTime().toMillis());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, size, modificationTime);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof FileKey))
+				return false;
+			FileKey other = (FileKey) obj;
+			return size == other.size && modificationTime == other.modificationTime && path.equals(other.path);
+		}
+	}
+
+	private final Map<FileKey, ImageInfo> infos;
+	private Path indexFile;
+
+	private ImageInfoCache() {
+		infos = new ConcurrentHashMap<>();
+	}
+
+	public synchronized Path getIndexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * Sets the file where probed information is persisted. Entries already
+	 * stored in the file are loaded and the file is compacted, keeping only the
+	 * last entry of each path. A record that cannot be read, left by a crash or
+	 * an older version, ends the index: it is dropped with the records after it.
+	 * New entries are appended to the file as files are probed.
+	 *
+	 * @param indexFile
+	 *          Index file, or null to keep the cache in memory only.
+	 * @throws IOException
+	 *           If the existing index file cannot be read.
+	 */
+	public synchronized void setIndexFile(Path indexFile) throws IOException {
+		this.indexFile = indexFile;
+		if (indexFile != null) {
+			if (Files.exists(indexFile))
+				loadIndex();
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Retrieves the information of the given image file, probing the file only
+	 * if it is not cached or if it changed since it was probed.
+	 *
+	 * @param filePath
+	 *          Path of the image file.
+	 * @return Information of the image.
+	 * @throws UnsupportedFormatException
+	 *           If the file can't be read.
+	 * @throws IOException
+	 *           If the file doesn't exist.
+	 */
+	public ImageInfo getImageInfo(Path filePath) throws UnsupportedFormatException, IOException {
+		FileKey key = FileKey.of(filePath);
+		ImageInfo info = infos.get(key);
+		if (info == null) {
+			info = probe(filePath);
+			putInfo(key, info);
+			appendToIndex(key, info);
+		}
+		return info;
+	}
+
+	/**
+	 * Stores an information, replacing the entries of previous versions of the
+	 * file.
+	 */
+	private void putInfo(FileKey key, ImageInfo info) {
+		infos.keySet().removeIf(otherKey -> otherKey.path.equals(key.path) && !otherKey.equals(key));
+		infos.put(key, info);
+	}
+
+	private static ImageInfo probe(Path filePath) throws UnsupportedFormatException, IOException {
+		LociImporterPlugin importer = LargeSequenceReaderPool.getInstance().borrowReader(filePath);
+		try {
+			return ImageInfo.read(importer);
+		} finally {
+			LargeSequenceReaderPool.getInstance().releaseReader(importer);
+		}
+	}
+
+	/**
+	 * Removes all cached entries. The index file, if any, is emptied.
+	 *
+	 * @throws IOException
+	 *           If the index file cannot be written.
+	 */
+	public synchronized void clear() throws IOException {
+		infos.clear();
+		if (indexFile != null)
+			writeIndex();
+	}
+
+	private void loadIndex() throws IOException {
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			try {
+				if (input.readInt() != INDEX_VERSION)
+					return;
+				while (true) {
+					FileKey key = new FileKey(input.readUTF(), input.readLong(), input.readLong());
+					putInfo(key, ImageInfo.read(input));
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				// End of the index, or a truncated or corrupted record at which the index
+				// is cut when compacted.
+			}
+		}
+	}
+
+	private synchronized void appendToIndex(FileKey key, ImageInfo info) throws IOException {
+		if (indexFile == null)
+			return;
+
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(indexFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+			writeRecord(output, key, info);
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		// Written to a temporary file first so that a crash never leaves a truncated index.
+		Path temporaryFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		Map<FileKey, ImageInfo> snapshot = new HashMap<>(infos);
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+			output.writeInt(INDEX_VERSION);
+			for (Map.Entry<FileKey, ImageInfo> entry: snapshot.entrySet()) {
+				writeRecord(output, entry.getKey(), entry.getValue());
+			}
+		}
+		Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeRecord(DataOutputStream output, FileKey key, ImageInfo info) throws IOException {
+		output.writeUTF(key.path);
+		output.writeLong(key.size);
+		output.writeLong(key.modificationTime);
+		info.write(output);
+	}
+}
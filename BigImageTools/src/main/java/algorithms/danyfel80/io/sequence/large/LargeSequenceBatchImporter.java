@@ -0,0 +1,439 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import icy.common.exception.UnsupportedFormatException;
+import icy.common.listener.DetailedProgressListener;
+import icy.image.IcyBufferedImage;
+import icy.sequence.MetaDataUtil;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.util.OMEUtil;
+import ome.xml.meta.OMEXMLMetadata;
+import plugins.kernel.importer.LociImporterPlugin;
+
+/**
+ * Imports several regions of the same file in a single pass. Regions read
+ * from the same level with the same downsampling factor share a grid of
+ * blocks: the blocks needed by these regions are read once through the reader
+ * pool and their pixels are written in every result that needs them.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class LargeSequenceBatchImporter implements Callable<List<Sequence>> {
+
+	/**
+	 * Region to import.
+	 */
+	public static class Region {
+		private final Rectangle2D rectangle;
+		private final int resolution;
+
+		/**
+		 * @param rectangle
+		 *          Region rectangle in full resolution pixels.
+		 * @param resolution
+		 *          Resolution level of the result, the image is downsampled by
+		 *          {@code 2^resolution}.
+		 */
+		public Region(Rectangle2D rectangle, int resolution) {
+			this.rectangle = (Rectangle2D) rectangle.clone();
+			this.resolution = resolution;
+		}
+
+		public Rectangle2D getRectangle() {
+			return (Rectangle2D) rectangle.clone();
+		}
+
+		public int getResolution() {
+			return resolution;
+		}
+	}
+
+	private static class RegionPlan {
+		private Region region;
+		private Rectangle2D targetRectangle;
+		private double scaleFactor;
+		private PyramidLevel sourceLevel;
+		private int downsamplingFactor;
+		private Rectangle2D sourceRectangle;
+		private Point sourceOrigin;
+		private IcyBufferedImage resultImage;
+		private TileDownsampler tileDownsampler;
+		private Sequence resultSequence;
+	}
+
+	private Path filePath;
+	private final List<Region> regions;
+	private final Set<DetailedProgressListener> progressListeners;
+	private LargeSequenceReaderPool readerPool;
+	private TileScheduler tileScheduler;
+	private boolean ownedTileScheduler;
+
+	private OMEXMLMetadata fileMetadata;
+	private List<PyramidLevel> pyramidLevels;
+	private List<RegionPlan> plans;
+	private int totalBlocks;
+	private int finishedBlocks;
+
+	public LargeSequenceBatchImporter() {
+		regions = new ArrayList<>();
+		progressListeners = new HashSet<>();
+		readerPool = LargeSequenceReaderPool.getInstance();
+	}
+
+	public Path getFilePath() {
+		return filePath;
+	}
+
+	public void setFilePath(Path filePath) {
+		this.filePath = filePath;
+	}
+
+	public List<Region> getRegions() {
+		return Collections.unmodifiableList(regions);
+	}
+
+	/**
+	 * @param rectangle
+	 *          Region rectangle in full resolution pixels.
+	 * @param resolution
+	 *          Resolution level of the result, the image is downsampled by
+	 *          {@code 2^resolution}.
+	 */
+	public void addRegion(Rectangle2D rectangle, int resolution) {
+		regions.add(new Region(rectangle, resolution));
+	}
+
+	public void clearRegions() {
+		regions.clear();
+	}
+
+	public LargeSequenceReaderPool getReaderPool() {
+		return readerPool;
+	}
+
+	public void setReaderPool(LargeSequenceReaderPool readerPool) {
+		this.readerPool = readerPool;
+	}
+
+	public TileScheduler getTileScheduler() {
+		return tileScheduler;
+	}
+
+	/**
+	 * @param tileScheduler
+	 *          Scheduler running the tile reads. It is not closed by the
+	 *          importer. By default each importation uses its own scheduler.
+	 */
+	public void setTileScheduler(TileScheduler tileScheduler) {
+		this.tileScheduler = tileScheduler;
+	}
+
+	public void addProgressListener(DetailedProgressListener progressListener) {
+		this.progressListeners.add(progressListener);
+	}
+
+	public void removeProgressListener(DetailedProgressListener progressListener) {
+		this.progressListeners.remove(progressListener);
+	}
+
+	/**
+	 * @return One sequence per region, in the order the regions were added.
+	 */
+	@Override
+	public List<Sequence> call() throws Exception {
+		checkFile();
+		retrieveFileInformation();
+		createPlans();
+		totalBlocks = 0;
+		finishedBlocks = 0;
+
+		// Blocks are aligned on the downsampling factor, a grid shared by several
+		// factors would need blocks aligned on all of them.
+		Map<List<Integer>, List<RegionPlan>> plansByGrid = new LinkedHashMap<>();
+		List<RegionPlan> separatePlans = new ArrayList<>();
+		for (RegionPlan plan: plans) {
+			if (plan.downsamplingFactor > 0)
+				plansByGrid.computeIfAbsent(
+						Arrays.asList(plan.sourceLevel.getResolutionIndex(), plan.downsamplingFactor), k -> new ArrayList<>())
+						.add(plan);
+			else
+				separatePlans.add(plan);
+		}
+
+		List<int[]> blocksByGrid = new ArrayList<>();
+		List<Dimension> blockSizes = new ArrayList<>();
+		for (List<RegionPlan> gridPlans: plansByGrid.values()) {
+			Dimension blockSize = computeBlockSize(gridPlans);
+			int[] blocks = computeBlockUnion(gridPlans, blockSize);
+			blockSizes.add(blockSize);
+			blocksByGrid.add(blocks);
+			totalBlocks += blocks.length;
+		}
+
+		startTileScheduler();
+		try {
+			int gridIndex = 0;
+			for (List<RegionPlan> gridPlans: plansByGrid.values()) {
+				readBlocks(gridPlans, blockSizes.get(gridIndex), blocksByGrid.get(gridIndex));
+				gridIndex++;
+			}
+		} catch (ExecutionException e) {
+			throw new LargeSequenceImporterException("Exception while importing regions: " + e);
+		} finally {
+			releaseTileScheduler();
+		}
+
+		for (RegionPlan plan: plans) {
+			if (plan.downsamplingFactor > 0) {
+				plan.resultImage.dataChanged();
+				plan.resultSequence = createResultSequence(plan);
+			}
+		}
+		for (RegionPlan plan: separatePlans) {
+			plan.resultSequence = importSeparately(plan);
+		}
+
+		List<Sequence> result = new ArrayList<>(plans.size());
+		plans.forEach(plan -> result.add(plan.resultSequence));
+		return result;
+	}
+
+	private void checkFile() throws LargeSequenceImporterException {
+		if (getFilePath() == null || !Files.exists(getFilePath())) {
+			throw new LargeSequenceImporterException(String.format("The file path does not exist: %s", getFilePath()));
+		}
+	}
+
+	private void retrieveFileInformation() throws LargeSequenceImporterException {
+		LociImporterPlugin importer;
+		try {
+			importer = readerPool.borrowReader(getFilePath());
+		} catch (UnsupportedFormatException | IOException e) {
+			throw new LargeSequenceImporterException(String.format("Could not open the file: %s", getFilePath()), e);
+		}
+		try {
+			fileMetadata = importer.getOMEXMLMetaData();
+			pyramidLevels = LargeSequenceHelper.getPyramidLevels(importer, 0);
+		} catch (UnsupportedFormatException | IOException e) {
+			throw new LargeSequenceImporterException("Cannot retrieve metadata", e);
+		} finally {
+			readerPool.releaseReader(importer);
+		}
+	}
+
+	private void createPlans() throws LargeSequenceImporterException {
+		Rectangle imageBounds = new Rectangle(fileMetadata.getPixelsSizeX(0).getValue(),
+				fileMetadata.getPixelsSizeY(0).getValue());
+		int channelSize = fileMetadata.getPixelsSizeC(0).getValue();
+		DataType dataType = DataType.getDataTypeFromPixelType(fileMetadata.getPixelsType(0));
+
+		plans = new ArrayList<>(regions.size());
+		for (Region region: regions) {
+			RegionPlan plan = new RegionPlan();
+			plan.region = region;
+			plan.targetRectangle = region.rectangle.createIntersection(imageBounds);
+			if (plan.targetRectangle.isEmpty()) {
+				throw new LargeSequenceImporterException(
+						String.format("Region %s is outside of the image %s", region.rectangle, imageBounds));
+			}
+			plan.scaleFactor = 1d / Math.pow(2, region.resolution);
+			plan.sourceLevel = LargeSequenceHelper.getNearestPyramidLevel(pyramidLevels, plan.scaleFactor);
+
+			double inverseScaleFactor = 1d
+					/ LargeSequenceHelper.getRemainingScaleFactor(plan.sourceLevel, plan.scaleFactor);
+			long roundedFactor = Math.round(inverseScaleFactor);
+			// Unaligned regions would be shifted by the block grid of the factor.
+			plan.downsamplingFactor = (roundedFactor >= 1 && Math.abs(inverseScaleFactor - roundedFactor) < 1e-3
+					&& LargeSequenceHelper.isAlignedOnFactor(plan.sourceLevel, plan.targetRectangle, (int) roundedFactor))
+							? (int) roundedFactor
+							: 0;
+
+			if (plan.downsamplingFactor > 0) {
+				Rectangle2D sourceRectangle = new Rectangle2D.Double(
+						plan.targetRectangle.getX() * plan.sourceLevel.getScaleX(),
+						plan.targetRectangle.getY() * plan.sourceLevel.getScaleY(),
+						plan.targetRectangle.getWidth() * plan.sourceLevel.getScaleX(),
+						plan.targetRectangle.getHeight() * plan.sourceLevel.getScaleY());
+				plan.sourceRectangle = sourceRectangle.createIntersection(new Rectangle(plan.sourceLevel.getSize()));
+				int factor = plan.downsamplingFactor;
+				plan.sourceOrigin = new Point(Math.floorDiv((int) plan.sourceRectangle.getX(), factor) * factor,
+						Math.floorDiv((int) plan.sourceRectangle.getY(), factor) * factor);
+
+				int resultWidth = (int) (plan.targetRectangle.getWidth() * plan.scaleFactor);
+				int resultHeight = (int) (plan.targetRectangle.getHeight() * plan.scaleFactor);
+				plan.resultImage = new IcyBufferedImage(Math.max(1, resultWidth), Math.max(1, resultHeight), channelSize,
+						dataType);
+				Object[] resultData = new Object[channelSize];
+				for (int c = 0; c < channelSize; c++) {
+					resultData[c] = plan.resultImage.getDataXY(c);
+				}
+				plan.tileDownsampler = new TileDownsampler(dataType, factor, resultData, plan.resultImage.getSizeX(),
+						plan.resultImage.getSizeY());
+			}
+			plans.add(plan);
+		}
+	}
+
+	/**
+	 * Blocks follow the native layout of the level and are aligned on the
+	 * downsampling factor of the regions of the grid.
+	 */
+	private Dimension computeBlockSize(List<RegionPlan> gridPlans) {
+		PyramidLevel level = gridPlans.get(0).sourceLevel;
+		int bytesPerPixel = fileMetadata.getPixelsSizeC(0).getValue()
+				* DataType.getDataTypeFromPixelType(fileMetadata.getPixelsType(0)).getSize();
+		Dimension blockSize = new TileReadPlanner(level.getSize(), level.getTileSize(), bytesPerPixel)
+				.getReadBlockSize();
+
+		int alignment = gridPlans.get(0).downsamplingFactor;
+		blockSize.width = ((blockSize.width + alignment - 1) / alignment) * alignment;
+		blockSize.height = ((blockSize.height + alignment - 1) / alignment) * alignment;
+		return blockSize;
+	}
+
+	/**
+	 * @return Indices ({@code row * columns + column}) of the blocks of the level
+	 *         needed by at least one region, in row-major order.
+	 */
+	private static int[] computeBlockUnion(List<RegionPlan> levelPlans, Dimension blockSize) {
+		Dimension levelSize = levelPlans.get(0).sourceLevel.getSize();
+		int columns = (levelSize.width + blockSize.width - 1) / blockSize.width;
+		BitSet neededBlocks = new BitSet();
+		for (RegionPlan plan: levelPlans) {
+			int firstColumn = (int) plan.sourceRectangle.getMinX() / blockSize.width;
+			int lastColumn = ((int) Math.ceil(plan.sourceRectangle.getMaxX()) - 1) / blockSize.width;
+			int firstRow = (int) plan.sourceRectangle.getMinY() / blockSize.height;
+			int lastRow = ((int) Math.ceil(plan.sourceRectangle.getMaxY()) - 1) / blockSize.height;
+			for (int row = firstRow; row <= lastRow; row++) {
+				neededBlocks.set(row * columns + firstColumn, row * columns + lastColumn + 1);
+			}
+		}
+		return neededBlocks.stream().toArray();
+	}
+
+	private void startTileScheduler() {
+		ownedTileScheduler = (tileScheduler == null);
+		if (ownedTileScheduler)
+			tileScheduler = new TileScheduler();
+		// Tasks blocked on the reader pool must not raise the parallelism
+		tileScheduler.setAdaptiveLimit(readerPool.getMaxOpenReaders());
+	}
+
+	private void releaseTileScheduler() throws InterruptedException {
+		if (ownedTileScheduler) {
+			tileScheduler.close();
+			tileScheduler = null;
+		}
+	}
+
+	private void readBlocks(List<RegionPlan> levelPlans, Dimension blockSize, int[] blocks)
+			throws InterruptedException, ExecutionException {
+		PyramidLevel level = levelPlans.get(0).sourceLevel;
+		Dimension levelSize = level.getSize();
+		int columns = (levelSize.width + blockSize.width - 1) / blockSize.width;
+		int blocksBefore = finishedBlocks;
+		tileScheduler.run(blocks.length, blockIndex -> {
+			int blockX = (blocks[blockIndex] % columns) * blockSize.width;
+			int blockY = (blocks[blockIndex] / columns) * blockSize.height;
+			Rectangle blockRectangle = new Rectangle(blockX, blockY, Math.min(blockSize.width, levelSize.width - blockX),
+					Math.min(blockSize.height, levelSize.height - blockY));
+			readBlock(levelPlans, level, blockRectangle);
+		}, finished -> notifyProgress(blocksBefore + finished));
+		finishedBlocks += blocks.length;
+	}
+
+	private void readBlock(List<RegionPlan> levelPlans, PyramidLevel level, Rectangle blockRectangle)
+			throws Exception {
+		LociImporterPlugin subImporter = readerPool.borrowReader(getFilePath());
+		try {
+			try (TileDownsampler.DecodedRegion decodedBlock = TileDownsampler.decode(subImporter.getReader(), 0,
+					level.getResolutionIndex(), 0, 0, blockRectangle.x, blockRectangle.y, blockRectangle.width,
+					blockRectangle.height, null)) {
+				for (RegionPlan plan: levelPlans) {
+					if (plan.sourceRectangle.intersects(blockRectangle)) {
+						plan.tileDownsampler.write(decodedBlock,
+								(blockRectangle.x - plan.sourceOrigin.x) / plan.downsamplingFactor,
+								(blockRectangle.y - plan.sourceOrigin.y) / plan.downsamplingFactor);
+					}
+				}
+			}
+		} finally {
+			readerPool.releaseReader(subImporter);
+		}
+	}
+
+	private Sequence createResultSequence(RegionPlan plan) {
+		double pixelSizeX = OMEUtil.getValue(fileMetadata.getPixelsPhysicalSizeX(0), 1);
+		double pixelSizeY = OMEUtil.getValue(fileMetadata.getPixelsPhysicalSizeY(0), 1);
+		double positionX = 0, positionY = 0;
+		if (fileMetadata.getPlaneCount(0) > 0) {
+			positionX = OMEUtil.getValue(fileMetadata.getPlanePositionX(0, 0), 0);
+			positionY = OMEUtil.getValue(fileMetadata.getPlanePositionY(0, 0), 0);
+		}
+
+		Sequence sequence = new Sequence(plan.resultImage);
+		sequence.setName(String.format("%s (%d, %d)", MetaDataUtil.getName(fileMetadata, 0),
+				(int) plan.targetRectangle.getX(), (int) plan.targetRectangle.getY()));
+		sequence.setPositionX(positionX + plan.targetRectangle.getX() * pixelSizeX);
+		sequence.setPositionY(positionY + plan.targetRectangle.getY() * pixelSizeY);
+		sequence.setPixelSizeX(pixelSizeX / plan.scaleFactor);
+		sequence.setPixelSizeY(pixelSizeY / plan.scaleFactor);
+		return sequence;
+	}
+
+	/**
+	 * Regions whose scale cannot be reached by an integer downsampling of a
+	 * stored level, or that do not start on the block grid of the factor, are
+	 * imported on their own.
+	 */
+	private Sequence importSeparately(RegionPlan plan) throws Exception {
+		LargeSequenceImporter importer = new LargeSequenceImporter();
+		importer.setFilePath(getFilePath());
+		importer.setTargetResolution(plan.region.resolution);
+		importer.setTargetPixelRectangle(plan.targetRectangle);
+		importer.setReaderPool(readerPool);
+		return importer.call();
+	}
+
+	private void notifyProgress(int blockNumber) {
+		progressListeners.forEach(l -> l.notifyProgress(blockNumber / (double) totalBlocks,
+				String.format("Loading tiles (%d/%d)", blockNumber, totalBlocks), null));
+	}
+}
@@ -24,8 +24,20 @@ import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import algorithms.danyfel80.io.sequence.tileprovider.ITileProvider;
 import icy.common.listener.DetailedProgressListener;
@@ -35,13 +47,45 @@ import icy.sequence.MetaDataUtil;
 import icy.type.DataType;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.out.OMETiffWriter;
-import loci.formats.tiff.IFD;
-import loci.formats.tiff.TiffCompression;
+import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 
 /**
+ * Writes a large image as a tiled OME-TIFF (BigTIFF) file from the tiles of an
+ * {@link ITileProvider}. Tiles go through a three-stage pipeline: tiles are
+ * fetched from the provider and encoded (padded, interleaved and compressed)
+ * in parallel, then a single writer appends them to the file in order. The
+ * amount of tiles in the pipeline is bounded, so memory use does not depend on
+ * the image size.
+ * <p>
+ * Tiles are fetched concurrently only from providers declaring
+ * {@link ITileProvider#isThreadSafe()}, other providers are called by one
+ * thread at a time.
+ * <p>
+ * By default, tiles are processed in tile-major order: each tile is fetched
+ * once and split into the tiles of each channel, which are stored next to each
+ * other in the file. Image directories are written at the end, so each channel
+ * image still lists its own tiles. In plane-major order (see
+ * {@link #setTileMajor(boolean)}), each tile is fetched once per channel and
+ * the tiles of each channel are contiguous in the file.
+ * <p>
+ * Sub-resolution levels, each half the size of the previous one, are written
+ * as SubIFDs of each channel image until a level fits in a tile (see
+ * {@link #setPyramid(boolean)}). They are built in the same pass by
+ * {@link TilePyramidBuilder}, so the source is read once.
+ * <p>
+ * Tiles are compressed with LZW by default (see
+ * {@link #setCompression(TileCompression)}).
+ * {@link #profileCompressions(List, int)} measures the throughput and ratio of
+ * several compressions on sample tiles of the image before writing.
+ * <p>
+ * When a {@link TiffTileSource} is set, tiles already compressed in the source
+ * file with the same layout and codec are copied as they are. Other tiles are
+ * fetched from the tile provider and encoded. Tiles are still fetched and
+ * decoded when they are needed to build the pyramid.
+ *
  * @author Daniel Felipe Gonzalez Obando
  *
  */
@@ -84,41 +128,87 @@ public class LargeSequenceExporter implements AutoCloseable {
 	private OMEXMLMetadata outputImageMetadata;
 	private ITileProvider tileProvider;
 	private Set<DetailedProgressListener> progressListeners;
+	private int threadCount;
+	private boolean tileMajor;
+	private boolean pyramid;
+	private TileCompression compression;
+	private TiffTileSource tileSource;
 
-	private OMETiffWriter imageWriter;
+	private BigTiffTileWriter imageWriter;
 
 	// Writing params
-	private long[] rowsPerStrip;
 	private Dimension imageSize;
 	private Dimension tileGridSize;
-	private int seriesSize;
-
-	private Dimension imageSizeDifference;
+	private int tilesPerPlane;
+	private int planeSize;
+	private int samplesPerPixel;
+	private DataType dataType;
+	private boolean bigEndian;
+	private CodecOptions codecOptions;
 
 	private int totalTiles;
 	private int tilesProcessed;
 
-	private int channelSize;
-	private boolean usingSeparateChannels;
-	private IFD ifd;
-
-	private int currentSeries;
-	private int currentChannel;
-
-	private int currentTileRow;
-	private int currentTileY;
-	private int currentTileHeight;
+	private int unitCount;
+	private int levelCount;
+	private TilePyramidBuilder pyramidBuilder;
+	private ExecutorService encodeExecutor;
+	private Deque<LevelTile> pendingLevelTiles;
+	// Indexed by level, plane and tile
+	private long[][][] tileOffsets;
+	private long[][][] tileByteCounts;
+
+	/**
+	 * Result of the fetch stage: plane tiles copied from the tile source, null
+	 * for those to encode, and the tile image if it is needed.
+	 */
+	private static class FetchedUnit {
+		private final byte[][] planeTiles;
+		private final IcyBufferedImage tileImage;
+
+		FetchedUnit(byte[][] planeTiles, IcyBufferedImage tileImage) {
+			this.planeTiles = planeTiles;
+			this.tileImage = tileImage;
+		}
+	}
 
-	private int currentTileColumn;
-	private int currentTileX;
-	private int currentTileWidth;
+	/**
+	 * Result of the encode stage: encoded plane tiles and the tile reduced for
+	 * the first sub-resolution level, if any.
+	 */
+	private static class EncodedUnit {
+		private final byte[][] planeTiles;
+		private final IcyBufferedImage reducedTile;
 
-	private byte[] currentTileData;
+		EncodedUnit(byte[][] planeTiles, IcyBufferedImage reducedTile) {
+			this.planeTiles = planeTiles;
+			this.reducedTile = reducedTile;
+		}
+	}
 
-	private IcyBufferedImage currentTileImage;
+	/**
+	 * Plane tile of a sub-resolution level being encoded.
+	 */
+	private static class LevelTile {
+		private final int level;
+		private final int plane;
+		private final int tileIndex;
+		private final Future<byte[]> encodedTile;
+
+		LevelTile(int level, int plane, int tileIndex, Future<byte[]> encodedTile) {
+			this.level = level;
+			this.plane = plane;
+			this.tileIndex = tileIndex;
+			this.encodedTile = encodedTile;
+		}
+	}
 
 	public LargeSequenceExporter() {
 		progressListeners = new HashSet<>();
+		threadCount = Runtime.getRuntime().availableProcessors();
+		tileMajor = true;
+		pyramid = true;
+		compression = TileCompression.lzw();
 	}
 
 	public Path getOutputFilePath() {
@@ -145,6 +235,73 @@ public class LargeSequenceExporter implements AutoCloseable {
 		this.tileProvider = tileProvider;
 	}
 
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * @param threadCount
+	 *          Amount of threads fetching tiles and amount of threads encoding
+	 *          them. The amount of available processors by default.
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("At least one thread is needed: " + threadCount);
+		this.threadCount = threadCount;
+	}
+
+	public boolean isTileMajor() {
+		return tileMajor;
+	}
+
+	/**
+	 * @param tileMajor
+	 *          True (the default) to fetch each tile once for all channels, false
+	 *          to fetch it once per channel and keep the tiles of each channel
+	 *          contiguous in the file.
+	 */
+	public void setTileMajor(boolean tileMajor) {
+		this.tileMajor = tileMajor;
+	}
+
+	public boolean isPyramid() {
+		return pyramid;
+	}
+
+	/**
+	 * @param pyramid
+	 *          True (the default) to write sub-resolution levels as SubIFDs.
+	 */
+	public void setPyramid(boolean pyramid) {
+		this.pyramid = pyramid;
+	}
+
+	public TileCompression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @param compression
+	 *          Compression of the tiles, LZW by default.
+	 */
+	public void setCompression(TileCompression compression) {
+		this.compression = compression;
+	}
+
+	public TiffTileSource getTileSource() {
+		return tileSource;
+	}
+
+	/**
+	 * @param tileSource
+	 *          File from which compressed tiles are copied when its layout and
+	 *          codec match the output. Null (the default) to encode all the
+	 *          tiles.
+	 */
+	public void setTileSource(TiffTileSource tileSource) {
+		this.tileSource = tileSource;
+	}
+
 	public void addProgressListener(DetailedProgressListener listener) {
 		this.progressListeners.add(listener);
 	}
@@ -154,36 +311,106 @@ public class LargeSequenceExporter implements AutoCloseable {
 	}
 
 	public void write() throws InterruptedException, IOException, FormatException {
-		initializeWriter();
-
+		checkParameters();
 		notifyCurrentProgress();
-		rowsPerStrip = new long[1];
-		rowsPerStrip[0] = TILE_SIZE.height;
 
-		seriesSize = 1;
 		retrieveImageSize();
 		checkTileSize();
 		setTileGridSize();
 		checkComplementaryTiles();
-		channelSize = MetaDataUtil.getNumChannel(outputImageMetadata, 0);
+		retrievePixelLayout();
+		checkCompressionSupport();
+		setTiffData();
+		prepareTileSource();
 
-		totalTiles = tileGridSize.width * tileGridSize.height * channelSize * seriesSize;
+		tilesPerPlane = tileGridSize.width * tileGridSize.height;
+		totalTiles = tilesPerPlane * planeSize;
 		tilesProcessed = 0;
-
-		for (currentSeries = 0; currentSeries < seriesSize; currentSeries++) {
-			writeSeries();
+		unitCount = tileMajor? tilesPerPlane: totalTiles;
+		createPyramidBuilder();
+		tileOffsets = new long[levelCount][planeSize][];
+		tileByteCounts = new long[levelCount][planeSize][];
+		for (int level = 0; level < levelCount; level++) {
+			Dimension levelGridSize = (level == 0)? tileGridSize: pyramidBuilder.getTileGridSize(level);
+			for (int plane = 0; plane < planeSize; plane++) {
+				tileOffsets[level][plane] = new long[levelGridSize.width * levelGridSize.height];
+				tileByteCounts[level][plane] = new long[levelGridSize.width * levelGridSize.height];
+			}
 		}
-	}
 
-	private void initializeWriter() throws LargeSequenceExporterException {
-		checkParameters();
 		createOuputFile();
+		writeTiles();
+		writeDirectories();
+	}
+
+	/**
+	 * Compresses sample tiles of the image with each compression and measures
+	 * the throughput and compression ratio. Sample tiles are spread evenly over
+	 * the image and fetched once. Compressions not supporting the image are
+	 * skipped. Nothing is written.
+	 *
+	 * @param compressions
+	 *          Compressions to measure.
+	 * @param sampleTileCount
+	 *          Amount of sample tiles, at most the amount of tiles of the image.
+	 * @return The profile of each supported compression, in the given order.
+	 */
+	public List<TileCompression.Profile> profileCompressions(List<TileCompression> compressions, int sampleTileCount)
+			throws InterruptedException, IOException, FormatException {
+		checkMetadata();
+		checkTileProvider();
+		retrieveImageSize();
+		checkTileSize();
+		setTileGridSize();
+		checkComplementaryTiles();
+		retrievePixelLayout();
+		tilesPerPlane = tileGridSize.width * tileGridSize.height;
+
+		int tileCount = Math.max(1, Math.min(sampleTileCount, tilesPerPlane));
+		List<byte[]> sampleTiles = new ArrayList<>();
+		for (int i = 0; i < tileCount; i++) {
+			if (Thread.interrupted())
+				throw new InterruptedException("Interrupted when profiling compressions");
+			// Centers of equal parts of the tile sequence
+			Point tileIndex = getTileIndex((int) ((2L * i + 1) * tilesPerPlane / (2L * tileCount)));
+			IcyBufferedImage tileImage = tileProvider.getTile(tileIndex);
+			int tileWidth = getTileWidth(tileIndex.x);
+			int tileHeight = getTileHeight(tileIndex.y);
+			if (tileImage.getWidth() != tileWidth || tileImage.getHeight() != tileHeight)
+				tileImage = IcyBufferedImageUtil.getSubImage(tileImage, 0, 0, Math.min(tileWidth, tileImage.getWidth()),
+						Math.min(tileHeight, tileImage.getHeight()));
+			for (int plane = 0; plane < planeSize; plane++) {
+				sampleTiles.add(layOutPlaneTile(plane, tileImage));
+			}
+		}
+
+		List<TileCompression.Profile> profiles = new ArrayList<>();
+		for (TileCompression sampleCompression: compressions) {
+			if (!sampleCompression.isSupported(dataType, samplesPerPixel))
+				continue;
+			if (Thread.interrupted())
+				throw new InterruptedException("Interrupted when profiling compressions");
+
+			// Warm up the codec before timing it
+			sampleCompression.compress(sampleTiles.get(0), codecOptions);
+			long rawBytes = 0;
+			long compressedBytes = 0;
+			long start = System.nanoTime();
+			for (byte[] sampleTile: sampleTiles) {
+				rawBytes += sampleTile.length;
+				compressedBytes += sampleCompression.compress(sampleTile, codecOptions).length;
+			}
+			long time = System.nanoTime() - start;
+			profiles.add(new TileCompression.Profile(sampleCompression, sampleTiles.size(), rawBytes, compressedBytes, time));
+		}
+		return profiles;
 	}
 
 	private void checkParameters() throws LargeSequenceExporterException {
 		checkOutputFilePath();
 		checkMetadata();
 		checkTileProvider();
+		checkCompression();
 	}
 
 	private void checkOutputFilePath() throws LargeSequenceExporterException {
@@ -201,68 +428,9 @@ public class LargeSequenceExporter implements AutoCloseable {
 			throw new LargeSequenceExporterException("No tile provider specified");
 	}
 
-	private void createOuputFile() throws LargeSequenceExporterException {
-		imageWriter = new OMETiffWriter();
-		setWriterCompression();
-		setPixelsNotInterleaved();
-		imageWriter.setMetadataRetrieve(outputImageMetadata);
-		imageWriter.setWriteSequentially(true);
-		imageWriter.setInterleaved(false);
-		imageWriter.setBigTiff(true);
-
-		deleteExisitingFile();
-		setWrittenFile();
-		setWriterAtFirstSeries();
-	}
-
-	private void setWriterCompression() throws LargeSequenceExporterException {
-		try {
-			imageWriter.setCompression(TiffCompression.LZW.getCodecName());
-		} catch (FormatException e) {
-			throw new LargeSequenceExporterException(
-					String.format("Format not supported: %s", TiffCompression.LZW.getCodecName()), e);
-		}
-	}
-
-	private void setPixelsNotInterleaved() throws LargeSequenceExporterException {
-		int chs = outputImageMetadata.getChannelCount(0);
-		for (int ch = 0; ch < chs; ch++) {
-			outputImageMetadata.setPixelsInterleaved(false, 0);
-		}
-	}
-
-	private void deleteExisitingFile() throws LargeSequenceExporterException {
-		try {
-			Files.deleteIfExists(outputFilePath);
-		} catch (IOException e) {
-			throw new LargeSequenceExporterException(
-					String.format("Could not delete existing output file: %s", outputFilePath), e);
-		}
-	}
-
-	private void setWrittenFile() throws LargeSequenceExporterException {
-		try {
-			imageWriter.setId(outputFilePath.toAbsolutePath().toString());
-		} catch (IOException e) {
-			throw new LargeSequenceExporterException(String.format("Could not create output file: %s", outputFilePath), e);
-		} catch (FormatException e) {
-			throw new LargeSequenceExporterException(String.format("Output file format is not supported: %s", outputFilePath),
-					e);
-		}
-	}
-
-	private void setWriterAtFirstSeries() throws LargeSequenceExporterException {
-		try {
-			imageWriter.setSeries(0);
-		} catch (FormatException e) {
-			try {
-				imageWriter.close();
-			} catch (IOException e1) {
-				throw new LargeSequenceExporterException("Cannot close image writer after exception: ", e1);
-			}
-			throw new LargeSequenceExporterException(
-					String.format("Cannot set the current written series to 0", outputFilePath), e);
-		}
+	private void checkCompression() throws LargeSequenceExporterException {
+		if (compression == null)
+			throw new LargeSequenceExporterException("No compression specified");
 	}
 
 	private void notifyCurrentProgress() {
@@ -278,121 +446,427 @@ public class LargeSequenceExporter implements AutoCloseable {
 		imageSize = new Dimension(sizeX, sizeY);
 	}
 
+	/**
+	 * TIFF tiles must be multiples of 16 pixels, tile sizes are rounded up. Edge
+	 * tiles are padded.
+	 */
 	private void checkTileSize() {
 		if (TILE_SIZE.width <= 0)
 			TILE_SIZE.width = imageSize.width;
 		if (TILE_SIZE.height <= 0)
 			TILE_SIZE.height = imageSize.height;
+		TILE_SIZE.setSize(getTiffTileSize(TILE_SIZE));
+	}
+
+	/**
+	 * @param tileSize
+	 *          Wanted tile size, e.g. the tiles or strips of the source image.
+	 * @return The tile size rounded up to multiples of 16, as required for TIFF
+	 *         tiles. Tile providers must use this size, since the exporter rounds
+	 *         {@link #TILE_SIZE} the same way.
+	 */
+	public static Dimension getTiffTileSize(Dimension tileSize) {
+		return new Dimension(roundTileLength(tileSize.width), roundTileLength(tileSize.height));
+	}
+
+	private static int roundTileLength(int length) {
+		return (length + 15) / 16 * 16;
 	}
 
 	private void setTileGridSize() {
 		int sizeX = imageSize.width / TILE_SIZE.width;
 		int sizeY = imageSize.height / TILE_SIZE.height;
 		if (sizeX == 0) {
-			TILE_SIZE.width = imageSize.width;
+			TILE_SIZE.width = roundTileLength(imageSize.width);
 			sizeX = 1;
 		}
 		if (sizeY == 0) {
-			TILE_SIZE.height = imageSize.width;
+			TILE_SIZE.height = roundTileLength(imageSize.height);
 			sizeY = 1;
 		}
 		tileGridSize = new Dimension(sizeX, sizeY);
 	}
 
 	private void checkComplementaryTiles() {
-		int imageSizeDifferenceX = imageSize.width - tileGridSize.width * TILE_SIZE.width;
-		int imageSizeDifferenceY = imageSize.height - tileGridSize.height * TILE_SIZE.height;
-		imageSizeDifference = new Dimension(imageSizeDifferenceX, imageSizeDifferenceY);
-		if (imageSizeDifference.width > 0)
+		if (imageSize.width - tileGridSize.width * TILE_SIZE.width > 0)
 			tileGridSize.width++;
-		if (imageSizeDifference.height > 0)
+		if (imageSize.height - tileGridSize.height * TILE_SIZE.height > 0)
 			tileGridSize.height++;
 	}
 
-	private void writeSeries() throws InterruptedException, IOException, FormatException {
-		usingSeparateChannels = MetaDataUtil.getNumChannel(outputImageMetadata, currentSeries) != 1;
-		ifd = createIFD();
-		for (currentChannel = 0; currentChannel < channelSize; currentChannel++) {
-			writeChannel();
+	/**
+	 * Each OME channel is written as one TIFF image. Channels with several
+	 * samples (RGB) are written interleaved.
+	 */
+	private void retrievePixelLayout() throws LargeSequenceExporterException {
+		planeSize = MetaDataUtil.getNumChannel(outputImageMetadata, 0);
+		samplesPerPixel = MetaDataUtil.getSizeC(outputImageMetadata, 0) / planeSize;
+		dataType = MetaDataUtil.getDataType(outputImageMetadata, 0);
+		Boolean bigEndianFlag = outputImageMetadata.getPixelsBinDataBigEndian(0, 0);
+		bigEndian = (bigEndianFlag != null) && bigEndianFlag;
+		outputImageMetadata.setPixelsInterleaved(false, 0);
+
+		codecOptions = new CodecOptions();
+		codecOptions.width = TILE_SIZE.width;
+		codecOptions.height = TILE_SIZE.height;
+		codecOptions.channels = samplesPerPixel;
+		codecOptions.bitsPerSample = dataType.getSize() * 8;
+		codecOptions.littleEndian = !bigEndian;
+		codecOptions.interleaved = true;
+		codecOptions.signed = dataType.isSigned();
+	}
+
+	private void checkCompressionSupport() throws LargeSequenceExporterException {
+		if (!compression.isSupported(dataType, samplesPerPixel))
+			throw new LargeSequenceExporterException(String.format(
+					"%s compression does not support %s images with %d samples per pixel", compression.getCodec(), dataType,
+					samplesPerPixel));
+	}
+
+	private void prepareTileSource() throws FormatException {
+		if (tileSource != null)
+			tileSource.prepare(imageSize, TILE_SIZE, planeSize, samplesPerPixel, dataType, bigEndian, compression,
+					getPhotometricInterpretation());
+	}
+
+	private void setTiffData() {
+		for (int plane = 0; plane < planeSize; plane++) {
+			outputImageMetadata.setTiffDataIFD(new NonNegativeInteger(plane), 0, plane);
+			outputImageMetadata.setTiffDataFirstC(new NonNegativeInteger(plane), 0, plane);
+			outputImageMetadata.setTiffDataFirstZ(new NonNegativeInteger(0), 0, plane);
+			outputImageMetadata.setTiffDataFirstT(new NonNegativeInteger(0), 0, plane);
+			outputImageMetadata.setTiffDataPlaneCount(new NonNegativeInteger(1), 0, plane);
+		}
+	}
+
+	/**
+	 * Levels need even tile sizes, so that reduced tiles line up in the grid of
+	 * the next level. 64-bit integer samples are not averaged, so these images
+	 * are written without levels.
+	 */
+	private void createPyramidBuilder() {
+		levelCount = 1;
+		pyramidBuilder = null;
+		if (pyramid && TILE_SIZE.width % 2 == 0 && TILE_SIZE.height % 2 == 0 && dataType != DataType.LONG
+				&& dataType != DataType.ULONG)
+			levelCount = TilePyramidBuilder.getLevelCount(imageSize, TILE_SIZE);
+		if (levelCount > 1)
+			pyramidBuilder = new TilePyramidBuilder(imageSize, TILE_SIZE, MetaDataUtil.getSizeC(outputImageMetadata, 0),
+					dataType, levelCount, this::submitLevelTile);
+	}
+
+	private void createOuputFile() throws LargeSequenceExporterException {
+		deleteExisitingFile();
+		try {
+			imageWriter = new BigTiffTileWriter(outputFilePath.toAbsolutePath(), bigEndian);
+		} catch (IOException e) {
+			throw new LargeSequenceExporterException(String.format("Could not create output file: %s", outputFilePath), e);
+		}
+	}
+
+	private void deleteExisitingFile() throws LargeSequenceExporterException {
+		try {
+			Files.deleteIfExists(outputFilePath);
+		} catch (IOException e) {
+			throw new LargeSequenceExporterException(
+					String.format("Could not delete existing output file: %s", outputFilePath), e);
+		}
+	}
+
+	/**
+	 * Runs the pipeline on work units: a tile of the grid for all the planes in
+	 * tile-major order, a tile of a single plane otherwise. Units are numbered
+	 * plane by plane (plane-major only), then row by row. The calling thread is
+	 * the writer: it keeps the next units submitted to the fetch and encode
+	 * stages, up to a bounded amount, and appends them in order.
+	 */
+	private void writeTiles() throws InterruptedException, IOException, FormatException {
+		ExecutorService fetchExecutor = Executors.newFixedThreadPool(threadCount, createThreadFactory("TileFetcher"));
+		encodeExecutor = Executors.newFixedThreadPool(threadCount, createThreadFactory("TileEncoder"));
+		Deque<Future<EncodedUnit>> pendingTiles = new ArrayDeque<>();
+		pendingLevelTiles = new ArrayDeque<>();
+		// A fetched tile holds every channel in both orders, only the amount of
+		// encoded planes held by a unit differs.
+		int maxPendingTiles = tileMajor? threadCount * 2: threadCount * 4;
+		try {
+			int nextUnit = 0;
+			for (int unit = 0; unit < unitCount; unit++) {
+				while (nextUnit < unitCount && pendingTiles.size() < maxPendingTiles) {
+					pendingTiles.addLast(submitTile(nextUnit++, fetchExecutor, encodeExecutor));
+				}
+				EncodedUnit encodedUnit = await(pendingTiles.pollFirst(), describeTile(unit));
+				writeTile(unit, encodedUnit.planeTiles);
+				if (encodedUnit.reducedTile != null) {
+					Point tileIndex = getTileIndex(unit);
+					pyramidBuilder.addReducedTile(1, tileIndex.x, tileIndex.y, encodedUnit.reducedTile);
+				}
+				writeLevelTiles(maxPendingTiles * planeSize);
+			}
+			writeLevelTiles(0);
+		} finally {
+			pendingTiles.forEach(pendingTile -> pendingTile.cancel(true));
+			pendingLevelTiles.forEach(pendingTile -> pendingTile.encodedTile.cancel(true));
+			fetchExecutor.shutdownNow();
+			encodeExecutor.shutdownNow();
 		}
 	}
 
-	private IFD createIFD() {
-		IFD ifd = new IFD();
-		ifd.put(IFD.TILE_WIDTH, TILE_SIZE.width);
-		ifd.put(IFD.TILE_LENGTH, TILE_SIZE.height);
-		ifd.put(IFD.ROWS_PER_STRIP, rowsPerStrip);
-		return ifd;
+	private static ThreadFactory createThreadFactory(String name) {
+		AtomicInteger threadNumber = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
 	}
 
-	private void writeChannel() throws InterruptedException, IOException, FormatException {
+	private Future<EncodedUnit> submitTile(int unit, ExecutorService fetchExecutor, ExecutorService encodeExecutor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return fetchUnit(unit);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, fetchExecutor).thenApplyAsync(fetchedUnit -> {
+			try {
+				return encodeTile(unit, fetchedUnit);
+			} catch (FormatException e) {
+				throw new CompletionException(e);
+			}
+		}, encodeExecutor);
+	}
 
-		for (currentTileRow = 0; currentTileRow < tileGridSize.height; currentTileRow++) {
-			writeTileRow();
+	private static <T> T await(Future<T> pendingTile, String tileDescription)
+			throws InterruptedException, IOException, FormatException {
+		try {
+			return pendingTile.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof CompletionException && cause.getCause() != null)
+				cause = cause.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof FormatException)
+				throw (FormatException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException("Could not encode " + tileDescription, cause);
 		}
 	}
 
-	private void writeTileRow() throws InterruptedException, IOException, FormatException {
-		currentTileY = TILE_SIZE.height * currentTileRow;
-		if (imageSizeDifference.height > 0 && currentTileRow == (tileGridSize.height - 1)) {
-			currentTileHeight = imageSizeDifference.height;
+	/**
+	 * Copies the plane tiles of the unit available in the tile source, and
+	 * fetches the tile image if some plane tiles must be encoded or if the tile
+	 * is needed for the pyramid.
+	 */
+	private FetchedUnit fetchUnit(int unit) throws IOException {
+		int firstPlane = getFirstPlane(unit);
+		byte[][] planeTiles = new byte[getPlaneCount(unit)][];
+		boolean imageNeeded = pyramidBuilder != null && firstPlane == 0;
+		for (int i = 0; i < planeTiles.length; i++) {
+			if (tileSource != null)
+				planeTiles[i] = tileSource.getTile(firstPlane + i, unit % tilesPerPlane);
+			imageNeeded |= planeTiles[i] == null;
+		}
+		return new FetchedUnit(planeTiles, imageNeeded? fetchTile(unit): null);
+	}
+
+	private IcyBufferedImage fetchTile(int unit) throws IOException {
+		Point tileIndex = getTileIndex(unit);
+		IcyBufferedImage tileImage;
+		if (tileProvider.isThreadSafe()) {
+			tileImage = tileProvider.getTile(tileIndex);
 		} else {
-			currentTileHeight = TILE_SIZE.height;
+			synchronized (tileProvider) {
+				tileImage = tileProvider.getTile(tileIndex);
+			}
 		}
 
-		for (currentTileColumn = 0; currentTileColumn < tileGridSize.width; currentTileColumn++) {
-			writeTile();
+		int tileWidth = getTileWidth(tileIndex.x);
+		int tileHeight = getTileHeight(tileIndex.y);
+		if (tileImage.getWidth() < tileWidth || tileImage.getHeight() < tileHeight)
+			throw new IOException(String.format("Tile size not coherent: Tile (%d, %d), expected (%d, %d)",
+					tileImage.getWidth(), tileImage.getHeight(), tileWidth, tileHeight));
+		if (tileImage.getWidth() != tileWidth || tileImage.getHeight() != tileHeight)
+			tileImage = IcyBufferedImageUtil.getSubImage(tileImage, 0, 0, tileWidth, tileHeight);
+		return tileImage;
+	}
+
+	/**
+	 * Encodes the tiles of the planes of the unit that were not copied. Tiles are
+	 * reduced for the pyramid once, with the first plane, as they hold all the
+	 * channels.
+	 */
+	private EncodedUnit encodeTile(int unit, FetchedUnit fetchedUnit) throws FormatException {
+		int firstPlane = getFirstPlane(unit);
+		byte[][] planeTiles = fetchedUnit.planeTiles;
+		for (int i = 0; i < planeTiles.length; i++) {
+			if (planeTiles[i] == null)
+				planeTiles[i] = encodePlaneTile(firstPlane + i, fetchedUnit.tileImage);
+		}
+		IcyBufferedImage reducedTile = (pyramidBuilder != null && firstPlane == 0)
+				? TilePyramidBuilder.reduce(fetchedUnit.tileImage)
+				: null;
+		return new EncodedUnit(planeTiles, reducedTile);
+	}
+
+	/**
+	 * Called by the pyramid builder, on the writer thread, when a tile of a
+	 * sub-resolution level is complete.
+	 */
+	private void submitLevelTile(int level, int tileColumn, int tileRow, IcyBufferedImage tile) {
+		int tileIndex = tileRow * pyramidBuilder.getTileGridSize(level).width + tileColumn;
+		for (int plane = 0; plane < planeSize; plane++) {
+			int tilePlane = plane;
+			Future<byte[]> encodedTile = CompletableFuture.supplyAsync(() -> {
+				try {
+					return encodePlaneTile(tilePlane, tile);
+				} catch (FormatException e) {
+					throw new CompletionException(e);
+				}
+			}, encodeExecutor);
+			pendingLevelTiles.addLast(new LevelTile(level, plane, tileIndex, encodedTile));
 		}
 	}
 
-	private void writeTile() throws InterruptedException, IOException, FormatException {
-		++tilesProcessed;
-		notifyCurrentProgress();
+	/**
+	 * Appends the encoded level tiles that are ready, and waits for the others
+	 * while more than the given amount are pending.
+	 */
+	private void writeLevelTiles(int maxPendingLevelTiles) throws InterruptedException, IOException, FormatException {
+		while (!pendingLevelTiles.isEmpty()
+				&& (pendingLevelTiles.size() > maxPendingLevelTiles || pendingLevelTiles.peekFirst().encodedTile.isDone())) {
+			LevelTile levelTile = pendingLevelTiles.pollFirst();
+			byte[] tileBytes = await(levelTile.encodedTile,
+					String.format("level %d, channel %d, tile %d", levelTile.level, levelTile.plane, levelTile.tileIndex));
+			tileOffsets[levelTile.level][levelTile.plane][levelTile.tileIndex] = imageWriter.appendTile(tileBytes);
+			tileByteCounts[levelTile.level][levelTile.plane][levelTile.tileIndex] = tileBytes.length;
+		}
+	}
 
-		currentTileX = TILE_SIZE.width * currentTileColumn;
-		currentTileWidth = getCurrentTileWidth();
+	private byte[] encodePlaneTile(int plane, IcyBufferedImage tileImage) throws FormatException {
+		return compression.compress(layOutPlaneTile(plane, tileImage), codecOptions);
+	}
+
+	/**
+	 * Lays the samples of a plane of the tile out as an uncompressed TIFF tile:
+	 * full tile size, interleaved samples.
+	 */
+	private byte[] layOutPlaneTile(int plane, IcyBufferedImage tileImage) {
+		int width = tileImage.getWidth();
+		int height = tileImage.getHeight();
+		int sampleSize = dataType.getSize();
+		int pixelSize = sampleSize * samplesPerPixel;
+		byte[] tileData = new byte[TILE_SIZE.width * TILE_SIZE.height * pixelSize];
+
+		for (int sample = 0; sample < samplesPerPixel; sample++) {
+			byte[] sampleData = tileImage.getRawData(plane * samplesPerPixel + sample, !bigEndian);
+			if (samplesPerPixel == 1) {
+				for (int y = 0; y < height; y++) {
+					System.arraycopy(sampleData, y * width * sampleSize, tileData, y * TILE_SIZE.width * sampleSize,
+							width * sampleSize);
+				}
+			} else {
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						System.arraycopy(sampleData, (y * width + x) * sampleSize, tileData,
+								(y * TILE_SIZE.width + x) * pixelSize + sample * sampleSize, sampleSize);
+					}
+				}
+			}
+		}
+		return tileData;
+	}
 
+	private void writeTile(int unit, byte[][] planeTiles) throws InterruptedException, IOException {
 		if (Thread.interrupted())
-			throw new InterruptedException("Interrupted when retrieving series " + currentSeries + ", channel " + currentChannel
-					+ ", current tile row " + currentTileY + ", current tile column " + currentTileX);
-
-		getCurrentTileImage();
-		getCurrentTileData();
+			throw new InterruptedException("Interrupted when writing " + describeTile(unit));
 
+		int tileInPlane = unit % tilesPerPlane;
+		int firstPlane = getFirstPlane(unit);
 		try {
-			imageWriter.saveBytes(currentChannel, currentTileData, ifd, currentTileX, currentTileY, currentTileWidth,
-					currentTileHeight);
+			for (int i = 0; i < planeTiles.length; i++) {
+				tileOffsets[0][firstPlane + i][tileInPlane] = imageWriter.appendTile(planeTiles[i]);
+				tileByteCounts[0][firstPlane + i][tileInPlane] = planeTiles[i].length;
+			}
 		} catch (ClosedByInterruptException e) {
-			throw new InterruptedException("Interrupted when writing series " + currentSeries + ", channel " + currentChannel
-					+ ", current tile row " + currentTileY + ", current tile column " + currentTileX);
+			throw new InterruptedException("Interrupted when writing " + describeTile(unit));
 		}
+
+		tilesProcessed += planeTiles.length;
+		notifyCurrentProgress();
 	}
 
-	private int getCurrentTileWidth() {
-		if (imageSizeDifference.width > 0 && currentTileColumn == (tileGridSize.width - 1)) {
-			return imageSizeDifference.width;
-		} else {
-			return TILE_SIZE.width;
+	/**
+	 * Writes the directory of each plane, after the directories of its
+	 * sub-resolution levels so that it can reference them as SubIFDs.
+	 */
+	private void writeDirectories() throws IOException {
+		for (int plane = 0; plane < planeSize; plane++) {
+			long[] subDirectoryOffsets = new long[levelCount - 1];
+			for (int level = 1; level < levelCount; level++) {
+				subDirectoryOffsets[level - 1] = imageWriter.writeDirectory(createDirectory(level, plane), false);
+			}
+			BigTiffTileWriter.Directory directory = createDirectory(0, plane);
+			if (plane == 0)
+				directory.setDescription(outputImageMetadata.dumpXML());
+			directory.setSubDirectoryOffsets(subDirectoryOffsets);
+			imageWriter.writeDirectory(directory, true);
 		}
 	}
 
-	private void getCurrentTileImage() throws IOException {
-		currentTileImage = tileProvider.getTile(new Point(currentTileColumn, currentTileRow));
+	private BigTiffTileWriter.Directory createDirectory(int level, int plane) {
+		Dimension levelSize = (level == 0)? imageSize: pyramidBuilder.getLevelSize(level);
+		BigTiffTileWriter.Directory directory = new BigTiffTileWriter.Directory(levelSize.width, levelSize.height,
+				TILE_SIZE.width, TILE_SIZE.height);
+		directory.setBitsPerSample(dataType.getSize() * 8);
+		directory.setSamplesPerPixel(samplesPerPixel);
+		directory.setSampleFormat(dataType.isFloat()? BigTiffTileWriter.SAMPLE_FORMAT_FLOAT
+				: dataType.isSigned()? BigTiffTileWriter.SAMPLE_FORMAT_INT: BigTiffTileWriter.SAMPLE_FORMAT_UINT);
+		directory.setPhotometricInterpretation(getPhotometricInterpretation());
+		directory.setCompression(compression.getCodec().getTiffCode());
+		if (level > 0)
+			directory.setSubfileType(BigTiffTileWriter.SUBFILE_TYPE_REDUCED_IMAGE);
+		directory.setTiles(tileOffsets[level][plane], tileByteCounts[level][plane]);
+		return directory;
+	}
 
-		if (currentTileImage.getWidth() < currentTileWidth || currentTileImage.getHeight() < currentTileHeight)
-			throw new IOException(String.format("Tile size not coherent: Tile (%d, %d), expected (%d, %d)",
-					currentTileImage.getWidth(), currentTileImage.getHeight(), currentTileWidth, currentTileHeight));
-		if (currentTileImage.getWidth() != currentTileWidth || currentTileImage.getHeight() != currentTileHeight)
-			currentTileImage = IcyBufferedImageUtil.getSubImage(currentTileImage, 0, 0, currentTileWidth, currentTileHeight);
+	/**
+	 * JPEG tiles store RGB samples as YCbCr.
+	 */
+	private int getPhotometricInterpretation() {
+		if (samplesPerPixel != 3)
+			return BigTiffTileWriter.PHOTOMETRIC_MIN_IS_BLACK;
+		return (compression.getCodec() == TileCompression.Codec.JPEG)? BigTiffTileWriter.PHOTOMETRIC_YCBCR
+				: BigTiffTileWriter.PHOTOMETRIC_RGB;
 	}
 
-	private void getCurrentTileData() {
-		if (usingSeparateChannels) {
-			currentTileData = currentTileImage.getRawData(currentChannel,
-					!outputImageMetadata.getPixelsBinDataBigEndian(0, 0));
-		} else {
-			currentTileData = currentTileImage.getRawData(!outputImageMetadata.getPixelsBinDataBigEndian(0, 0));
-		}
+	private int getFirstPlane(int unit) {
+		return tileMajor? 0: unit / tilesPerPlane;
+	}
+
+	private int getPlaneCount(int unit) {
+		return tileMajor? planeSize: 1;
+	}
+
+	private Point getTileIndex(int unit) {
+		int tileInPlane = unit % tilesPerPlane;
+		return new Point(tileInPlane % tileGridSize.width, tileInPlane / tileGridSize.width);
+	}
+
+	private int getTileWidth(int tileColumn) {
+		return Math.min(TILE_SIZE.width, imageSize.width - tileColumn * TILE_SIZE.width);
+	}
+
+	private int getTileHeight(int tileRow) {
+		return Math.min(TILE_SIZE.height, imageSize.height - tileRow * TILE_SIZE.height);
+	}
+
+	private String describeTile(int unit) {
+		Point tileIndex = getTileIndex(unit);
+		String planes = tileMajor? "all channels": ("channel " + getFirstPlane(unit));
+		return String.format("%s, tile row %d, tile column %d", planes, tileIndex.y * TILE_SIZE.height,
+				tileIndex.x * TILE_SIZE.width);
 	}
 
 	@Override
@@ -4,13 +4,24 @@
 package algorithms.danyfel80.io.sequence.large;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import icy.common.exception.UnsupportedFormatException;
-import icy.sequence.MetaDataUtil;
+import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageUtil;
 import icy.type.DataType;
-import ome.units.UNITS;
+import loci.common.DataTools;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
 import ome.units.quantity.Length;
 import ome.xml.meta.OMEXMLMetadata;
 import plugins.kernel.importer.LociImporterPlugin;
@@ -22,6 +33,29 @@ import plugins.kernel.importer.LociImporterPlugin;
  */
 public class LargeSequenceHelper {
 
+	/**
+	 * Relative tolerance on level scales, as level sizes are rounded down by file
+	 * writers.
+	 */
+	private static final double LEVEL_SCALE_TOLERANCE = 0.01;
+
+	/**
+	 * Retrieves all the information of the image in the given file with a
+	 * single file open. Results are cached by {@link ImageInfoCache} as long as
+	 * the file is not modified.
+	 * 
+	 * @param path
+	 *          Path of the file.
+	 * @return The information of the image in the specified file.
+	 * @throws UnsupportedFormatException
+	 *           If the file can't be read.
+	 * @throws IOException
+	 *           If the file doesn't exist.
+	 */
+	public static ImageInfo getImageInfo(File path) throws UnsupportedFormatException, IOException {
+		return ImageInfoCache.getInstance().getImageInfo(path.toPath());
+	}
+
 	/**
 	 * Retrieves the 2D dimension of the image of the given file path.
 	 * 
@@ -34,24 +68,7 @@ public class LargeSequenceHelper {
 	 *           If the file doesn't exist.
 	 */
 	public static Dimension getImageDimension(File path) throws IOException, UnsupportedFormatException {
-		LociImporterPlugin importer = new LociImporterPlugin();
-		try {
-			importer.open(path.getAbsolutePath(), 0);
-			OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
-			int imgSizeX = imgProps.getPixelsSizeX(0).getValue();
-			int imgSizeY = imgProps.getPixelsSizeY(0).getValue();
-
-			return new Dimension(imgSizeX, imgSizeY);
-
-		} catch (UnsupportedFormatException | IOException e1) {
-			throw e1;
-		} finally {
-			try {
-				importer.close();
-			} catch (IOException e2) {
-				throw e2;
-			}
-		}
+		return getImageInfo(path).getDimension();
 	}
 
 	/**
@@ -66,21 +83,7 @@ public class LargeSequenceHelper {
 	 *           If the file doesn't exist.
 	 */
 	public static int getImageChannelCount(File path) throws UnsupportedFormatException, IOException {
-		LociImporterPlugin importer = new LociImporterPlugin();
-		try {
-			importer.open(path.getAbsolutePath(), 0);
-			OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
-			return imgProps.getPixelsSizeC(0).getValue();
-
-		} catch (UnsupportedFormatException | IOException e1) {
-			throw e1;
-		} finally {
-			try {
-				importer.close();
-			} catch (IOException e2) {
-				throw e2;
-			}
-		}
+		return getImageInfo(path).getSizeC();
 	}
 
 	/**
@@ -95,21 +98,7 @@ public class LargeSequenceHelper {
 	 *           If the file doesn't exist.
 	 */
 	public static DataType getImageDataType(File path) throws UnsupportedFormatException, IOException {
-		LociImporterPlugin importer = new LociImporterPlugin();
-		try {
-			importer.open(path.getAbsolutePath(), 0);
-			OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
-			return DataType.getDataTypeFromPixelType(imgProps.getPixelsType(0));
-
-		} catch (UnsupportedFormatException | IOException e1) {
-			throw e1;
-		} finally {
-			try {
-				importer.close();
-			} catch (IOException e2) {
-				throw e2;
-			}
-		}
+		return getImageInfo(path).getDataType();
 	}
 
 	/**
@@ -126,26 +115,7 @@ public class LargeSequenceHelper {
 	 *           If the file doesn't exist.
 	 */
 	public static long getImageDataSize(File path) throws UnsupportedFormatException, IOException {
-		LociImporterPlugin importer = new LociImporterPlugin();
-		try {
-			importer.open(path.getAbsolutePath(), 0);
-			OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
-			long sizeX = imgProps.getPixelsSizeX(0).getValue();
-			long sizeY = imgProps.getPixelsSizeY(0).getValue();
-			long sizeC = imgProps.getPixelsSizeC(0).getValue();
-			DataType type = DataType.getDataTypeFromPixelType(imgProps.getPixelsType(0));
-
-			long bytesPerPixel = type.getSize() * sizeC;
-			return sizeX * sizeY * bytesPerPixel;
-		} catch (UnsupportedFormatException | IOException e1) {
-			throw e1;
-		} finally {
-			try {
-				importer.close();
-			} catch (IOException e2) {
-				throw e2;
-			}
-		}
+		return getImageInfo(path).getDataSize();
 	}
 
 	/**
@@ -160,31 +130,7 @@ public class LargeSequenceHelper {
 	 *           If the file doesn't exist.
 	 */
 	public static Length[] getImagePixelSize(File path) throws UnsupportedFormatException, IOException {
-		LociImporterPlugin importer = new LociImporterPlugin();
-		try {
-			importer.open(path.getAbsolutePath(), 0);
-			try {
-				OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
-				Length[] pixelSize = new Length[3];
-				pixelSize[0] = imgProps.getPixelsPhysicalSizeX(0);
-				if (pixelSize[0] == null) {
-					pixelSize[0] = new Length(new Double(1), UNITS.MICROMETER);
-				}
-				pixelSize[1] = imgProps.getPixelsPhysicalSizeY(0);
-				if (pixelSize[1] == null) {
-					pixelSize[1] = new Length(new Double(1), UNITS.MICROMETER);
-				}
-				pixelSize[2] = imgProps.getPixelsPhysicalSizeZ(0);
-				if (pixelSize[2] == null) {
-					pixelSize[2] = new Length(new Double(1), UNITS.MICROMETER);
-				}
-				return pixelSize;
-			} finally {
-				importer.close();
-			}
-		} catch (UnsupportedFormatException | IOException e) {
-			throw e;
-		}
+		return getImageInfo(path).getPixelSize();
 	}
 
 	/**
@@ -199,12 +145,11 @@ public class LargeSequenceHelper {
 	 *           If the file cannot read appropriately.
 	 */
 	public static OMEXMLMetadata getImageMetadata(File path) throws UnsupportedFormatException, IOException {
-		LociImporterPlugin importer = new LociImporterPlugin();
-		importer.open(path.getAbsolutePath(), 0);
+		LociImporterPlugin importer = LargeSequenceReaderPool.getInstance().borrowReader(path.toPath());
 		try {
 			return importer.getOMEXMLMetaData();
 		} finally {
-			importer.close();
+			LargeSequenceReaderPool.getInstance().releaseReader(importer);
 		}
 	}
 
@@ -220,14 +165,7 @@ public class LargeSequenceHelper {
 	 *           If the file cannot be read.
 	 */
 	public static String getImageName(File path) throws UnsupportedFormatException, IOException {
-		LociImporterPlugin importer = new LociImporterPlugin();
-		importer.open(path.getAbsolutePath(), 0);
-		try {
-			OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
-			return MetaDataUtil.getName(imgProps, 0);
-		} finally {
-			importer.close();
-		}
+		return getImageInfo(path).getName();
 	}
 
 	/**
@@ -255,4 +193,252 @@ public class LargeSequenceHelper {
 		}
 		return resolution;
 	}
+
+	/**
+	 * Retrieves the resolution levels physically stored in the file opened by the
+	 * given importer. Files without sub-resolutions return a single level
+	 * describing the full resolution image.
+	 * 
+	 * @param importer
+	 *          Importer with an opened file.
+	 * @param series
+	 *          Series of the image.
+	 * @return Stored levels sorted from the full resolution to the coarsest one.
+	 * @throws UnsupportedFormatException
+	 *           If the file can't be read.
+	 * @throws IOException
+	 *           If the file doesn't exist.
+	 */
+	public static List<PyramidLevel> getPyramidLevels(LociImporterPlugin importer, int series)
+			throws UnsupportedFormatException, IOException {
+		OMEXMLMetadata imgProps = importer.getOMEXMLMetaData();
+		Dimension fullSize = new Dimension(imgProps.getPixelsSizeX(series).getValue(),
+				imgProps.getPixelsSizeY(series).getValue());
+		Dimension fullTileSize = new Dimension(importer.getTileWidth(series), importer.getTileHeight(series));
+
+		IFormatReader reader = importer.getReader();
+		if (reader == null) {
+			return Collections.singletonList(new PyramidLevel(0, fullSize, fullTileSize, fullSize));
+		}
+
+		List<PyramidLevel> levels = new ArrayList<>();
+		synchronized (reader) {
+			int previousSeries = reader.getSeries();
+			try {
+				reader.setSeries(series);
+				for (int resolution = 0; resolution < reader.getResolutionCount(); resolution++) {
+					reader.setResolution(resolution);
+					Dimension levelSize = new Dimension(reader.getSizeX(), reader.getSizeY());
+					Dimension levelTileSize = (resolution == 0)? fullTileSize
+							: new Dimension(reader.getOptimalTileWidth(), reader.getOptimalTileHeight());
+					levels.add(new PyramidLevel(resolution, levelSize, levelTileSize, fullSize));
+				}
+			} finally {
+				reader.setSeries(previousSeries);
+			}
+		}
+		if (levels.isEmpty()) {
+			levels.add(new PyramidLevel(0, fullSize, fullTileSize, fullSize));
+		}
+		return levels;
+	}
+
+	/**
+	 * Finds the coarsest stored level that still has at least the requested
+	 * resolution. Only the remaining scale factor has to be computed on the
+	 * pixels read from this level.
+	 * 
+	 * @param levels
+	 *          Levels stored in the file, as returned by
+	 *          {@link #getPyramidLevels(LociImporterPlugin, int)}.
+	 * @param scaleFactor
+	 *          Requested scale factor with respect to the full resolution
+	 *          (e.g. 0.25 for resolution level 2).
+	 * @return The nearest level at or above the requested resolution.
+	 */
+	public static PyramidLevel getNearestPyramidLevel(List<PyramidLevel> levels, double scaleFactor) {
+		PyramidLevel nearestLevel = levels.get(0);
+		for (PyramidLevel level: levels) {
+			boolean hasEnoughResolution = level.getScaleX() * (1 + LEVEL_SCALE_TOLERANCE) >= scaleFactor
+					&& level.getScaleY() * (1 + LEVEL_SCALE_TOLERANCE) >= scaleFactor;
+			if (hasEnoughResolution && level.getScaleX() < nearestLevel.getScaleX()) {
+				nearestLevel = level;
+			}
+		}
+		return nearestLevel;
+	}
+
+	/**
+	 * Computes the scale factor left to apply on the pixels of a level. Factors
+	 * within the tolerance of {@link #getNearestPyramidLevel(List, double)} of
+	 * the inverse of an integer are snapped to it, so that a level slightly
+	 * smaller than the requested resolution is read as it is instead of being
+	 * upsampled.
+	 * 
+	 * @param level
+	 *          Level the pixels are read from.
+	 * @param scaleFactor
+	 *          Requested scale factor with respect to the full resolution.
+	 * @return The scale factor with respect to the level.
+	 */
+	public static double getRemainingScaleFactor(PyramidLevel level, double scaleFactor) {
+		double inverseScaleFactor = level.getScaleX() / scaleFactor;
+		long roundedFactor = Math.round(inverseScaleFactor);
+		if (roundedFactor >= 1 && Math.abs(inverseScaleFactor - roundedFactor) < LEVEL_SCALE_TOLERANCE * roundedFactor)
+			return 1d / roundedFactor;
+		return scaleFactor / level.getScaleX();
+	}
+
+	/**
+	 * Checks whether a region starts on the grid of blocks of
+	 * {@code factor x factor} pixels of a level. Only then can the pixels of the
+	 * level be box-filtered by blocks into the region without shifting it.
+	 * 
+	 * @param level
+	 *          Level the pixels are read from.
+	 * @param region
+	 *          Region in full resolution coordinates.
+	 * @param factor
+	 *          Downsampling factor applied on the pixels of the level.
+	 * @return True if the first pixel of the region in the level is a multiple
+	 *         of the factor on both axes.
+	 */
+	public static boolean isAlignedOnFactor(PyramidLevel level, Rectangle2D region, int factor) {
+		int x = (int) Math.floor(region.getX() * level.getScaleX());
+		int y = (int) Math.floor(region.getY() * level.getScaleY());
+		return Math.floorMod(x, factor) == 0 && Math.floorMod(y, factor) == 0;
+	}
+
+	/**
+	 * Reads a region of the image at the given stored level.
+	 * 
+	 * @param importer
+	 *          Importer with an opened file. This importer must not be used
+	 *          concurrently by other threads.
+	 * @param series
+	 *          Series of the image.
+	 * @param level
+	 *          Stored level to read from.
+	 * @param rectangle
+	 *          Region to read, in coordinates of the given level.
+	 * @param z
+	 *          Z position of the plane to read.
+	 * @param t
+	 *          T position of the plane to read.
+	 * @return Image containing all the channels of the specified region.
+	 * @throws UnsupportedFormatException
+	 *           If the file can't be read.
+	 * @throws IOException
+	 *           If the file doesn't exist.
+	 */
+	public static IcyBufferedImage getImage(LociImporterPlugin importer, int series, PyramidLevel level,
+			Rectangle rectangle, int z, int t) throws UnsupportedFormatException, IOException {
+		return getImage(importer, series, level, rectangle, z, t, null);
+	}
+
+	/**
+	 * Reads some channels of a region of the image at the given stored level.
+	 * When channels are stored in separate planes, only the planes of the
+	 * requested channels are read.
+	 * 
+	 * @param importer
+	 *          Importer with an opened file. This importer must not be used
+	 *          concurrently by other threads.
+	 * @param series
+	 *          Series of the image.
+	 * @param level
+	 *          Stored level to read from.
+	 * @param rectangle
+	 *          Region to read, in coordinates of the given level.
+	 * @param z
+	 *          Z position of the plane to read.
+	 * @param t
+	 *          T position of the plane to read.
+	 * @param channels
+	 *          Channels to read, in the order of the result channels, or null
+	 *          for all the channels.
+	 * @return Image containing the requested channels of the specified region.
+	 * @throws UnsupportedFormatException
+	 *           If the file can't be read.
+	 * @throws IOException
+	 *           If the file doesn't exist.
+	 */
+	public static IcyBufferedImage getImage(LociImporterPlugin importer, int series, PyramidLevel level,
+			Rectangle rectangle, int z, int t, int[] channels) throws UnsupportedFormatException, IOException {
+		if (level.getResolutionIndex() == 0 && (channels == null || importer.getReader() == null)) {
+			IcyBufferedImage image = importer.getImage(series, 0, rectangle, z, t);
+			if (channels == null)
+				return image;
+			return IcyBufferedImageUtil.extractChannels(image,
+					Arrays.stream(channels).boxed().collect(Collectors.toList()));
+		}
+
+		IFormatReader reader = importer.getReader();
+		if (reader == null)
+			throw new IOException("No reader available to read sub-resolution levels");
+
+		synchronized (reader) {
+			int previousSeries = reader.getSeries();
+			try {
+				reader.setSeries(series);
+				reader.setResolution(level.getResolutionIndex());
+				return readImage(reader, rectangle, z, t, channels);
+			} catch (FormatException e) {
+				throw new UnsupportedFormatException(
+						String.format("Could not read %s at resolution index %d", rectangle, level.getResolutionIndex()), e);
+			} finally {
+				reader.setSeries(previousSeries);
+			}
+		}
+	}
+
+	private static IcyBufferedImage readImage(IFormatReader reader, Rectangle rectangle, int z, int t, int[] channels)
+			throws FormatException, IOException {
+		int pixelType = reader.getPixelType();
+		int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+		boolean floatingPoint = FormatTools.isFloatingPoint(pixelType);
+		boolean littleEndian = reader.isLittleEndian();
+		boolean interleaved = reader.isInterleaved();
+		int samplesPerPlane = reader.getRGBChannelCount();
+		int planeLength = rectangle.width * rectangle.height;
+
+		if (channels == null) {
+			channels = new int[reader.getEffectiveSizeC() * samplesPerPlane];
+			for (int c = 0; c < channels.length; c++) {
+				channels[c] = c;
+			}
+		}
+
+		Object[] channelData = new Object[channels.length];
+		byte[][] planes = new byte[reader.getEffectiveSizeC()][];
+		for (int c = 0; c < channels.length; c++) {
+			int effectiveChannel = channels[c] / samplesPerPlane;
+			if (planes[effectiveChannel] == null) {
+				planes[effectiveChannel] = reader.openBytes(reader.getIndex(z, effectiveChannel, t), rectangle.x,
+						rectangle.y, rectangle.width, rectangle.height);
+			}
+			byte[] sampleBytes = getSampleBytes(planes[effectiveChannel], channels[c] % samplesPerPlane, samplesPerPlane,
+					bytesPerPixel, planeLength, interleaved);
+			channelData[c] = DataTools.makeDataArray(sampleBytes, bytesPerPixel, floatingPoint, littleEndian);
+		}
+		return new IcyBufferedImage(rectangle.width, rectangle.height, channelData, FormatTools.isSigned(pixelType));
+	}
+
+	private static byte[] getSampleBytes(byte[] planeBytes, int sample, int samplesPerPlane, int bytesPerPixel,
+			int planeLength, boolean interleaved) {
+		if (samplesPerPlane == 1)
+			return planeBytes;
+
+		int sampleLength = planeLength * bytesPerPixel;
+		if (!interleaved)
+			return Arrays.copyOfRange(planeBytes, sample * sampleLength, (sample + 1) * sampleLength);
+
+		byte[] sampleBytes = new byte[sampleLength];
+		int pixelStride = samplesPerPlane * bytesPerPixel;
+		for (int pixel = 0, src = sample * bytesPerPixel, dst = 0; pixel < planeLength; pixel++, src += pixelStride,
+				dst += bytesPerPixel) {
+			System.arraycopy(planeBytes, src, sampleBytes, dst, bytesPerPixel);
+		}
+		return sampleBytes;
+	}
 }
@@ -30,14 +30,11 @@ import java.nio.file.Path;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -67,12 +64,32 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 
 	private Path filePath;
 	private double targetResolution;
+	private double targetScale;
+	private Dimension targetSize;
 	private Rectangle2D targetPixelRectangle;
+	private int series;
+	private int z;
+	private int t;
+	private int[] channels;
 	private Set<DetailedProgressListener> progressListeners;
+	private boolean progressive;
+	private Set<StageListener> stageListeners;
+	private Set<TileListener> tileListeners;
+	private volatile boolean cancelled;
+	private volatile LargeSequenceImporter previewImporter;
 
 	private LociImporterPlugin importer;
 	private Dimension targetTileSize;
 	private Dimension targetImageSize;
+	private List<PyramidLevel> pyramidLevels;
+	private PyramidLevel sourceLevel;
+	private Rectangle2D sourcePixelRectangle;
+	private Dimension sourceImageSize;
+	private double sourceScaleFactor;
+	private int downsamplingFactor;
+	private Point sourceOrigin;
+	private TileDownsampler tileDownsampler;
+	private AreaAveragingResampler resampler;
 	private OMEXMLMetadata fileMetadata;
 	private int channelSize;
 	private DataType dataType;
@@ -80,21 +97,71 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 	private Dimension2D targetPixelSize;
 	private Point2D targetPosition;
 	private double scaleFactor;
+	private double scaleFactorX;
+	private double scaleFactorY;
 	private Rectangle tileGridRectangle;
 	private Dimension resultTileSize;
 	private Dimension resultImageSize;
 
-	private ThreadPoolExecutor threadPool;
-	private LociImporterPlugin[] subImporterArray;
-	private ArrayBlockingQueue<LociImporterPlugin> subImporters;
-	private int numImporters;
+	private TileTraversalOrder tileTraversalOrder;
+	private int tilesPerTask;
+	private int[] tileOrder;
+	private TileScheduler tileScheduler;
+	private boolean ownedTileScheduler;
+	private LargeSequenceReaderPool readerPool;
+	private SharedTileCache tileCache;
+	private PersistentTileCache persistentTileCache;
+	private TileKey.FileIdentity fileIdentity;
 
 	private IcyBufferedImage resultImage;
+	private Object[] resultData;
+	private ChannelBounds[] taskBounds;
 	private Sequence resultSequence;
 	private Double targetRectanglePosition;
 
+	/**
+	 * Listener notified each time a stage of a progressive importation is
+	 * available in the result sequence.
+	 */
+	@FunctionalInterface
+	public interface StageListener {
+		/**
+		 * @param sequence
+		 *          The result sequence. The same instance is given for all the
+		 *          stages and holds the full size image from the first stage.
+		 * @param stage
+		 *          Index of the stage, 0 being the coarsest one.
+		 * @param stageCount
+		 *          Number of stages. The last one has the requested resolution.
+		 */
+		void stageLoaded(Sequence sequence, int stage, int stageCount);
+	}
+
+	/**
+	 * Listener notified each time a region of the result image is written.
+	 */
+	@FunctionalInterface
+	public interface TileListener {
+		/**
+		 * Called on the thread that wrote the region, possibly concurrently for
+		 * other regions. The region must not be modified by the listener.
+		 *
+		 * @param image
+		 *          The result image. Its channel bounds and change events are only
+		 *          updated at the end of the importation.
+		 * @param region
+		 *          Region of the result image that is completely written.
+		 */
+		void tileLoaded(IcyBufferedImage image, Rectangle region);
+	}
+
 	public LargeSequenceImporter() {
 		progressListeners = new HashSet<>();
+		stageListeners = new HashSet<>();
+		tileListeners = new HashSet<>();
+		readerPool = LargeSequenceReaderPool.getInstance();
+		tileTraversalOrder = TileTraversalOrder.ROW_MAJOR;
+		tilesPerTask = 4;
 	}
 
 	public Path getFilePath() {
@@ -113,6 +180,38 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 		this.targetResolution = targetResolution;
 	}
 
+	public double getTargetScale() {
+		return targetScale;
+	}
+
+	/**
+	 * @param targetScale
+	 *          Scale of the result image relative to the full resolution image.
+	 *          Any positive value is accepted. When set, it is used instead of
+	 *          the target resolution. 0 (the default) means unset.
+	 */
+	public void setTargetScale(double targetScale) {
+		if (targetScale < 0)
+			throw new IllegalArgumentException("Negative target scale: " + targetScale);
+		this.targetScale = targetScale;
+	}
+
+	public Dimension getTargetSize() {
+		return (targetSize != null)? new Dimension(targetSize): null;
+	}
+
+	/**
+	 * @param targetSize
+	 *          Exact size of the result image. When set, it is used instead of
+	 *          the target scale and resolution, and both axes are scaled
+	 *          independently. Null (the default) means unset.
+	 */
+	public void setTargetSize(Dimension targetSize) {
+		if (targetSize != null && (targetSize.width <= 0 || targetSize.height <= 0))
+			throw new IllegalArgumentException("Invalid target size: " + targetSize);
+		this.targetSize = (targetSize != null)? new Dimension(targetSize): null;
+	}
+
 	public Rectangle2D getTargetRectangle() {
 		return targetPixelRectangle;
 	}
@@ -121,6 +220,173 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 		this.targetPixelRectangle = targetRectangle;
 	}
 
+	public int getSeries() {
+		return series;
+	}
+
+	/**
+	 * @param series
+	 *          Series of the file to import. 0 by default.
+	 */
+	public void setSeries(int series) {
+		this.series = series;
+	}
+
+	public int getZ() {
+		return z;
+	}
+
+	/**
+	 * @param z
+	 *          Z position of the plane to import. 0 by default.
+	 */
+	public void setZ(int z) {
+		this.z = z;
+	}
+
+	public int getT() {
+		return t;
+	}
+
+	/**
+	 * @param t
+	 *          T position of the plane to import. 0 by default.
+	 */
+	public void setT(int t) {
+		this.t = t;
+	}
+
+	public int[] getChannels() {
+		return (channels != null)? channels.clone(): null;
+	}
+
+	/**
+	 * @param channels
+	 *          Channels to import, in the order of the result channels. Null
+	 *          (the default) imports all the channels. When channels are stored
+	 *          in separate planes, only the planes of these channels are read.
+	 */
+	public void setChannels(int[] channels) {
+		this.channels = (channels != null)? channels.clone(): null;
+	}
+
+	public LargeSequenceReaderPool getReaderPool() {
+		return readerPool;
+	}
+
+	/**
+	 * @param readerPool
+	 *          Pool from which file readers are borrowed. By default the process
+	 *          wide pool is used.
+	 */
+	public void setReaderPool(LargeSequenceReaderPool readerPool) {
+		this.readerPool = readerPool;
+	}
+
+	public SharedTileCache getTileCache() {
+		return tileCache;
+	}
+
+	/**
+	 * @param tileCache
+	 *          Cache in which read blocks are looked up and stored, e.g.
+	 *          {@link SharedTileCache#getInstance()}. Null (the default) reads all
+	 *          the blocks from the file.
+	 */
+	public void setTileCache(SharedTileCache tileCache) {
+		this.tileCache = tileCache;
+	}
+
+	public PersistentTileCache getPersistentTileCache() {
+		return persistentTileCache;
+	}
+
+	/**
+	 * @param persistentTileCache
+	 *          Directory cache in which read blocks are looked up after the tile
+	 *          cache, and stored, so that they are reused across sessions. Null
+	 *          (the default) disables it.
+	 */
+	public void setPersistentTileCache(PersistentTileCache persistentTileCache) {
+		this.persistentTileCache = persistentTileCache;
+	}
+
+	public TileTraversalOrder getTileTraversalOrder() {
+		return tileTraversalOrder;
+	}
+
+	/**
+	 * @param tileTraversalOrder
+	 *          Order in which tiles are read. Row major by default.
+	 */
+	public void setTileTraversalOrder(TileTraversalOrder tileTraversalOrder) {
+		this.tileTraversalOrder = tileTraversalOrder;
+	}
+
+	public int getTilesPerTask() {
+		return tilesPerTask;
+	}
+
+	/**
+	 * @param tilesPerTask
+	 *          Amount of consecutive tiles, in traversal order, read by the same
+	 *          thread with the same reader. 4 by default.
+	 */
+	public void setTilesPerTask(int tilesPerTask) {
+		if (tilesPerTask < 1)
+			throw new IllegalArgumentException("At least one tile per task is needed: " + tilesPerTask);
+		this.tilesPerTask = tilesPerTask;
+	}
+
+	public TileScheduler getTileScheduler() {
+		return tileScheduler;
+	}
+
+	/**
+	 * @param tileScheduler
+	 *          Scheduler running the tile reads. It is not closed by the
+	 *          importer. By default each importation uses its own scheduler.
+	 */
+	public void setTileScheduler(TileScheduler tileScheduler) {
+		this.tileScheduler = tileScheduler;
+	}
+
+	public boolean isProgressive() {
+		return progressive;
+	}
+
+	/**
+	 * @param progressive
+	 *          If true, the image is first imported from the smallest pyramid
+	 *          level and then refined in stages up to the target resolution. Each
+	 *          stage updates the same result sequence and is notified to the
+	 *          stage listeners. False by default.
+	 */
+	public void setProgressive(boolean progressive) {
+		this.progressive = progressive;
+	}
+
+	public void addStageListener(StageListener stageListener) {
+		this.stageListeners.add(stageListener);
+	}
+
+	public void removeStageListener(StageListener stageListener) {
+		this.stageListeners.remove(stageListener);
+	}
+
+	/**
+	 * @param tileListener
+	 *          Listener notified of each written region. Listeners must be added
+	 *          before the importation starts.
+	 */
+	public void addTileListener(TileListener tileListener) {
+		this.tileListeners.add(tileListener);
+	}
+
+	public void removeTileListener(TileListener tileListener) {
+		this.tileListeners.remove(tileListener);
+	}
+
 	public void addProgressListener(DetailedProgressListener progressListener) {
 		this.progressListeners.add(progressListener);
 	}
@@ -129,17 +395,96 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 		this.progressListeners.remove(progressListener);
 	}
 
+	/**
+	 * Runs the importation on a new thread.
+	 *
+	 * @return A future completed with the result sequence. Cancelling it cancels
+	 *         the importation as {@link #cancel()} does.
+	 */
+	public CompletableFuture<Sequence> callAsync() {
+		return callAsync(command -> {
+			Thread thread = new Thread(command, "LargeSequenceImporter");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+
+	/**
+	 * Runs the importation on the given executor. The executor thread waits for
+	 * the tile reads, which run on the tile scheduler.
+	 *
+	 * @param executor
+	 *          Executor running the importation.
+	 * @return A future completed with the result sequence. Cancelling it cancels
+	 *         the importation as {@link #cancel()} does.
+	 */
+	public CompletableFuture<Sequence> callAsync(Executor executor) {
+		CompletableFuture<Sequence> future = new CompletableFuture<Sequence>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				LargeSequenceImporter.this.cancel();
+				return super.cancel(mayInterruptIfRunning);
+			}
+		};
+		executor.execute(() -> {
+			try {
+				future.complete(call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Cancels the importation. No tile is started after this call, tiles being
+	 * read are abandoned as soon as their current read returns and their readers
+	 * go back to the pool. The importation then fails with a
+	 * {@link CancellationException}. A cancelled importer cannot be used again.
+	 */
+	public void cancel() {
+		cancelled = true;
+		LargeSequenceImporter currentPreviewImporter = previewImporter;
+		if (currentPreviewImporter != null)
+			currentPreviewImporter.cancel();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	private void checkCancelled() throws CancellationException {
+		if (cancelled)
+			throw new CancellationException("Importation cancelled");
+	}
+
 	@Override
 	public Sequence call() throws Exception {
+		checkCancelled();
 		checkParameters();
 		createLociImporter();
 		try {
 			adjustParameters();
-			computeImage();
-			return getResultSequence();
 		} finally {
 			closeLociImporter();
 		}
+		checkCancelled();
+		createResultImage();
+		createResultSequence();
+		startTileScheduler();
+		try {
+			double[] previewScales = computePreviewScales();
+			for (int stage = 0; stage < previewScales.length; stage++) {
+				importPreview(previewScales[stage]);
+				checkCancelled();
+				notifyStageLoaded(stage, previewScales.length + 1);
+			}
+			computeImage();
+			notifyStageLoaded(previewScales.length, previewScales.length + 1);
+		} finally {
+			releaseTileScheduler();
+		}
+		return getResultSequence();
 	}
 
 	private void checkParameters() throws LargeSequenceImporterException {
@@ -161,17 +506,18 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 	 *           If the importer cannot be opened.
 	 */
 	private void createLociImporter() throws LargeSequenceImporterException {
-		importer = new LociImporterPlugin();
 		try {
-			importer.open(getFilePath().toString(), LociImporterPlugin.FLAG_METADATA_ALL);
+			if (tileCache != null || persistentTileCache != null)
+				fileIdentity = TileKey.FileIdentity.of(getFilePath());
+			importer = readerPool.borrowReader(getFilePath());
 		} catch (UnsupportedFormatException | IOException e) {
-			throw new LargeSequenceImporterException(String.format("Could not open the file: %s", getFilePath()));
+			throw new LargeSequenceImporterException(String.format("Could not open the file: %s", getFilePath()), e);
 		}
 	}
 
 	private void adjustParameters() {
-		computeTileSize();
 		retrieveFileMetadata();
+		checkPlaneSelection();
 		adjustRetrievedRectangle();
 		retrieveTargetChannelSize();
 		retrieveTargetDataType();
@@ -180,32 +526,28 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 		retrieveTargetPosition();
 		computeTargetRectanglePosition();
 		retrieveScaleFactor();
-		computeRetrievedTileGrid();
-		computeRetrievedTileSize();
+		retrievePyramidLevels();
+		selectSourceLevel();
+		computeDownsamplingFactor();
 		computeRetrievedImageSize();
+		computeTileSize();
+		computeSourceRectangle();
+		computeRetrievedTileSize();
+		computeRetrievedTileGrid();
+		computeTileOrder();
 	}
 
-	/**
-	 * @throws LargeSequenceImporterException
-	 *           If the tile size cannot be read.
-	 */
-	private void computeTileSize() throws LargeSequenceImporterException {
-		try {
-			targetTileSize = new Dimension();
-			targetTileSize.width = importer.getTileWidth(0);
-			targetTileSize.height = importer.getTileHeight(0);
-		} catch (UnsupportedFormatException | IOException e) {
-			throw new LargeSequenceImporterException("Could not specify the tile size", e);
-		}
-		
-		if (targetTileSize.width <= 0)
-			targetTileSize.width = 256;
-		if (targetTileSize.height <= 0)
-			targetTileSize.height = 256;
-		
-		if (targetTileSize.width > 2048 || targetTileSize.height > 2048) {
-			targetTileSize.width = 256;
-			targetTileSize.height = 256;
+	private void computeTileSize() {
+		TileReadPlanner readPlanner = new TileReadPlanner(sourceLevel.getSize(), sourceLevel.getTileSize(),
+				channelSize * dataType.getSize());
+		targetTileSize = readPlanner.getReadBlockSize();
+
+		if (isUsingFusedReads()) {
+			// Tiles are aligned on the downsampling factor so that each result pixel comes from a single tile.
+			targetTileSize.width = ((targetTileSize.width + downsamplingFactor - 1) / downsamplingFactor)
+					* downsamplingFactor;
+			targetTileSize.height = ((targetTileSize.height + downsamplingFactor - 1) / downsamplingFactor)
+					* downsamplingFactor;
 		}
 	}
 
@@ -217,9 +559,36 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 		}
 	}
 
+	/**
+	 * @throws LargeSequenceImporterException
+	 *           If the selected series, plane or channels are not in the file.
+	 */
+	private void checkPlaneSelection() throws LargeSequenceImporterException {
+		if (series < 0 || series >= fileMetadata.getImageCount())
+			throw new LargeSequenceImporterException(
+					String.format("Series %d not in file (%d series)", series, fileMetadata.getImageCount()));
+
+		int sizeZ = fileMetadata.getPixelsSizeZ(series).getValue();
+		int sizeT = fileMetadata.getPixelsSizeT(series).getValue();
+		if (z < 0 || z >= sizeZ || t < 0 || t >= sizeT)
+			throw new LargeSequenceImporterException(
+					String.format("Plane (z=%d, t=%d) not in series %d (%d z, %d t)", z, t, series, sizeZ, sizeT));
+
+		if (channels != null) {
+			int sizeC = fileMetadata.getPixelsSizeC(series).getValue();
+			if (channels.length == 0)
+				throw new LargeSequenceImporterException("At least one channel must be imported");
+			for (int channel: channels) {
+				if (channel < 0 || channel >= sizeC)
+					throw new LargeSequenceImporterException(
+							String.format("Channel %d not in series %d (%d channels)", channel, series, sizeC));
+			}
+		}
+	}
+
 	private void adjustRetrievedRectangle() {
-		int imageWidth = fileMetadata.getPixelsSizeX(0).getValue();
-		int imageHeight = fileMetadata.getPixelsSizeY(0).getValue();
+		int imageWidth = fileMetadata.getPixelsSizeX(series).getValue();
+		int imageHeight = fileMetadata.getPixelsSizeY(series).getValue();
 		targetImageSize = new Dimension(imageWidth, imageHeight);
 		if (getTargetRectangle() == null || getTargetRectangle().isEmpty()) {
 			setTargetPixelRectangle(new Rectangle(targetImageSize));
@@ -229,26 +598,26 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 	}
 
 	private void retrieveTargetChannelSize() {
-		channelSize = fileMetadata.getPixelsSizeC(0).getValue();
+		channelSize = (channels != null)? channels.length: fileMetadata.getPixelsSizeC(series).getValue();
 	}
 
 	private void retrieveTargetDataType() {
-		dataType = DataType.getDataTypeFromPixelType(fileMetadata.getPixelsType(0));
+		dataType = DataType.getDataTypeFromPixelType(fileMetadata.getPixelsType(series));
 	}
 
 	private void retrieveTargetImageName() {
-		targetImageName = MetaDataUtil.getName(fileMetadata, 0);
+		targetImageName = MetaDataUtil.getName(fileMetadata, series);
 	}
 
 	private void retrieveTargetPixelSize() {
-		targetPixelSize = new Dimension2D.Double(OMEUtil.getValue(fileMetadata.getPixelsPhysicalSizeX(0), 1),
-				OMEUtil.getValue(fileMetadata.getPixelsPhysicalSizeY(0), 1));
+		targetPixelSize = new Dimension2D.Double(OMEUtil.getValue(fileMetadata.getPixelsPhysicalSizeX(series), 1),
+				OMEUtil.getValue(fileMetadata.getPixelsPhysicalSizeY(series), 1));
 	}
 
 	private void retrieveTargetPosition() {
-		if (fileMetadata.getPlaneCount(0) > 0) {
-			targetPosition = new Point2D.Double(OMEUtil.getValue(fileMetadata.getPlanePositionX(0, 0), 0),
-					OMEUtil.getValue(fileMetadata.getPlanePositionY(0, 0), 0));
+		if (fileMetadata.getPlaneCount(series) > 0) {
+			targetPosition = new Point2D.Double(OMEUtil.getValue(fileMetadata.getPlanePositionX(series, 0), 0),
+					OMEUtil.getValue(fileMetadata.getPlanePositionY(series, 0), 0));
 		} else {
 			targetPosition = new Point2D.Double();
 		}
@@ -260,193 +629,389 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 				targetPosition.getY() + targetPixelRectangle.getY() * targetPixelSize.getHeight());
 	}
 
+	/**
+	 * The target size has priority over the target scale, which has priority
+	 * over the target resolution. The largest axis factor is used to select the
+	 * source level so that no axis is upsampled from a coarser level.
+	 */
 	private void retrieveScaleFactor() {
-		scaleFactor = 1d;
-		scaleFactor /= Math.pow(2, targetResolution);
+		if (targetSize != null) {
+			scaleFactorX = targetSize.width / getTargetRectangle().getWidth();
+			scaleFactorY = targetSize.height / getTargetRectangle().getHeight();
+		} else if (targetScale > 0) {
+			scaleFactorX = targetScale;
+			scaleFactorY = targetScale;
+		} else {
+			scaleFactorX = 1d / Math.pow(2, targetResolution);
+			scaleFactorY = scaleFactorX;
+		}
+		scaleFactor = Math.max(scaleFactorX, scaleFactorY);
+	}
+
+	/**
+	 * @throws LargeSequenceImporterException
+	 *           If the resolution levels of the file cannot be read.
+	 */
+	private void retrievePyramidLevels() throws LargeSequenceImporterException {
+		try {
+			pyramidLevels = LargeSequenceHelper.getPyramidLevels(importer, series);
+		} catch (UnsupportedFormatException | IOException e) {
+			throw new LargeSequenceImporterException("Could not retrieve the resolution levels of the file", e);
+		}
+	}
+
+	/**
+	 * Selects the coarsest level stored in the file that has at least the
+	 * target resolution. Only the remaining scale factor is applied on tiles.
+	 */
+	private void selectSourceLevel() {
+		sourceLevel = LargeSequenceHelper.getNearestPyramidLevel(pyramidLevels, scaleFactor);
+		sourceScaleFactor = LargeSequenceHelper.getRemainingScaleFactor(sourceLevel, scaleFactor);
+		sourceImageSize = sourceLevel.getSize();
+	}
+
+	/**
+	 * Tiles are decoded and box-filtered straight into the result image when the
+	 * remaining scale factor is the same on both axes and the inverse of an
+	 * integer, and the target rectangle starts on a block of this factor.
+	 * Otherwise the result image is computed by area averaging, which keeps it
+	 * at its reported position.
+	 */
+	private void computeDownsamplingFactor() {
+		double inverseScaleFactor = 1d / sourceScaleFactor;
+		long roundedFactor = Math.round(inverseScaleFactor);
+		if (importer.getReader() != null && targetSize == null && roundedFactor >= 1
+				&& Math.abs(inverseScaleFactor - roundedFactor) < 1e-3
+				&& LargeSequenceHelper.isAlignedOnFactor(sourceLevel, getTargetRectangle(), (int) roundedFactor)) {
+			downsamplingFactor = (int) roundedFactor;
+		} else {
+			downsamplingFactor = 0;
+		}
+	}
+
+	private boolean isUsingFusedReads() {
+		return downsamplingFactor > 0;
+	}
+
+	private void computeSourceRectangle() {
+		sourcePixelRectangle = new Rectangle2D.Double(getTargetRectangle().getX() * sourceLevel.getScaleX(),
+				getTargetRectangle().getY() * sourceLevel.getScaleY(),
+				getTargetRectangle().getWidth() * sourceLevel.getScaleX(),
+				getTargetRectangle().getHeight() * sourceLevel.getScaleY());
+		sourcePixelRectangle = sourcePixelRectangle.createIntersection(new Rectangle(sourceImageSize));
+		if (isUsingFusedReads()) {
+			sourceOrigin = new Point(
+					Math.floorDiv((int) sourcePixelRectangle.getX(), downsamplingFactor) * downsamplingFactor,
+					Math.floorDiv((int) sourcePixelRectangle.getY(), downsamplingFactor) * downsamplingFactor);
+		}
 	}
 
 	private void computeRetrievedTileGrid() {
-		int xStart = (int) (getTargetRectangle().getMinX());
-		int xEnd = (int) Math.ceil(getTargetRectangle().getMaxX()) - 1;
+		if (!isUsingFusedReads()) {
+			// Tiles are blocks of the result image.
+			tileGridRectangle = new Rectangle(0, 0,
+					(resultImageSize.width + resultTileSize.width - 1) / resultTileSize.width,
+					(resultImageSize.height + resultTileSize.height - 1) / resultTileSize.height);
+			return;
+		}
+
+		int xStart = (int) (sourcePixelRectangle.getMinX());
+		int xEnd = (int) Math.ceil(sourcePixelRectangle.getMaxX()) - 1;
 		int xStartTile = xStart / targetTileSize.width;
-		int xEndTile = (xEnd + targetTileSize.width - 1) / targetTileSize.width;
+		int xEndTile = xEnd / targetTileSize.width + 1;
 
-		int yStart = (int) (getTargetRectangle().getMinY());
-		int yEnd = (int) Math.ceil(getTargetRectangle().getMaxY()) - 1;
+		int yStart = (int) (sourcePixelRectangle.getMinY());
+		int yEnd = (int) Math.ceil(sourcePixelRectangle.getMaxY()) - 1;
 		int yStartTile = yStart / targetTileSize.height;
-		int yEndTile = (yEnd + targetTileSize.height - 1) / targetTileSize.height;
+		int yEndTile = yEnd / targetTileSize.height + 1;
 
 		tileGridRectangle = new Rectangle(xStartTile, yStartTile, xEndTile - xStartTile, yEndTile - yStartTile);
 	}
 
+	private void computeTileOrder() {
+		NativeTileLayout nativeLayout = null;
+		if (tileTraversalOrder.isUsingNativeLayout() && isUsingFusedReads()) {
+			try {
+				nativeLayout = NativeTileLayout.read(getFilePath(), sourceLevel.getSize());
+			} catch (IOException e) {
+				// Not a readable TIFF, the traversal order falls back to row major.
+			}
+		}
+		tileOrder = tileTraversalOrder.getTileOrder(tileGridRectangle,
+				isUsingFusedReads()? targetTileSize: resultTileSize, nativeLayout);
+	}
+
+	/**
+	 * Result blocks are sized so that their source pixels fit in a read block.
+	 */
 	private void computeRetrievedTileSize() {
-		int resultTileWidth = (int) Math.ceil(targetTileSize.width * scaleFactor);
-		int resultTileHeight = (int) Math.ceil(targetTileSize.height * scaleFactor);
-		resultTileSize = new Dimension(resultTileWidth, resultTileHeight);
+		double blockScaleX = resultImageSize.width / sourcePixelRectangle.getWidth();
+		double blockScaleY = resultImageSize.height / sourcePixelRectangle.getHeight();
+		int resultTileWidth = (int) Math.max(1, Math.floor(targetTileSize.width * blockScaleX));
+		int resultTileHeight = (int) Math.max(1, Math.floor(targetTileSize.height * blockScaleY));
+		resultTileSize = new Dimension(Math.min(resultTileWidth, resultImageSize.width),
+				Math.min(resultTileHeight, resultImageSize.height));
 	}
 
 	private void computeRetrievedImageSize() {
-		int resultWidth = (int) (getTargetRectangle().getWidth() * scaleFactor);
-		int resultHeight = (int) (getTargetRectangle().getHeight() * scaleFactor);
-		resultImageSize = new Dimension(resultWidth, resultHeight);
+		if (targetSize != null) {
+			resultImageSize = new Dimension(targetSize);
+		} else {
+			int resultWidth = (int) (getTargetRectangle().getWidth() * scaleFactorX);
+			int resultHeight = (int) (getTargetRectangle().getHeight() * scaleFactorY);
+			resultImageSize = new Dimension(Math.max(1, resultWidth), Math.max(1, resultHeight));
+		}
+		scaleFactorX = resultImageSize.width / getTargetRectangle().getWidth();
+		scaleFactorY = resultImageSize.height / getTargetRectangle().getHeight();
 	}
 
+	/**
+	 * Workers write disjoint regions of the result arrays without touching the
+	 * image object. Each task accumulates the channel bounds of its regions, they
+	 * are merged once all tasks are done and a single change event is fired.
+	 */
 	private void computeImage() throws InterruptedException, LargeSequenceImporterException {
-		createResultImage();
-		resultImage.setAutoUpdateChannelBounds(true);
-		resultImage.beginUpdate();
-		startSubImporters();
-		startThreadPool();
-		CompletionService<Void> completionService = new ExecutorCompletionService<>(threadPool);
 		try {
-			for (int y = 0; y < tileGridRectangle.height; y++) {
-				for (int x = 0; x < tileGridRectangle.width; x++) {
-					completionService.submit(getTileImportationCallable(x, y));
-				}
-			}
-
-			threadPool.shutdown();
-
-			int tileNumber = 0;
-			for (int y = 0; y < tileGridRectangle.height; y++) {
-				for (int x = 0; x < tileGridRectangle.width; x++) {
-					completionService.take().get();
-					notifyProgress(tileNumber++);
-				}
-			}
-			resultImage.endUpdate();
-			resultSequence = new Sequence(resultImage);
-			resultSequence.setName(targetImageName);
-			resultSequence.setPositionX(targetRectanglePosition.getX());
-			resultSequence.setPositionY(targetRectanglePosition.getY());
-			resultSequence.setPixelSizeX(targetPixelSize.getWidth() / scaleFactor);
-			resultSequence.setPixelSizeY(targetPixelSize.getHeight() / scaleFactor);
+			int taskCount = (tileOrder.length + tilesPerTask - 1) / tilesPerTask;
+			taskBounds = new ChannelBounds[taskCount];
+			tileScheduler.run(taskCount, this::importTiles,
+					finishedTasks -> notifyProgress(Math.min(finishedTasks * tilesPerTask, tileOrder.length)));
+			updateResultImage();
 			addROIsToResultSequence();
 		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CancellationException)
+				throw (CancellationException) e.getCause();
 			throw new LargeSequenceImporterException("Exception while importing image: " + e);
 		} finally {
-			try {
-				releaseThreadPool();
-			} finally {
-				closeSubImporters();
-			}
+			taskBounds = null;
 		}
 
 	}
 
-	private void createResultImage() {
-		resultImage = new IcyBufferedImage(resultImageSize.width, resultImageSize.height, channelSize, dataType);
+	/**
+	 * Preview stages start at the smallest pyramid level and get 4 times finer
+	 * at each stage, so that all the previews together cost a fraction of the
+	 * final stage.
+	 */
+	private double[] computePreviewScales() {
+		if (!progressive)
+			return new double[0];
+
+		double coarsestScale = pyramidLevels.stream().mapToDouble(PyramidLevel::getScaleX).min().orElse(1d);
+		int stageCount = 0;
+		while (scaleFactor / Math.pow(4, stageCount + 1) >= coarsestScale * 0.99) {
+			stageCount++;
+		}
+		double[] previewScales = new double[stageCount];
+		for (int stage = 0; stage < stageCount; stage++) {
+			previewScales[stage] = scaleFactor / Math.pow(4, stageCount - stage);
+		}
+		return previewScales;
 	}
 
-	private void startSubImporters() throws LargeSequenceImporterException {
-		if (subImporters == null) {
-			numImporters = Runtime.getRuntime().availableProcessors() * 2;
-			subImporterArray = new LociImporterPlugin[numImporters];
-			subImporters = new ArrayBlockingQueue<>(numImporters);
-
-			for (int i = 0; i < numImporters; i++) {
-				try {
-					LociImporterPlugin subImporter = new LociImporterPlugin();
-					subImporter.open(filePath.toString(), LociImporterPlugin.FLAG_METADATA_ALL);
-					subImporterArray[i] = subImporter;
-					subImporters.add(subImporter);
-				} catch (IOException | UnsupportedFormatException e) {
-					closeSubImporters();
-					throw new LargeSequenceImporterException("Could not create subimporters", e);
-				}
+	/**
+	 * Imports the image at a lower scale and stretches it on the result image.
+	 */
+	private void importPreview(double previewScale) throws Exception {
+		LargeSequenceImporter previewImporter = new LargeSequenceImporter();
+		previewImporter.setFilePath(getFilePath());
+		previewImporter.setTargetPixelRectangle(getTargetRectangle());
+		previewImporter.setTargetScale(previewScale);
+		previewImporter.setSeries(series);
+		previewImporter.setZ(z);
+		previewImporter.setT(t);
+		previewImporter.setChannels(channels);
+		previewImporter.setTileTraversalOrder(tileTraversalOrder);
+		previewImporter.setTilesPerTask(tilesPerTask);
+		previewImporter.setTileScheduler(tileScheduler);
+		previewImporter.setReaderPool(readerPool);
+		previewImporter.setTileCache(tileCache);
+		previewImporter.setPersistentTileCache(persistentTileCache);
+		this.previewImporter = previewImporter;
+		IcyBufferedImage previewImage;
+		try {
+			if (cancelled)
+				previewImporter.cancel();
+			previewImage = previewImporter.call().getFirstImage();
+		} finally {
+			this.previewImporter = null;
+		}
+
+		IcyBufferedImage stretchedImage = IcyBufferedImageUtil.scale(previewImage, resultImageSize.width,
+				resultImageSize.height);
+		resultImage.beginUpdate();
+		try {
+			resultImage.copyData(stretchedImage, null, new Point());
+			for (int c = 0; c < channelSize; c++) {
+				resultImage.setChannelBounds(c, previewImage.getChannelBounds(c));
 			}
+			resultImage.dataChanged();
+		} finally {
+			resultImage.endUpdate();
 		}
 	}
 
-	private void startThreadPool() {
-		int threadNumber = Runtime.getRuntime().availableProcessors() * 2;
-		threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadNumber);
-		threadPool.prestartAllCoreThreads();
+	private void notifyTileLoaded(Rectangle resultRegion) {
+		if (resultRegion.isEmpty())
+			return;
+		tileListeners.forEach(l -> l.tileLoaded(resultImage, resultRegion));
 	}
 
-	private Callable<Void> getTileImportationCallable(int x, int y) {
-		return () -> {
-			Thread.yield();
-			Rectangle currentTileRectangle = getTileRectangle(x, y);
-			Dimension currentResultTileSize = new Dimension(resultTileSize);
-
-			if (currentTileRectangle.width < targetTileSize.width)
-				currentResultTileSize.width = (int) Math.ceil(currentTileRectangle.width * scaleFactor);
-			if (currentTileRectangle.height < targetTileSize.height)
-				currentResultTileSize.height = (int) Math.ceil(currentTileRectangle.height * scaleFactor);
+	private void notifyStageLoaded(int stage, int stageCount) {
+		stageListeners.forEach(l -> l.stageLoaded(getResultSequence(), stage, stageCount));
+	}
 
-			// System.out.println(currentTileRectangle);
-			LociImporterPlugin subImporter = getSubImporter();
-			IcyBufferedImage tileImage;
-			try {
-				tileImage = subImporter.getImage(0, 0, currentTileRectangle, 0, 0);
-			} finally {
-				releaseSubImporter(subImporter);
-			}
-			Thread.yield();
-			IcyBufferedImage scaledImage = IcyBufferedImageUtil.scale(tileImage, currentResultTileSize.width,
-					currentResultTileSize.height);
-			Point tilePosition = getTilePositionInResultImage(x, y);
-			resultImage.copyData(scaledImage, null, tilePosition);
+	private void updateResultImage() {
+		ChannelBounds bounds = new ChannelBounds(channelSize);
+		for (ChannelBounds currentTaskBounds: taskBounds) {
+			bounds.merge(currentTaskBounds);
+		}
+		resultImage.beginUpdate();
+		try {
+			bounds.applyTo(resultImage);
 			resultImage.dataChanged();
-			return null;
-		};
+		} finally {
+			resultImage.endUpdate();
+		}
+		// Bounds follow later edits of the returned image, as for any other image
+		resultImage.setAutoUpdateChannelBounds(true);
 	}
 
-	private Rectangle getTileRectangle(int x, int y) {
-		Rectangle tileRectangle = new Rectangle((tileGridRectangle.x + x) * targetTileSize.width,
-				(tileGridRectangle.y + y) * targetTileSize.height, targetTileSize.width, targetTileSize.height);
+	private void createResultImage() {
+		resultImage = new IcyBufferedImage(resultImageSize.width, resultImageSize.height, channelSize, dataType);
+		resultImage.setAutoUpdateChannelBounds(false);
+		resultData = new Object[channelSize];
+		for (int c = 0; c < channelSize; c++) {
+			resultData[c] = resultImage.getDataXY(c);
+		}
+		if (isUsingFusedReads()) {
+			tileDownsampler = new TileDownsampler(dataType, downsamplingFactor, resultData, resultImageSize.width,
+					resultImageSize.height, channels);
+		} else {
+			resampler = new AreaAveragingResampler(dataType, resultData, resultImageSize.width, resultImageSize.height,
+					sourcePixelRectangle, sourceImageSize);
+		}
+	}
 
-		if (targetImageSize.getWidth() < tileRectangle.getMaxX())
-			tileRectangle.width -= (int) Math.ceil(tileRectangle.getMaxX() - targetImageSize.getWidth());
-		if (targetImageSize.getHeight() < tileRectangle.getMaxY())
-			tileRectangle.height -= (int) Math.ceil(tileRectangle.getMaxY() - targetImageSize.getHeight());
+	private void createResultSequence() {
+		resultSequence = new Sequence(resultImage);
+		resultSequence.setName(targetImageName);
+		resultSequence.setPositionX(targetRectanglePosition.getX());
+		resultSequence.setPositionY(targetRectanglePosition.getY());
+		resultSequence.setPixelSizeX(targetPixelSize.getWidth() / scaleFactorX);
+		resultSequence.setPixelSizeY(targetPixelSize.getHeight() / scaleFactorY);
+	}
 
-		return tileRectangle;
+	private void startTileScheduler() {
+		ownedTileScheduler = (tileScheduler == null);
+		if (ownedTileScheduler)
+			tileScheduler = new TileScheduler();
+		// Tasks blocked on the reader pool must not raise the parallelism
+		tileScheduler.setAdaptiveLimit(readerPool.getMaxOpenReaders());
 	}
 
-	private LociImporterPlugin getSubImporter() throws InterruptedException {
-		return subImporters.take();
+	/**
+	 * Reads a run of consecutive tiles in traversal order with a single reader,
+	 * so that read-ahead and decoder state are reused between neighbour tiles.
+	 */
+	private void importTiles(int taskIndex) throws Exception {
+		int gridWidth = tileGridRectangle.width;
+		int firstTile = taskIndex * tilesPerTask;
+		int lastTile = Math.min(firstTile + tilesPerTask, tileOrder.length);
+		ChannelBounds bounds = new ChannelBounds(channelSize);
+		LociImporterPlugin subImporter = getSubImporter();
+		try {
+			for (int i = firstTile; i < lastTile; i++) {
+				checkCancelled();
+				int x = tileOrder[i] % gridWidth;
+				int y = tileOrder[i] / gridWidth;
+				Rectangle resultRegion;
+				if (isUsingFusedReads())
+					resultRegion = importFusedTile(subImporter, x, y);
+				else
+					resultRegion = importResampledTile(subImporter, x, y);
+				bounds.update(resultData, dataType, resultImageSize.width, resultRegion);
+				notifyTileLoaded(resultRegion);
+			}
+		} finally {
+			releaseSubImporter(subImporter);
+		}
+		// Each task owns its slot, the scheduler publishes it when the task ends.
+		taskBounds[taskIndex] = bounds;
 	}
 
-	private void releaseSubImporter(LociImporterPlugin subImporter) throws InterruptedException {
-		subImporters.put(subImporter);
+	/**
+	 * @return The region of the result image written by the tile.
+	 */
+	private Rectangle importFusedTile(LociImporterPlugin subImporter, int x, int y) throws Exception {
+		int tileX = (tileGridRectangle.x + x) * targetTileSize.width;
+		int tileY = (tileGridRectangle.y + y) * targetTileSize.height;
+		int tileWidth = Math.min(targetTileSize.width, sourceImageSize.width - tileX);
+		int tileHeight = Math.min(targetTileSize.height, sourceImageSize.height - tileY);
+		int resultX = (tileX - sourceOrigin.x) / downsamplingFactor;
+		int resultY = (tileY - sourceOrigin.y) / downsamplingFactor;
+
+		if (tileCache != null || persistentTileCache != null) {
+			IcyBufferedImage tileImage = readBlock(subImporter, new Rectangle(tileX, tileY, tileWidth, tileHeight));
+			tileDownsampler.write(TileDownsampler.wrap(tileImage, channels), resultX, resultY);
+		} else {
+			tileDownsampler.read(subImporter.getReader(), series, sourceLevel.getResolutionIndex(), z, t, tileX, tileY,
+					tileWidth, tileHeight, resultX, resultY);
+		}
+		Rectangle resultRegion = new Rectangle(resultX, resultY, (tileWidth + downsamplingFactor - 1) / downsamplingFactor,
+				(tileHeight + downsamplingFactor - 1) / downsamplingFactor);
+		return resultRegion.intersection(new Rectangle(resultImageSize));
 	}
 
-	private Point getTilePositionInResultImage(int x, int y) {
-		Point tilePositionInTargetImage = getTilePositionInTargetImage(x, y);
-		int tileX = (int) ((tilePositionInTargetImage.x - targetPixelRectangle.getX()) * scaleFactor);
-		int tileY = (int) ((tilePositionInTargetImage.y - targetPixelRectangle.getY()) * scaleFactor);
-		return new Point(tileX, tileY);
+	/**
+	 * Computes a block of the result image from the source pixels it covers.
+	 * Source pixels shared with neighbour blocks are read by both.
+	 *
+	 * @return The region of the result image written by the block.
+	 */
+	private Rectangle importResampledTile(LociImporterPlugin subImporter, int x, int y) throws Exception {
+		int blockX = x * resultTileSize.width;
+		int blockY = y * resultTileSize.height;
+		Rectangle resultBlock = new Rectangle(blockX, blockY, Math.min(resultTileSize.width, resultImageSize.width - blockX),
+				Math.min(resultTileSize.height, resultImageSize.height - blockY));
+		Rectangle sourceRectangle = resampler.getSourceRectangle(resultBlock);
+
+		IcyBufferedImage tileImage = readBlock(subImporter, sourceRectangle);
+		resampler.resample(tileImage, sourceRectangle, resultBlock);
+		return resultBlock;
 	}
 
-	private Point getTilePositionInTargetImage(int x, int y) {
-		Point tileGridPosition = getTileGridPosition(x, y);
-		return new Point(tileGridPosition.x * targetTileSize.width, tileGridPosition.y * targetTileSize.height);
+	/**
+	 * Reads a block of the source level, through the tile caches if there are
+	 * any.
+	 */
+	private IcyBufferedImage readBlock(LociImporterPlugin subImporter, Rectangle sourceRectangle) throws Exception {
+		TileKey key = null;
+		if (tileCache != null || persistentTileCache != null)
+			key = new TileKey(fileIdentity, series, sourceLevel.getResolutionIndex(), channels, z, t, sourceRectangle);
+		if (tileCache != null) {
+			IcyBufferedImage cachedImage = tileCache.get(key);
+			if (cachedImage != null)
+				return cachedImage;
+		}
+
+		IcyBufferedImage blockImage = (persistentTileCache != null)? persistentTileCache.get(key): null;
+		if (blockImage == null) {
+			blockImage = LargeSequenceHelper.getImage(subImporter, series, sourceLevel, sourceRectangle, z, t, channels);
+			if (persistentTileCache != null)
+				persistentTileCache.put(key, blockImage);
+		}
+		if (tileCache != null)
+			tileCache.put(key, blockImage);
+		return blockImage;
 	}
 
-	private Point getTileGridPosition(int x, int y) {
-		return new Point(tileGridRectangle.x + x, tileGridRectangle.y + y);
+	private LociImporterPlugin getSubImporter() throws UnsupportedFormatException, IOException {
+		return readerPool.borrowReader(getFilePath());
 	}
 
-	private void closeSubImporters() throws LargeSequenceImporterException {
-		if (subImporterArray != null) {
-			try {
-				for (int i = 0; i < numImporters; i++) {
-					if (subImporterArray[i] != null) {
-						try {
-							subImporterArray[i].close();
-							subImporterArray[i] = null;
-						} catch (Exception e) {
-							throw new LargeSequenceImporterException("Could not close all subimporters.", e);
-						}
-					}
-				}
-			} finally {
-				subImporterArray = null;
-				numImporters = 0;
-			}
-		}
+	private void releaseSubImporter(LociImporterPlugin subImporter) {
+		readerPool.releaseReader(subImporter);
 	}
 
 	private void notifyProgress(int tileNumber) {
@@ -477,23 +1042,16 @@ public class LargeSequenceImporter implements Callable<Sequence> {
 		}
 	}
 
-	private void releaseThreadPool() throws InterruptedException {
-		threadPool.shutdownNow();
-		if (!threadPool.awaitTermination(1, TimeUnit.SECONDS)) {
-			throw new LargeSequenceImporterException("Importer threads did not finish");
+	private void releaseTileScheduler() throws InterruptedException {
+		if (ownedTileScheduler) {
+			tileScheduler.close();
+			tileScheduler = null;
 		}
 	}
 
-	/**
-	 * @throws LargeSequenceImporterException
-	 *           If the importer cannot be closed.
-	 */
-	private void closeLociImporter() throws LargeSequenceImporterException {
-		try {
-			importer.close();
-		} catch (IOException e) {
-			throw new LargeSequenceImporterException(String.format("Could not close Loci importer for %s", getFilePath()), e);
-		}
+	private void closeLociImporter() {
+		readerPool.releaseReader(importer);
+		importer = null;
 	}
 
 	private Sequence getResultSequence() {
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import icy.common.exception.UnsupportedFormatException;
+import plugins.kernel.importer.LociImporterPlugin;
+
+/**
+ * Process-wide pool of opened {@link LociImporterPlugin} readers. Readers are
+ * keyed by file path and modification time so that opening and parsing the
+ * metadata of a file is done once and shared across imports. Idle readers are
+ * closed after a timeout and the total amount of opened readers is bounded.
+ * <p>
+ * Borrowed readers must be used by a single thread at a time and must be given
+ * back using {@link #releaseReader(LociImporterPlugin)}.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class LargeSequenceReaderPool {
+
+	private static final LargeSequenceReaderPool instance = new LargeSequenceReaderPool(
+			Runtime.getRuntime().availableProcessors() * 2 + 2, TimeUnit.MINUTES.toMillis(2));
+
+	/**
+	 * @return The reader pool shared by the whole process.
+	 */
+	public static LargeSequenceReaderPool getInstance() {
+		return instance;
+	}
+
+	private static class ReaderKey {
+		private final String path;
+		private final long modificationTime;
+
+		ReaderKey(Path filePath) throws IOException {
+			Path absolutePath = filePath.toAbsolutePath().normalize();
+			this.path = absolutePath.toString();
+			this.modificationTime = Files.getLastModifiedTime(absolutePath).toMillis();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, modificationTime);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ReaderKey))
+				return false;
+			ReaderKey other = (ReaderKey) obj;
+			return modificationTime == other.modificationTime && path.equals(other.path);
+		}
+	}
+
+	private static class PooledReader {
+		private final ReaderKey key;
+		private final LociImporterPlugin importer;
+		private long releaseTime;
+
+		PooledReader(ReaderKey key, LociImporterPlugin importer) {
+			this.key = key;
+			this.importer = importer;
+		}
+	}
+
+	private final Map<ReaderKey, Deque<PooledReader>> idleReaders;
+	private final Map<LociImporterPlugin, PooledReader> borrowedReaders;
+	private int openReaders;
+	private int maxOpenReaders;
+	private long idleTimeoutMillis;
+	private final ScheduledExecutorService evictionExecutor;
+
+	private LargeSequenceReaderPool(int maxOpenReaders, long idleTimeoutMillis) {
+		this.idleReaders = new HashMap<>();
+		this.borrowedReaders = new IdentityHashMap<>();
+		this.maxOpenReaders = maxOpenReaders;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "LargeSequenceReaderPool eviction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.evictionExecutor.scheduleWithFixedDelay(this::evictIdleReaders, 10, 10, TimeUnit.SECONDS);
+	}
+
+	public synchronized int getMaxOpenReaders() {
+		return maxOpenReaders;
+	}
+
+	/**
+	 * @param maxOpenReaders
+	 *          Maximum amount of readers opened at the same time, borrowed or
+	 *          idle.
+	 */
+	public synchronized void setMaxOpenReaders(int maxOpenReaders) {
+		if (maxOpenReaders < 1)
+			throw new IllegalArgumentException("At least one reader must be allowed: " + maxOpenReaders);
+		this.maxOpenReaders = maxOpenReaders;
+		notifyAll();
+	}
+
+	public synchronized long getIdleTimeout(TimeUnit unit) {
+		return unit.convert(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param timeout
+	 *          Time after which an idle reader is closed.
+	 * @param unit
+	 *          Unit of the timeout.
+	 */
+	public synchronized void setIdleTimeout(long timeout, TimeUnit unit) {
+		this.idleTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Borrows a reader opened on the given file. An idle reader is reused when
+	 * available, otherwise a new one is opened. When the maximum amount of
+	 * readers is reached, the least recently used idle reader is closed or the
+	 * call waits until a reader is released.
+	 *
+	 * @param filePath
+	 *          File to read.
+	 * @return An opened reader.
+	 * @throws UnsupportedFormatException
+	 *           If the file format is not supported.
+	 * @throws IOException
+	 *           If the file cannot be opened or the thread is interrupted while
+	 *           waiting for a reader.
+	 */
+	public LociImporterPlugin borrowReader(Path filePath) throws UnsupportedFormatException, IOException {
+		ReaderKey key = new ReaderKey(filePath);
+		List<PooledReader> readersToClose = new ArrayList<>();
+		try {
+			synchronized (this) {
+				while (true) {
+					Deque<PooledReader> keyIdleReaders = idleReaders.get(key);
+					if (keyIdleReaders != null && !keyIdleReaders.isEmpty()) {
+						PooledReader reader = keyIdleReaders.pollFirst();
+						borrowedReaders.put(reader.importer, reader);
+						return reader.importer;
+					}
+					if (openReaders < maxOpenReaders) {
+						openReaders++;
+						break;
+					}
+					PooledReader eldestReader = removeEldestIdleReader();
+					if (eldestReader != null) {
+						readersToClose.add(eldestReader);
+						openReaders--;
+					} else {
+						wait();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a reader of " + filePath);
+		} finally {
+			closeReaders(readersToClose);
+		}
+
+		LociImporterPlugin importer = new LociImporterPlugin();
+		try {
+			importer.open(key.path, LociImporterPlugin.FLAG_METADATA_ALL);
+		} catch (UnsupportedFormatException | IOException | RuntimeException e) {
+			synchronized (this) {
+				openReaders--;
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			borrowedReaders.put(importer, new PooledReader(key, importer));
+		}
+		return importer;
+	}
+
+	/**
+	 * Gives a borrowed reader back to the pool. Readers on files modified since
+	 * they were opened are closed.
+	 *
+	 * @param importer
+	 *          Reader obtained from {@link #borrowReader(Path)}.
+	 */
+	public void releaseReader(LociImporterPlugin importer) {
+		PooledReader reader;
+		synchronized (this) {
+			reader = borrowedReaders.remove(importer);
+		}
+		if (reader == null)
+			throw new IllegalArgumentException("Reader not borrowed from this pool");
+
+		boolean upToDate;
+		try {
+			upToDate = Files.getLastModifiedTime(Paths.get(reader.key.path))
+					.toMillis() == reader.key.modificationTime;
+		} catch (IOException e) {
+			upToDate = false;
+		}
+
+		synchronized (this) {
+			if (upToDate && openReaders <= maxOpenReaders) {
+				reader.releaseTime = System.currentTimeMillis();
+				idleReaders.computeIfAbsent(reader.key, k -> new ArrayDeque<>()).addFirst(reader);
+				notifyAll();
+				return;
+			}
+			openReaders--;
+			notifyAll();
+		}
+		closeReader(reader);
+	}
+
+	/**
+	 * Closes a borrowed reader instead of giving it back to the pool. This
+	 * should be used when the reader is left in an unknown state (e.g. after an
+	 * error).
+	 *
+	 * @param importer
+	 *          Reader obtained from {@link #borrowReader(Path)}.
+	 */
+	public void invalidateReader(LociImporterPlugin importer) {
+		PooledReader reader;
+		synchronized (this) {
+			reader = borrowedReaders.remove(importer);
+			if (reader == null)
+				throw new IllegalArgumentException("Reader not borrowed from this pool");
+			openReaders--;
+			notifyAll();
+		}
+		closeReader(reader);
+	}
+
+	private PooledReader removeEldestIdleReader() {
+		PooledReader eldestReader = null;
+		Deque<PooledReader> eldestDeque = null;
+		for (Deque<PooledReader> deque: idleReaders.values()) {
+			PooledReader candidate = deque.peekLast();
+			if (candidate != null && (eldestReader == null || candidate.releaseTime < eldestReader.releaseTime)) {
+				eldestReader = candidate;
+				eldestDeque = deque;
+			}
+		}
+		if (eldestDeque != null) {
+			eldestDeque.pollLast();
+			if (eldestDeque.isEmpty())
+				idleReaders.remove(eldestReader.key);
+		}
+		return eldestReader;
+	}
+
+	/**
+	 * Closes all readers that have been idle longer than the idle timeout.
+	 */
+	public void evictIdleReaders() {
+		List<PooledReader> readersToClose = new ArrayList<>();
+		synchronized (this) {
+			long oldestAllowedReleaseTime = System.currentTimeMillis() - idleTimeoutMillis;
+			for (Iterator<Deque<PooledReader>> it = idleReaders.values().iterator(); it.hasNext();) {
+				Deque<PooledReader> deque = it.next();
+				while (!deque.isEmpty() && deque.peekLast().releaseTime < oldestAllowedReleaseTime) {
+					readersToClose.add(deque.pollLast());
+				}
+				if (deque.isEmpty())
+					it.remove();
+			}
+			openReaders -= readersToClose.size();
+			notifyAll();
+		}
+		closeReaders(readersToClose);
+	}
+
+	/**
+	 * Closes all idle readers. Borrowed readers are closed when released.
+	 */
+	public void clear() {
+		List<PooledReader> readersToClose = new ArrayList<>();
+		synchronized (this) {
+			idleReaders.values().forEach(readersToClose::addAll);
+			idleReaders.clear();
+			openReaders -= readersToClose.size();
+			notifyAll();
+		}
+		closeReaders(readersToClose);
+	}
+
+	private static void closeReaders(List<PooledReader> readers) {
+		readers.forEach(LargeSequenceReaderPool::closeReader);
+	}
+
+	private static void closeReader(PooledReader reader) {
+		try {
+			reader.importer.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
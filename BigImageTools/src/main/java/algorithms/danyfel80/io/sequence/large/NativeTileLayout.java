@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import loci.formats.FormatException;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffParser;
+
+/**
+ * Layout of the tiles, or strips, as they are stored in a TIFF file. Strips are
+ * handled as tiles spanning the whole image width.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class NativeTileLayout {
+
+	/**
+	 * Reads the layout of the TIFF image of the given size. Both the main IFDs
+	 * and the SubIFDs of the first IFD are searched, so that reduced pyramid
+	 * levels are found in SVS-like and OME-TIFF files.
+	 *
+	 * @param filePath
+	 *          Path of the image file.
+	 * @param imageSize
+	 *          Size of the wanted image (e.g. the size of a pyramid level).
+	 * @return The layout of the image, or null if the file is not a TIFF or
+	 *         contains no image of the given size.
+	 * @throws IOException
+	 *           If the file cannot be read.
+	 */
+	public static NativeTileLayout read(Path filePath, Dimension imageSize) throws IOException {
+		try (TiffParser parser = new TiffParser(filePath.toString())) {
+			if (!Boolean.TRUE.equals(parser.checkHeader()))
+				return null;
+
+			IFDList ifds = parser.getIFDs();
+			IFD ifd = findIFD(ifds, imageSize);
+			if (ifd == null && !ifds.isEmpty()) {
+				ifd = findIFD(parser.getSubIFDs(ifds.get(0)), imageSize);
+			}
+			if (ifd == null)
+				return null;
+
+			parser.fillInIFD(ifd);
+			return new NativeTileLayout(ifd);
+		} catch (FormatException e) {
+			throw new IOException("Could not read tile layout of " + filePath, e);
+		}
+	}
+
+	private static IFD findIFD(IFDList ifds, Dimension imageSize) throws FormatException {
+		if (ifds == null)
+			return null;
+		for (IFD ifd: ifds) {
+			if (ifd.getImageWidth() == imageSize.width && ifd.getImageLength() == imageSize.height)
+				return ifd;
+		}
+		return null;
+	}
+
+	private final int imageWidth;
+	private final int imageHeight;
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int tilesPerRow;
+	private final int tilesPerColumn;
+	private final boolean tiled;
+	private final long[] tileOffsets;
+
+	private NativeTileLayout(IFD ifd) throws FormatException {
+		this.imageWidth = (int) ifd.getImageWidth();
+		this.imageHeight = (int) ifd.getImageLength();
+		this.tiled = ifd.isTiled();
+		this.tileWidth = (int) Math.min(ifd.getTileWidth(), imageWidth);
+		this.tileHeight = (int) Math.min(ifd.getTileLength(), imageHeight);
+		this.tilesPerRow = (int) ifd.getTilesPerRow();
+		this.tilesPerColumn = (int) ifd.getTilesPerColumn();
+		// With separate planes the offsets of the other planes follow those of the
+		// first one, the first plane is enough to know the storage order.
+		this.tileOffsets = ifd.getStripOffsets();
+	}
+
+	public Dimension getImageSize() {
+		return new Dimension(imageWidth, imageHeight);
+	}
+
+	public Dimension getTileSize() {
+		return new Dimension(tileWidth, tileHeight);
+	}
+
+	public int getTilesPerRow() {
+		return tilesPerRow;
+	}
+
+	public int getTilesPerColumn() {
+		return tilesPerColumn;
+	}
+
+	/**
+	 * @return True if the image is stored in strips spanning the whole image
+	 *         width instead of tiles.
+	 */
+	public boolean isStripped() {
+		return !tiled || tileWidth >= imageWidth;
+	}
+
+	/**
+	 * @param x
+	 *          Pixel x position.
+	 * @param y
+	 *          Pixel y position.
+	 * @return Offset in the file of the native tile containing the given pixel.
+	 */
+	public long getTileOffset(int x, int y) {
+		int tileIndex = (y / tileHeight) * tilesPerRow + (x / tileWidth);
+		return (tileIndex < tileOffsets.length)? tileOffsets[tileIndex]: Long.MAX_VALUE;
+	}
+}
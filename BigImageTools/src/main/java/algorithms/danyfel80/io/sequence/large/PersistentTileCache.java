@@ -0,0 +1,363 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+
+/**
+ * Cache of decoded tiles stored in a directory, so that tiles decoded in a
+ * session are reused by the following ones. Each tile is a file named after a
+ * digest of its {@link TileKey}, holding the key and the raw pixel data of each
+ * channel. Planes are read from the file straight into the tile image buffers.
+ * <p>
+ * The cache is bounded in bytes and evicts the least recently used tiles. The
+ * use order survives sessions through the modification time of the files,
+ * which is updated on each hit. Tiles are written to a temporary file that is
+ * flushed to the disk and atomically renamed, so a crash leaves either the
+ * complete tile or no tile. Temporary and corrupted files are deleted when
+ * found. Tiles of modified files are never served, since the file identity is
+ * part of the key.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class PersistentTileCache {
+
+	private static final int MAGIC = 0x49435954; // "ICYT"
+	private static final byte VERSION = 1;
+	private static final String TILE_EXTENSION = ".tile";
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	private final Path directory;
+	private final LinkedHashMap<String, Long> tileSizes;
+	private long maxBytes;
+	private long sizeBytes;
+
+	/**
+	 * Opens the cache stored in a directory, creating the directory if needed.
+	 * Tiles left by previous sessions are indexed, leftovers of interrupted
+	 * writes are deleted.
+	 *
+	 * @param directory
+	 *          Cache directory. It should not be shared by several processes.
+	 * @param maxBytes
+	 *          Maximum size of the cache in bytes.
+	 * @throws IOException
+	 *           If the directory cannot be created or listed.
+	 */
+	public PersistentTileCache(Path directory, long maxBytes) throws IOException {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Negative cache size: " + maxBytes);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.tileSizes = new LinkedHashMap<>(256, 0.75f, true);
+		Files.createDirectories(directory);
+		loadIndex();
+		evictTiles();
+	}
+
+	private void loadIndex() throws IOException {
+		List<Path> tileFiles = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file: files) {
+				String fileName = file.getFileName().toString();
+				if (fileName.endsWith(TEMPORARY_EXTENSION))
+					Files.deleteIfExists(file);
+				else if (fileName.endsWith(TILE_EXTENSION))
+					tileFiles.add(file);
+			}
+		}
+
+		List<BasicFileAttributes> attributes = new ArrayList<>(tileFiles.size());
+		for (Path file: tileFiles) {
+			attributes.add(Files.readAttributes(file, BasicFileAttributes.class));
+		}
+		List<Integer> order = new ArrayList<>(tileFiles.size());
+		for (int i = 0; i < tileFiles.size(); i++) {
+			order.add(i);
+		}
+		order.sort(Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+		for (int i: order) {
+			tileSizes.put(tileFiles.get(i).getFileName().toString(), attributes.get(i).size());
+			sizeBytes += attributes.get(i).size();
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Changes the maximum size of the cache. Tiles are evicted if needed.
+	 *
+	 * @param maxBytes
+	 *          Maximum size of the cache in bytes.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Negative cache size: " + maxBytes);
+		this.maxBytes = maxBytes;
+		evictTiles();
+	}
+
+	/**
+	 * @return The amount of bytes used by the tile files.
+	 */
+	public synchronized long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	public synchronized int getTileCount() {
+		return tileSizes.size();
+	}
+
+	/**
+	 * @param key
+	 *          Tile key.
+	 * @return The cached tile, or null if it is not cached or its file cannot be
+	 *         read.
+	 */
+	public IcyBufferedImage get(TileKey key) {
+		String fileName = getFileName(key);
+		synchronized (this) {
+			if (tileSizes.get(fileName) == null)
+				return null;
+		}
+
+		Path file = directory.resolve(fileName);
+		try {
+			IcyBufferedImage image;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				image = readTile(channel, key);
+			}
+			if (image == null) {
+				remove(fileName);
+				return null;
+			}
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return image;
+		} catch (NoSuchFileException e) {
+			forget(fileName);
+			return null;
+		} catch (IOException | RuntimeException e) {
+			remove(fileName);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a tile. Errors are ignored, the tile is then simply not cached.
+	 *
+	 * @param key
+	 *          Tile key.
+	 * @param image
+	 *          Tile image.
+	 */
+	public void put(TileKey key, IcyBufferedImage image) {
+		String fileName = getFileName(key);
+		byte[] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+		DataType dataType = image.getDataType_();
+		long size = 4 + 1 + 4 + keyBytes.length + 13
+				+ (long) image.getSizeX() * image.getSizeY() * image.getSizeC() * dataType.getSize();
+		synchronized (this) {
+			if (size > maxBytes)
+				return;
+		}
+
+		Path temporaryFile = directory.resolve(fileName + "." + Thread.currentThread().getId() + TEMPORARY_EXTENSION);
+		try {
+			try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(4 + 1 + 4 + keyBytes.length + 13);
+				header.putInt(MAGIC).put(VERSION).putInt(keyBytes.length).put(keyBytes);
+				header.putInt(image.getSizeX()).putInt(image.getSizeY()).putInt(image.getSizeC())
+						.put((byte) dataType.ordinal());
+				header.flip();
+				writeFully(channel, header);
+				for (int c = 0; c < image.getSizeC(); c++) {
+					writeFully(channel, ByteBuffer.wrap(image.getRawData(c, false)));
+				}
+				// The rename must not reach the disk before the tile data
+				channel.force(true);
+			}
+			Files.move(temporaryFile, directory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException | RuntimeException e) {
+			try {
+				Files.deleteIfExists(temporaryFile);
+			} catch (IOException e1) {
+				// Deleted when the cache is opened again
+			}
+			return;
+		}
+
+		synchronized (this) {
+			Long previousSize = tileSizes.put(fileName, size);
+			sizeBytes += size - ((previousSize != null)? previousSize: 0);
+			evictTiles();
+		}
+	}
+
+	/**
+	 * Deletes all the tiles of the cache.
+	 */
+	public synchronized void clear() {
+		for (String fileName: new ArrayList<>(tileSizes.keySet())) {
+			deleteTile(fileName);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * @return The tile stored in the file, or null if the file does not hold a
+	 *         complete tile of the given key.
+	 */
+	private static IcyBufferedImage readTile(FileChannel channel, TileKey key) throws IOException {
+		long fileSize = channel.size();
+		ByteBuffer buffer = ByteBuffer.allocate(9);
+		if (fileSize < 9 || !readFully(channel, buffer) || buffer.getInt() != MAGIC || buffer.get() != VERSION)
+			return null;
+		int keyLength = buffer.getInt();
+		if (keyLength < 0 || keyLength > fileSize - 9 - 13)
+			return null;
+		buffer = ByteBuffer.allocate(keyLength + 13);
+		if (!readFully(channel, buffer))
+			return null;
+		byte[] keyBytes = new byte[keyLength];
+		buffer.get(keyBytes);
+		// Digests may collide, the stored key tells whether the tile is the right one.
+		if (!key.toString().equals(new String(keyBytes, StandardCharsets.UTF_8)))
+			return null;
+
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		int channels = buffer.getInt();
+		int dataTypeIndex = buffer.get();
+		if (width <= 0 || height <= 0 || channels <= 0 || dataTypeIndex < 0 || dataTypeIndex >= DataType.values().length)
+			return null;
+		DataType dataType = DataType.values()[dataTypeIndex];
+		long planeBytes = (long) width * height * dataType.getSize();
+		if (planeBytes > Integer.MAX_VALUE || fileSize - channel.position() != planeBytes * channels)
+			return null;
+
+		IcyBufferedImage image = new IcyBufferedImage(width, height, channels, dataType);
+		byte[] plane = new byte[(int) planeBytes];
+		for (int c = 0; c < channels; c++) {
+			if (!readFully(channel, ByteBuffer.wrap(plane)))
+				return null;
+			image.setRawData(c, plane, 0, false);
+		}
+		image.dataChanged();
+		return image;
+	}
+
+	/**
+	 * Fills the buffer from the current position of the channel and flips it.
+	 *
+	 * @return False if the end of the file is reached first.
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				return false;
+		}
+		buffer.flip();
+		return true;
+	}
+
+	private String getFileName(TileKey key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder fileName = new StringBuilder(hash.length * 2 + TILE_EXTENSION.length());
+			for (byte b: hash) {
+				fileName.append(String.format("%02x", b));
+			}
+			return fileName.append(TILE_EXTENSION).toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 digest not available", e);
+		}
+	}
+
+	private synchronized void remove(String fileName) {
+		deleteTile(fileName);
+	}
+
+	private synchronized void forget(String fileName) {
+		Long size = tileSizes.remove(fileName);
+		if (size != null)
+			sizeBytes -= size;
+	}
+
+	private void evictTiles() {
+		Iterator<Map.Entry<String, Long>> iterator = tileSizes.entrySet().iterator();
+		while (sizeBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<String, Long> tile = iterator.next();
+			iterator.remove();
+			sizeBytes -= tile.getValue();
+			deleteFile(tile.getKey());
+		}
+	}
+
+	private void deleteTile(String fileName) {
+		Long size = tileSizes.remove(fileName);
+		if (size != null) {
+			sizeBytes -= size;
+			deleteFile(fileName);
+		}
+	}
+
+	private void deleteFile(String fileName) {
+		try {
+			Files.deleteIfExists(directory.resolve(fileName));
+		} catch (IOException e) {
+			// The file is left on disk, it is indexed again when the cache is opened.
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+
+/**
+ * Description of a resolution level physically stored in an image file (e.g.
+ * OME-TIFF SubIFDs or SVS/NDPI pyramids). Levels are identified by their
+ * Bio-Formats resolution index, level 0 being the full resolution image.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class PyramidLevel {
+
+	private final int resolutionIndex;
+	private final Dimension size;
+	private final Dimension tileSize;
+	private final double scaleX;
+	private final double scaleY;
+
+	/**
+	 * @param resolutionIndex
+	 *          Bio-Formats resolution index of the level.
+	 * @param size
+	 *          Size in pixels of the level.
+	 * @param tileSize
+	 *          Optimal tile size to read the level.
+	 * @param fullResolutionSize
+	 *          Size in pixels of the full resolution level.
+	 */
+	public PyramidLevel(int resolutionIndex, Dimension size, Dimension tileSize, Dimension fullResolutionSize) {
+		this.resolutionIndex = resolutionIndex;
+		this.size = new Dimension(size);
+		this.tileSize = new Dimension(tileSize);
+		this.scaleX = size.width / (double) fullResolutionSize.width;
+		this.scaleY = size.height / (double) fullResolutionSize.height;
+	}
+
+	public int getResolutionIndex() {
+		return resolutionIndex;
+	}
+
+	public Dimension getSize() {
+		return new Dimension(size);
+	}
+
+	public Dimension getTileSize() {
+		return new Dimension(tileSize);
+	}
+
+	/**
+	 * @return Ratio between the width of this level and the width of the full
+	 *         resolution level.
+	 */
+	public double getScaleX() {
+		return scaleX;
+	}
+
+	/**
+	 * @return Ratio between the height of this level and the height of the full
+	 *         resolution level.
+	 */
+	public double getScaleY() {
+		return scaleY;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("PyramidLevel(index=%d, size=%dx%d, tile=%dx%d)", resolutionIndex, size.width, size.height,
+				tileSize.width, tileSize.height);
+	}
+}
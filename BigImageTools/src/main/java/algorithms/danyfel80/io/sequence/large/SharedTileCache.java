@@ -0,0 +1,319 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import icy.image.IcyBufferedImage;
+
+/**
+ * Process-wide cache of decoded tiles, shared by importers and tile providers
+ * so that tiles read by one of them are served from memory to the others. The
+ * cache is bounded in bytes of pixel data.
+ * <p>
+ * Eviction follows W-TinyLFU: new tiles enter a small LRU window, tiles leaving
+ * the window are admitted in the main LRU area only if they were requested more
+ * often than the tile they would evict. Request frequencies are estimated by a
+ * count-min sketch that is periodically halved. This keeps one-shot scans of a
+ * whole slide from flushing tiles that are used repeatedly.
+ * <p>
+ * Cached images are shared and must not be modified.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class SharedTileCache {
+
+	private static final SharedTileCache instance = new SharedTileCache(Runtime.getRuntime().maxMemory() / 4);
+
+	/**
+	 * @return The tile cache shared by the whole process. Its budget is a quarter
+	 *         of the maximum heap by default.
+	 */
+	public static SharedTileCache getInstance() {
+		return instance;
+	}
+
+	private static class Entry {
+		private final IcyBufferedImage image;
+		private final long bytes;
+
+		Entry(IcyBufferedImage image, long bytes) {
+			this.image = image;
+			this.bytes = bytes;
+		}
+	}
+
+	private final LinkedHashMap<TileKey, Entry> window;
+	private final LinkedHashMap<TileKey, Entry> main;
+	private final FrequencySketch sketch;
+	private long maxBytes;
+	private long windowBytes;
+	private long mainBytes;
+	private long hitCount;
+	private long missCount;
+
+	/**
+	 * @param maxBytes
+	 *          Budget of the cache, in bytes of pixel data.
+	 */
+	public SharedTileCache(long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Negative cache size: " + maxBytes);
+		this.maxBytes = maxBytes;
+		this.window = new LinkedHashMap<>(16, 0.75f, true);
+		this.main = new LinkedHashMap<>(256, 0.75f, true);
+		this.sketch = new FrequencySketch();
+	}
+
+	/**
+	 * @param image
+	 *          Tile image.
+	 * @return The amount of bytes the tile uses in the cache.
+	 */
+	public static long getTileBytes(IcyBufferedImage image) {
+		return (long) image.getSizeX() * image.getSizeY() * image.getSizeC() * image.getDataType_().getSize();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Changes the budget of the cache. Tiles are evicted if needed.
+	 *
+	 * @param maxBytes
+	 *          Budget of the cache, in bytes of pixel data. 0 disables caching.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Negative cache size: " + maxBytes);
+		this.maxBytes = maxBytes;
+		evictWindow();
+		if (windowBytes > maxBytes) {
+			window.clear();
+			windowBytes = 0;
+		}
+		while (mainBytes > getMainMaxBytes() && !main.isEmpty()) {
+			removeEldest(main);
+		}
+	}
+
+	/**
+	 * @return The amount of bytes used by cached tiles.
+	 */
+	public synchronized long getSizeBytes() {
+		return windowBytes + mainBytes;
+	}
+
+	public synchronized int getTileCount() {
+		return window.size() + main.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @param key
+	 *          Tile key.
+	 * @return The cached tile, or null if it is not cached.
+	 */
+	public synchronized IcyBufferedImage get(TileKey key) {
+		sketch.increment(key.hashCode());
+		Entry entry = window.get(key);
+		if (entry == null)
+			entry = main.get(key);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return entry.image;
+	}
+
+	/**
+	 * Adds a tile to the cache. Tiles larger than the cache budget are not
+	 * cached.
+	 *
+	 * @param key
+	 *          Tile key.
+	 * @param image
+	 *          Tile image. It must not be modified afterwards.
+	 */
+	public synchronized void put(TileKey key, IcyBufferedImage image) {
+		long bytes = getTileBytes(image);
+		remove(key);
+		if (bytes > maxBytes)
+			return;
+
+		window.put(key, new Entry(image, bytes));
+		windowBytes += bytes;
+		evictWindow();
+		while (windowBytes + mainBytes > maxBytes && !main.isEmpty()) {
+			removeEldest(main);
+		}
+	}
+
+	/**
+	 * @param key
+	 *          Tile key.
+	 */
+	public synchronized void remove(TileKey key) {
+		Entry entry = window.remove(key);
+		if (entry != null)
+			windowBytes -= entry.bytes;
+		entry = main.remove(key);
+		if (entry != null)
+			mainBytes -= entry.bytes;
+	}
+
+	/**
+	 * Removes all the tiles of a file.
+	 *
+	 * @param file
+	 *          File identity.
+	 */
+	public synchronized void invalidate(TileKey.FileIdentity file) {
+		windowBytes -= removeFileTiles(window, file);
+		mainBytes -= removeFileTiles(main, file);
+	}
+
+	public synchronized void clear() {
+		window.clear();
+		main.clear();
+		windowBytes = 0;
+		mainBytes = 0;
+	}
+
+	private static long removeFileTiles(Map<TileKey, Entry> area, TileKey.FileIdentity file) {
+		long removedBytes = 0;
+		Iterator<Map.Entry<TileKey, Entry>> iterator = area.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<TileKey, Entry> entry = iterator.next();
+			if (entry.getKey().getFile().equals(file)) {
+				removedBytes += entry.getValue().bytes;
+				iterator.remove();
+			}
+		}
+		return removedBytes;
+	}
+
+	private long getWindowMaxBytes() {
+		return maxBytes / 100;
+	}
+
+	private long getMainMaxBytes() {
+		return maxBytes - getWindowMaxBytes();
+	}
+
+	/**
+	 * Moves the tiles overflowing the window to the main area, if admitted. The
+	 * latest tile always stays in the window, even if it is larger than the
+	 * window, so that it gets a chance to be requested again before admission.
+	 */
+	private void evictWindow() {
+		while (windowBytes > getWindowMaxBytes() && window.size() > 1) {
+			Iterator<Map.Entry<TileKey, Entry>> iterator = window.entrySet().iterator();
+			Map.Entry<TileKey, Entry> candidate = iterator.next();
+			iterator.remove();
+			windowBytes -= candidate.getValue().bytes;
+			admit(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	private void admit(TileKey key, Entry entry) {
+		if (entry.bytes > getMainMaxBytes())
+			return;
+
+		int candidateFrequency = sketch.frequency(key.hashCode());
+		while (mainBytes + entry.bytes > getMainMaxBytes()) {
+			Map.Entry<TileKey, Entry> victim = main.entrySet().iterator().next();
+			if (candidateFrequency <= sketch.frequency(victim.getKey().hashCode()))
+				return;
+			removeEldest(main);
+		}
+		main.put(key, entry);
+		mainBytes += entry.bytes;
+	}
+
+	private void removeEldest(LinkedHashMap<TileKey, Entry> area) {
+		Iterator<Map.Entry<TileKey, Entry>> iterator = area.entrySet().iterator();
+		Entry eldest = iterator.next().getValue();
+		iterator.remove();
+		if (area == main)
+			mainBytes -= eldest.bytes;
+		else
+			windowBytes -= eldest.bytes;
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters estimating how often keys were
+	 * requested. Counters are halved after a sample of requests, so that old
+	 * popularity fades.
+	 */
+	private static class FrequencySketch {
+		private static final int ROWS = 4;
+		private static final int WIDTH = 1 << 14;
+		private static final int SAMPLE_SIZE = WIDTH * 10;
+		private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+		private final byte[] counters = new byte[ROWS * WIDTH];
+		private int additions;
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int row = 0; row < ROWS; row++) {
+				int index = getIndex(hash, row);
+				if (counters[index] < 15) {
+					counters[index]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= SAMPLE_SIZE)
+				reset();
+		}
+
+		int frequency(int hash) {
+			int frequency = 15;
+			for (int row = 0; row < ROWS; row++) {
+				frequency = Math.min(frequency, counters[getIndex(hash, row)]);
+			}
+			return frequency;
+		}
+
+		private int getIndex(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % ROWS];
+			h ^= h >>> 16;
+			return row * WIDTH + (h & (WIDTH - 1));
+		}
+
+		private void reset() {
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] >>= 1;
+			}
+			additions /= 2;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import icy.type.DataType;
+import loci.formats.FormatException;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffParser;
+
+/**
+ * Source of compressed tiles read as they are stored in a tiled TIFF file, so
+ * that {@link LargeSequenceExporter} can copy them without decoding and
+ * encoding them again. Channel {@code c} of the exported image is read from
+ * the main IFD {@code c} of the file, which holds for images with a single Z
+ * and T.
+ * <p>
+ * Before writing, the exporter checks each IFD against the layout of the
+ * output (see {@link #prepare(Dimension, Dimension, int, int, DataType, boolean,
+ * TileCompression, int)}). Tiles of IFDs that do not match, and empty tiles,
+ * are not available and must be encoded from the decoded image. Tiles can be
+ * read from several threads.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TiffTileSource implements AutoCloseable {
+
+	private static final int YCBCR_SUBSAMPLING = 530;
+	private static final int COMPRESSION_ADOBE_DEFLATE = 32946;
+
+	/**
+	 * Opens a TIFF file and reads its main IFDs.
+	 *
+	 * @param filePath
+	 *          Path of the TIFF file.
+	 * @return The tile source, or null if the file is not a TIFF file.
+	 * @throws IOException
+	 *           If the file cannot be read.
+	 */
+	public static TiffTileSource open(Path filePath) throws IOException {
+		List<IFD> ifds = new ArrayList<>();
+		try (TiffParser parser = new TiffParser(filePath.toString())) {
+			if (!Boolean.TRUE.equals(parser.checkHeader()))
+				return null;
+
+			IFDList mainIfds = parser.getIFDs();
+			for (IFD ifd: mainIfds) {
+				parser.fillInIFD(ifd);
+				ifds.add(ifd);
+			}
+		}
+		return new TiffTileSource(filePath, ifds);
+	}
+
+	private final Path filePath;
+	private final List<IFD> ifds;
+	private final FileChannel fileChannel;
+	private final AtomicInteger copiedTileCount;
+
+	// Indexed by plane, null for planes which tiles cannot be copied
+	private long[][] tileOffsets;
+	private long[][] tileByteCounts;
+	private byte[][] jpegTables;
+
+	private TiffTileSource(Path filePath, List<IFD> ifds) throws IOException {
+		this.filePath = filePath;
+		this.ifds = ifds;
+		this.fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);
+		this.copiedTileCount = new AtomicInteger();
+	}
+
+	public Path getFilePath() {
+		return filePath;
+	}
+
+	/**
+	 * @return The codec of the tiles of the first IFD, or null if it is not one
+	 *         of the codecs of {@link TileCompression}.
+	 */
+	public TileCompression.Codec getCodec() {
+		if (ifds.isEmpty())
+			return null;
+		int code = ifds.get(0).getIFDIntValue(IFD.COMPRESSION, 1);
+		if (code == COMPRESSION_ADOBE_DEFLATE)
+			code = TileCompression.Codec.DEFLATE.getTiffCode();
+		for (TileCompression.Codec codec: TileCompression.Codec.values()) {
+			if (codec.getTiffCode() == code)
+				return codec;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks, for each plane of the output, whether the tiles of its IFD can be
+	 * copied as they are.
+	 *
+	 * @param imageSize
+	 *          Output image size.
+	 * @param tileSize
+	 *          Output tile size.
+	 * @param planeCount
+	 *          Amount of TIFF images (OME channels) of the output.
+	 * @param samplesPerPixel
+	 *          Samples per pixel of each TIFF image.
+	 * @param dataType
+	 *          Output data type.
+	 * @param bigEndian
+	 *          Output byte order.
+	 * @param compression
+	 *          Compression of the output tiles.
+	 * @param photometricInterpretation
+	 *          Photometric interpretation of the output images.
+	 * @return The amount of planes which tiles can be copied.
+	 * @throws FormatException
+	 *           If the IFDs cannot be read.
+	 */
+	public int prepare(Dimension imageSize, Dimension tileSize, int planeCount, int samplesPerPixel,
+			DataType dataType, boolean bigEndian, TileCompression compression, int photometricInterpretation)
+			throws FormatException {
+		tileOffsets = new long[planeCount][];
+		tileByteCounts = new long[planeCount][];
+		jpegTables = new byte[planeCount][];
+		copiedTileCount.set(0);
+
+		int tilesPerPlane = ((imageSize.width + tileSize.width - 1) / tileSize.width)
+				* ((imageSize.height + tileSize.height - 1) / tileSize.height);
+		int copyablePlanes = 0;
+		for (int plane = 0; plane < planeCount && plane < ifds.size(); plane++) {
+			IFD ifd = ifds.get(plane);
+			if (!isCompatible(ifd, imageSize, tileSize, samplesPerPixel, dataType, bigEndian, compression,
+					photometricInterpretation))
+				continue;
+			long[] offsets = ifd.getStripOffsets();
+			long[] byteCounts = ifd.getStripByteCounts();
+			if (offsets == null || byteCounts == null || offsets.length < tilesPerPlane
+					|| byteCounts.length < tilesPerPlane)
+				continue;
+
+			tileOffsets[plane] = offsets;
+			tileByteCounts[plane] = byteCounts;
+			if (compression.getCodec() == TileCompression.Codec.JPEG)
+				jpegTables[plane] = getJpegTables(ifd);
+			copyablePlanes++;
+		}
+		return copyablePlanes;
+	}
+
+	private static boolean isCompatible(IFD ifd, Dimension imageSize, Dimension tileSize, int samplesPerPixel,
+			DataType dataType, boolean bigEndian, TileCompression compression, int photometricInterpretation)
+			throws FormatException {
+		if (!ifd.isTiled() || ifd.getImageWidth() != imageSize.width || ifd.getImageLength() != imageSize.height
+				|| ifd.getTileWidth() != tileSize.width || ifd.getTileLength() != tileSize.height)
+			return false;
+
+		int code = ifd.getIFDIntValue(IFD.COMPRESSION, 1);
+		if (code == COMPRESSION_ADOBE_DEFLATE)
+			code = TileCompression.Codec.DEFLATE.getTiffCode();
+		if (code != compression.getCodec().getTiffCode())
+			return false;
+
+		if (ifd.getSamplesPerPixel() != samplesPerPixel || (samplesPerPixel > 1 && ifd.getPlanarConfiguration() != 1))
+			return false;
+		int[] bitsPerSample = ifd.getBitsPerSample();
+		if (bitsPerSample == null || bitsPerSample[0] != dataType.getSize() * 8)
+			return false;
+		int sampleFormat = ifd.getIFDIntValue(IFD.SAMPLE_FORMAT, BigTiffTileWriter.SAMPLE_FORMAT_UINT);
+		int expectedSampleFormat = dataType.isFloat()? BigTiffTileWriter.SAMPLE_FORMAT_FLOAT
+				: dataType.isSigned()? BigTiffTileWriter.SAMPLE_FORMAT_INT: BigTiffTileWriter.SAMPLE_FORMAT_UINT;
+		if (sampleFormat != expectedSampleFormat)
+			return false;
+		if (ifd.getIFDIntValue(IFD.PHOTOMETRIC_INTERPRETATION, -1) != photometricInterpretation)
+			return false;
+		// Differenced samples would need the predictor tag in the output
+		if (ifd.getIFDIntValue(IFD.PREDICTOR, 1) != 1)
+			return false;
+
+		switch (compression.getCodec()) {
+		case UNCOMPRESSED:
+		case LZW:
+		case DEFLATE:
+			// Samples are stored in the byte order of the file
+			return dataType.getSize() == 1 || ifd.isLittleEndian() == !bigEndian;
+		case JPEG:
+			// The output relies on the default 2x2 chroma subsampling
+			Object subsampling = ifd.getIFDValue(YCBCR_SUBSAMPLING);
+			return !(subsampling instanceof int[]) || (((int[]) subsampling)[0] == 2 && ((int[]) subsampling)[1] == 2);
+		default:
+			return true;
+		}
+	}
+
+	private static byte[] getJpegTables(IFD ifd) {
+		Object tables = ifd.getIFDValue(IFD.JPEG_TABLES);
+		if (tables instanceof byte[])
+			return (byte[]) tables;
+		if (tables instanceof short[]) {
+			short[] values = (short[]) tables;
+			byte[] bytes = new byte[values.length];
+			for (int i = 0; i < values.length; i++) {
+				bytes[i] = (byte) values[i];
+			}
+			return bytes;
+		}
+		return null;
+	}
+
+	/**
+	 * @param plane
+	 *          Plane (OME channel) of the output.
+	 * @param tileIndex
+	 *          Index of the tile in the plane, row by row.
+	 * @return The compressed tile as stored in the file, or null if it cannot be
+	 *         copied.
+	 * @throws IOException
+	 *           If the tile cannot be read.
+	 */
+	public byte[] getTile(int plane, int tileIndex) throws IOException {
+		if (tileOffsets == null || plane >= tileOffsets.length || tileOffsets[plane] == null)
+			return null;
+		long byteCount = tileByteCounts[plane][tileIndex];
+		if (byteCount <= 0 || byteCount > Integer.MAX_VALUE)
+			return null;
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) byteCount);
+		long position = tileOffsets[plane][tileIndex];
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException(String.format("Tile %d of plane %d is truncated in %s", tileIndex, plane, filePath));
+		}
+		byte[] tile = buffer.array();
+		if (jpegTables[plane] != null)
+			tile = mergeJpegTables(jpegTables[plane], tile);
+		copiedTileCount.incrementAndGet();
+		return tile;
+	}
+
+	/**
+	 * Abbreviated JPEG tiles refer to tables shared in the IFD. Tables are
+	 * inserted in each tile, so that tiles can be decoded on their own: the
+	 * tables stream without its end marker is followed by the tile without its
+	 * start marker.
+	 */
+	private static byte[] mergeJpegTables(byte[] tables, byte[] tile) {
+		if (tables.length < 4 || tile.length < 2 || (tile[0] & 0xff) != 0xff || (tile[1] & 0xff) != 0xd8)
+			return tile;
+		byte[] mergedTile = new byte[tables.length - 2 + tile.length - 2];
+		System.arraycopy(tables, 0, mergedTile, 0, tables.length - 2);
+		System.arraycopy(tile, 2, mergedTile, tables.length - 2, tile.length - 2);
+		return mergedTile;
+	}
+
+	/**
+	 * @return The amount of tiles copied since the last call to
+	 *         {@link #prepare(Dimension, Dimension, int, int, DataType, boolean, TileCompression, int)}.
+	 */
+	public int getCopiedTileCount() {
+		return copiedTileCount.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		fileChannel.close();
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import icy.type.DataType;
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEG2000Codec;
+import loci.formats.codec.JPEG2000CodecOptions;
+import loci.formats.tiff.TiffCompression;
+
+/**
+ * Compression of the tiles written by {@link LargeSequenceExporter}: a codec
+ * and its parameter (Deflate level, JPEG quality). Instances are immutable and
+ * {@link #compress(byte[], CodecOptions)} can be called from several threads.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public final class TileCompression {
+
+	/**
+	 * Codecs available for tiles, with their TIFF compression code.
+	 */
+	public enum Codec {
+		UNCOMPRESSED("Uncompressed", 1),
+		LZW("LZW", 5),
+		/**
+		 * Zlib stream with a configurable level.
+		 */
+		DEFLATE("Deflate", 8),
+		/**
+		 * Lossy, 8-bit gray or RGB images only.
+		 */
+		JPEG("JPEG", 7),
+		/**
+		 * Lossless JPEG-2000 codestream, integer images up to 16 bits.
+		 */
+		JPEG_2000("JPEG-2000", 33003);
+
+		private final String name;
+		private final int tiffCode;
+
+		private Codec(String name, int tiffCode) {
+			this.name = name;
+			this.tiffCode = tiffCode;
+		}
+
+		public int getTiffCode() {
+			return tiffCode;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	public static final int DEFAULT_DEFLATE_LEVEL = 6;
+	public static final float DEFAULT_JPEG_QUALITY = 0.9f;
+
+	public static TileCompression uncompressed() {
+		return new TileCompression(Codec.UNCOMPRESSED, 0, 0);
+	}
+
+	public static TileCompression lzw() {
+		return new TileCompression(Codec.LZW, 0, 0);
+	}
+
+	/**
+	 * @param level
+	 *          Compression level, from 1 (fastest) to 9 (smallest).
+	 */
+	public static TileCompression deflate(int level) {
+		if (level < 1 || level > 9)
+			throw new IllegalArgumentException("Deflate level must be between 1 and 9: " + level);
+		return new TileCompression(Codec.DEFLATE, level, 0);
+	}
+
+	/**
+	 * @param quality
+	 *          Quality, between 0 (smallest) and 1 (best).
+	 */
+	public static TileCompression jpeg(float quality) {
+		if (quality < 0 || quality > 1)
+			throw new IllegalArgumentException("JPEG quality must be between 0 and 1: " + quality);
+		return new TileCompression(Codec.JPEG, 0, quality);
+	}
+
+	public static TileCompression jpeg2000() {
+		return new TileCompression(Codec.JPEG_2000, 0, 0);
+	}
+
+	/**
+	 * @param codec
+	 *          Codec.
+	 * @return The compression using the codec with its default parameter.
+	 */
+	public static TileCompression of(Codec codec) {
+		switch (codec) {
+		case DEFLATE:
+			return deflate(DEFAULT_DEFLATE_LEVEL);
+		case JPEG:
+			return jpeg(DEFAULT_JPEG_QUALITY);
+		case JPEG_2000:
+			return jpeg2000();
+		case LZW:
+			return lzw();
+		default:
+			return uncompressed();
+		}
+	}
+
+	private final Codec codec;
+	private final int level;
+	private final float quality;
+
+	private TileCompression(Codec codec, int level, float quality) {
+		this.codec = codec;
+		this.level = level;
+		this.quality = quality;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return The Deflate level, 0 for other codecs.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return The JPEG quality, 0 for other codecs.
+	 */
+	public float getQuality() {
+		return quality;
+	}
+
+	/**
+	 * @param dataType
+	 *          Data type of the image.
+	 * @param samplesPerPixel
+	 *          Samples per pixel of the TIFF images.
+	 * @return True if the codec can compress tiles of such images.
+	 */
+	public boolean isSupported(DataType dataType, int samplesPerPixel) {
+		switch (codec) {
+		case JPEG:
+			return dataType == DataType.UBYTE && (samplesPerPixel == 1 || samplesPerPixel == 3);
+		case JPEG_2000:
+			return !dataType.isFloat() && dataType.getSize() <= 2;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Compresses a tile.
+	 *
+	 * @param tileData
+	 *          Tile samples, interleaved, in the byte order given by the options.
+	 * @param options
+	 *          Tile size, channels, bits per sample and byte order.
+	 * @return The compressed tile.
+	 * @throws FormatException
+	 *           If the tile cannot be compressed.
+	 */
+	public byte[] compress(byte[] tileData, CodecOptions options) throws FormatException {
+		switch (codec) {
+		case UNCOMPRESSED:
+			return tileData;
+		case LZW:
+			return TiffCompression.LZW.compress(tileData, options);
+		case DEFLATE:
+			return deflate(tileData);
+		case JPEG:
+			return compressJpeg(tileData, options);
+		case JPEG_2000:
+			JPEG2000CodecOptions jpeg2000Options = JPEG2000CodecOptions.getDefaultOptions(options);
+			jpeg2000Options.lossless = true;
+			return new JPEG2000Codec().compress(tileData, jpeg2000Options);
+		default:
+			throw new FormatException("Unsupported codec: " + codec);
+		}
+	}
+
+	private byte[] deflate(byte[] tileData) {
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(tileData);
+			deflater.finish();
+			ByteArrayOutputStream output = new ByteArrayOutputStream(tileData.length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				output.write(buffer, 0, length);
+			}
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Bio-Formats' JPEG codec ignores the quality, so tiles are encoded with the
+	 * ImageIO writer directly. RGB tiles are stored as YCbCr.
+	 */
+	private byte[] compressJpeg(byte[] tileData, CodecOptions options) throws FormatException {
+		BufferedImage image;
+		if (options.channels == 1) {
+			image = new BufferedImage(options.width, options.height, BufferedImage.TYPE_BYTE_GRAY);
+			byte[] imageData = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+			System.arraycopy(tileData, 0, imageData, 0, imageData.length);
+		} else {
+			image = new BufferedImage(options.width, options.height, BufferedImage.TYPE_3BYTE_BGR);
+			byte[] imageData = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+			for (int i = 0; i < imageData.length; i += 3) {
+				imageData[i] = tileData[i + 2];
+				imageData[i + 1] = tileData[i + 1];
+				imageData[i + 2] = tileData[i];
+			}
+		}
+
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext())
+			throw new FormatException("No JPEG writer available");
+		ImageWriter writer = writers.next();
+		try (ByteArrayOutputStream output = new ByteArrayOutputStream();
+				ImageOutputStream imageOutput = ImageIO.createImageOutputStream(output)) {
+			ImageWriteParam parameters = writer.getDefaultWriteParam();
+			parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			parameters.setCompressionQuality(quality);
+			writer.setOutput(imageOutput);
+			writer.write(null, new IIOImage(image, null, null), parameters);
+			imageOutput.flush();
+			return output.toByteArray();
+		} catch (IOException e) {
+			throw new FormatException("Could not encode JPEG tile", e);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	@Override
+	public String toString() {
+		switch (codec) {
+		case DEFLATE:
+			return String.format("%s (level %d)", codec, level);
+		case JPEG:
+			return String.format("%s (quality %.2f)", codec, quality);
+		default:
+			return codec.toString();
+		}
+	}
+
+	/**
+	 * Throughput and compression ratio of a compression measured on sample
+	 * tiles.
+	 */
+	public static class Profile {
+		private final TileCompression compression;
+		private final int tileCount;
+		private final long rawBytes;
+		private final long compressedBytes;
+		private final long time;
+
+		public Profile(TileCompression compression, int tileCount, long rawBytes, long compressedBytes, long time) {
+			this.compression = compression;
+			this.tileCount = tileCount;
+			this.rawBytes = rawBytes;
+			this.compressedBytes = compressedBytes;
+			this.time = time;
+		}
+
+		public TileCompression getCompression() {
+			return compression;
+		}
+
+		public int getTileCount() {
+			return tileCount;
+		}
+
+		public long getRawBytes() {
+			return rawBytes;
+		}
+
+		public long getCompressedBytes() {
+			return compressedBytes;
+		}
+
+		/**
+		 * @return Time spent compressing the sample tiles, in nanoseconds.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return Uncompressed megabytes compressed per second, on one thread.
+		 */
+		public double getThroughput() {
+			return (time > 0)? (rawBytes / 1e6) / (time / 1e9): Double.POSITIVE_INFINITY;
+		}
+
+		/**
+		 * @return Uncompressed size divided by compressed size.
+		 */
+		public double getRatio() {
+			return (compressedBytes > 0)? (double) rawBytes / compressedBytes: 1;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.1f MB/s, ratio %.2f (%d tiles)", compression, getThroughput(), getRatio(),
+					tileCount);
+		}
+	}
+}
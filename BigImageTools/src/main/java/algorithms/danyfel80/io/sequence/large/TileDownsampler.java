@@ -0,0 +1,586 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+
+/**
+ * Reads tiles from a Bio-Formats reader and box-filters them straight into the
+ * channel arrays of a result image. Decoded bytes are kept in buffers taken
+ * from a bounded shared pool, so no intermediate image is allocated per tile
+ * and no memory is retained by idle threads once imports end.
+ * <p>
+ * The downsampling factor must be an integer. Tiles must be aligned on
+ * multiples of this factor so that each result pixel is computed from a single
+ * tile.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TileDownsampler {
+
+	/**
+	 * Maximum amount of bytes kept in idle buffers. Buffers released beyond it
+	 * are left to the garbage collector.
+	 */
+	private static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+	private static final Deque<byte[]> pooledBuffers = new ArrayDeque<>();
+	private static long pooledBytes;
+
+	/**
+	 * @param minimumLength
+	 *          Minimum length of the buffer.
+	 * @return The smallest idle buffer holding the given length, or a new one.
+	 */
+	static byte[] acquireBuffer(int minimumLength) {
+		synchronized (pooledBuffers) {
+			byte[] bestBuffer = null;
+			for (byte[] buffer: pooledBuffers) {
+				if (buffer.length >= minimumLength && (bestBuffer == null || buffer.length < bestBuffer.length))
+					bestBuffer = buffer;
+			}
+			if (bestBuffer != null) {
+				for (Iterator<byte[]> it = pooledBuffers.iterator(); it.hasNext();) {
+					if (it.next() == bestBuffer) {
+						it.remove();
+						break;
+					}
+				}
+				pooledBytes -= bestBuffer.length;
+				return bestBuffer;
+			}
+		}
+		return new byte[minimumLength];
+	}
+
+	/**
+	 * Gives back a buffer obtained with {@link #acquireBuffer(int)}. It must not
+	 * be used afterwards.
+	 */
+	static void releaseBuffer(byte[] buffer) {
+		synchronized (pooledBuffers) {
+			if (pooledBytes + buffer.length <= MAX_POOLED_BYTES) {
+				pooledBuffers.addLast(buffer);
+				pooledBytes += buffer.length;
+			}
+		}
+	}
+
+	private final DataType dataType;
+	private final int factor;
+	private final Object[] resultData;
+	private final int resultWidth;
+	private final int resultHeight;
+	private final int[] channels;
+
+	/**
+	 * @param dataType
+	 *          Data type of the result image.
+	 * @param factor
+	 *          Integer downsampling factor (1 copies pixels as they are).
+	 * @param resultData
+	 *          Channel arrays of the result image.
+	 * @param resultWidth
+	 *          Width of the result image.
+	 * @param resultHeight
+	 *          Height of the result image.
+	 */
+	public TileDownsampler(DataType dataType, int factor, Object[] resultData, int resultWidth, int resultHeight) {
+		this(dataType, factor, resultData, resultWidth, resultHeight, null);
+	}
+
+	/**
+	 * @param dataType
+	 *          Data type of the result image.
+	 * @param factor
+	 *          Integer downsampling factor (1 copies pixels as they are).
+	 * @param resultData
+	 *          Channel arrays of the result image.
+	 * @param resultWidth
+	 *          Width of the result image.
+	 * @param resultHeight
+	 *          Height of the result image.
+	 * @param channels
+	 *          File channel written in each result channel, or null to write
+	 *          the file channels in order.
+	 */
+	public TileDownsampler(DataType dataType, int factor, Object[] resultData, int resultWidth, int resultHeight,
+			int[] channels) {
+		if (factor < 1)
+			throw new IllegalArgumentException("Downsampling factor must be positive: " + factor);
+		this.dataType = dataType;
+		this.factor = factor;
+		this.resultData = resultData;
+		this.resultWidth = resultWidth;
+		this.resultHeight = resultHeight;
+		this.channels = (channels != null)? channels.clone(): null;
+	}
+
+	public int getFactor() {
+		return factor;
+	}
+
+	/**
+	 * Pixels of a region decoded from a reader, for the decoded channels of a
+	 * plane. The bytes are held in a pooled buffer, given back when the region
+	 * is closed.
+	 */
+	public static class DecodedRegion implements AutoCloseable {
+		private final byte[] buffer;
+		private final int width;
+		private final int height;
+		private final int bytesPerPixel;
+		private final int samplesPerPlane;
+		private final int[] planeSlots;
+		private final boolean interleaved;
+		private final boolean littleEndian;
+		private final boolean pooled;
+		private boolean closed;
+
+		private DecodedRegion(byte[] buffer, int width, int height, int bytesPerPixel, int samplesPerPlane,
+				int[] planeSlots, boolean interleaved, boolean littleEndian, boolean pooled) {
+			this.buffer = buffer;
+			this.pooled = pooled;
+			this.width = width;
+			this.height = height;
+			this.bytesPerPixel = bytesPerPixel;
+			this.samplesPerPlane = samplesPerPlane;
+			this.planeSlots = planeSlots;
+			this.interleaved = interleaved;
+			this.littleEndian = littleEndian;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		private int getPlaneBytes() {
+			return width * height * samplesPerPlane * bytesPerPixel;
+		}
+
+		/**
+		 * Gives the buffer of the region back to the pool. The region must not be
+		 * written afterwards.
+		 */
+		@Override
+		public void close() {
+			if (pooled && !closed)
+				releaseBuffer(buffer);
+			closed = true;
+		}
+	}
+
+	/**
+	 * Reads the given region of the image and writes its downsampled pixels in
+	 * the result image.
+	 *
+	 * @param reader
+	 *          Reader of the image file. It must not be used concurrently by
+	 *          other threads.
+	 * @param series
+	 *          Series of the image.
+	 * @param resolutionIndex
+	 *          Bio-Formats resolution index of the level to read.
+	 * @param z
+	 *          Z position of the plane to read.
+	 * @param t
+	 *          T position of the plane to read.
+	 * @param x
+	 *          Region x position in the read level.
+	 * @param y
+	 *          Region y position in the read level.
+	 * @param width
+	 *          Region width.
+	 * @param height
+	 *          Region height.
+	 * @param resultX
+	 *          Position of the downsampled region in the result image (may be
+	 *          negative, pixels outside the result image are skipped).
+	 * @param resultY
+	 *          Position of the downsampled region in the result image (may be
+	 *          negative, pixels outside the result image are skipped).
+	 * @throws FormatException
+	 *           If the region cannot be decoded.
+	 * @throws IOException
+	 *           If the file cannot be read.
+	 */
+	public void read(IFormatReader reader, int series, int resolutionIndex, int z, int t, int x, int y, int width,
+			int height, int resultX, int resultY) throws FormatException, IOException {
+		try (DecodedRegion region = decode(reader, series, resolutionIndex, z, t, x, y, width, height, channels)) {
+			write(region, resultX, resultY);
+		}
+	}
+
+	/**
+	 * Decodes the given region of the image into a pooled buffer, so that it can
+	 * be written in several results. The region must be closed once written.
+	 *
+	 * @param reader
+	 *          Reader of the image file. It must not be used concurrently by
+	 *          other threads.
+	 * @param series
+	 *          Series of the image.
+	 * @param resolutionIndex
+	 *          Bio-Formats resolution index of the level to read.
+	 * @param z
+	 *          Z position of the plane to read.
+	 * @param t
+	 *          T position of the plane to read.
+	 * @param x
+	 *          Region x position in the read level.
+	 * @param y
+	 *          Region y position in the read level.
+	 * @param width
+	 *          Region width.
+	 * @param height
+	 *          Region height.
+	 * @param channels
+	 *          Channels needed, or null for all the channels. Only the planes
+	 *          holding these channels are read.
+	 * @return The decoded region.
+	 * @throws FormatException
+	 *           If the region cannot be decoded.
+	 * @throws IOException
+	 *           If the file cannot be read.
+	 * @see #write(DecodedRegion, int, int)
+	 */
+	public static DecodedRegion decode(IFormatReader reader, int series, int resolutionIndex, int z, int t, int x,
+			int y, int width, int height, int[] channels) throws FormatException, IOException {
+		int previousSeries = reader.getSeries();
+		try {
+			reader.setSeries(series);
+			reader.setResolution(resolutionIndex);
+			return decodeCurrentResolution(reader, z, t, x, y, width, height, channels);
+		} finally {
+			reader.setSeries(previousSeries);
+		}
+	}
+
+	private static DecodedRegion decodeCurrentResolution(IFormatReader reader, int z, int t, int x, int y, int width,
+			int height, int[] channels) throws FormatException, IOException {
+		int bytesPerPixel = FormatTools.getBytesPerPixel(reader.getPixelType());
+		int samplesPerPlane = reader.getRGBChannelCount();
+		int planeBytes = width * height * samplesPerPlane * bytesPerPixel;
+
+		// Separate channel planes are read only if one of their channels is needed.
+		int[] planeSlots = new int[reader.getEffectiveSizeC()];
+		Arrays.fill(planeSlots, channels == null? 0: -1);
+		if (channels != null) {
+			for (int channel: channels) {
+				planeSlots[channel / samplesPerPlane] = 0;
+			}
+		}
+		int decodedPlanes = 0;
+		for (int effectiveChannel = 0; effectiveChannel < planeSlots.length; effectiveChannel++) {
+			if (planeSlots[effectiveChannel] >= 0)
+				planeSlots[effectiveChannel] = decodedPlanes++;
+		}
+
+		byte[] buffer = acquireBuffer(planeBytes * decodedPlanes);
+		byte[] planeBuffer = null;
+		boolean decoded = false;
+		try {
+			planeBuffer = (decodedPlanes == 1)? buffer: acquireBuffer(planeBytes);
+			for (int effectiveChannel = 0; effectiveChannel < planeSlots.length; effectiveChannel++) {
+				if (planeSlots[effectiveChannel] < 0)
+					continue;
+				reader.openBytes(reader.getIndex(z, effectiveChannel, t), planeBuffer, x, y, width, height);
+				if (planeBuffer != buffer)
+					System.arraycopy(planeBuffer, 0, buffer, planeSlots[effectiveChannel] * planeBytes, planeBytes);
+			}
+			decoded = true;
+		} finally {
+			if (planeBuffer != null && planeBuffer != buffer)
+				releaseBuffer(planeBuffer);
+			if (!decoded)
+				releaseBuffer(buffer);
+		}
+		return new DecodedRegion(buffer, width, height, bytesPerPixel, samplesPerPlane, planeSlots,
+				reader.isInterleaved(), reader.isLittleEndian(), true);
+	}
+
+	/**
+	 * Wraps the pixels of an image already read, so that they can be written in
+	 * results without decoding them again.
+	 *
+	 * @param image
+	 *          Image of the region.
+	 * @param channels
+	 *          Channels of the file held by the image, in the image channel order.
+	 *          Null if the image holds all the channels.
+	 * @return The region holding a copy of the image pixels.
+	 */
+	public static DecodedRegion wrap(IcyBufferedImage image, int[] channels) {
+		int bytesPerPixel = image.getDataType_().getSize();
+		int planeBytes = image.getSizeX() * image.getSizeY() * bytesPerPixel;
+		int maxChannel = image.getSizeC() - 1;
+		if (channels != null) {
+			for (int channel: channels) {
+				maxChannel = Math.max(maxChannel, channel);
+			}
+		}
+		int[] planeSlots = new int[maxChannel + 1];
+		Arrays.fill(planeSlots, -1);
+		byte[] buffer = new byte[planeBytes * image.getSizeC()];
+		for (int c = 0; c < image.getSizeC(); c++) {
+			planeSlots[(channels != null)? channels[c]: c] = c;
+			System.arraycopy(image.getRawData(c, false), 0, buffer, c * planeBytes, planeBytes);
+		}
+		return new DecodedRegion(buffer, image.getSizeX(), image.getSizeY(), bytesPerPixel, 1, planeSlots, false, false,
+				false);
+	}
+
+	/**
+	 * Writes the downsampled pixels of a decoded region in the result image.
+	 *
+	 * @param region
+	 *          Region decoded with
+	 *          {@link #decode(IFormatReader, int, int, int, int, int, int, int, int, int[])}
+	 *          and not closed yet. It must contain the channels of this
+	 *          downsampler.
+	 * @param resultX
+	 *          Position of the downsampled region in the result image (may be
+	 *          negative, pixels outside the result image are skipped).
+	 * @param resultY
+	 *          Position of the downsampled region in the result image (may be
+	 *          negative, pixels outside the result image are skipped).
+	 */
+	public void write(DecodedRegion region, int resultX, int resultY) {
+		int planeLength = region.width * region.height;
+		int pixelStride = region.interleaved? region.samplesPerPlane * region.bytesPerPixel: region.bytesPerPixel;
+		for (int resultChannel = 0; resultChannel < resultData.length; resultChannel++) {
+			int channel = (channels != null)? channels[resultChannel]: resultChannel;
+			int effectiveChannel = channel / region.samplesPerPlane;
+			int sample = channel % region.samplesPerPlane;
+			if (effectiveChannel >= region.planeSlots.length || region.planeSlots[effectiveChannel] < 0)
+				throw new IllegalArgumentException("Channel " + channel + " was not decoded");
+
+			int offset = region.planeSlots[effectiveChannel] * region.getPlaneBytes()
+					+ (region.interleaved? sample * region.bytesPerPixel: sample * planeLength * region.bytesPerPixel);
+			downsample(region.buffer, offset, pixelStride, region.littleEndian, region.width, region.height,
+					resultData[resultChannel], resultX, resultY);
+		}
+	}
+
+	private void downsample(byte[] source, int offset, int pixelStride, boolean littleEndian, int sourceWidth,
+			int sourceHeight, Object result, int resultX, int resultY) {
+		switch (dataType) {
+		case UBYTE:
+			downsampleUByte(source, offset, pixelStride, sourceWidth, sourceHeight, (byte[]) result, resultX, resultY);
+			break;
+		case BYTE:
+			downsampleByte(source, offset, pixelStride, sourceWidth, sourceHeight, (byte[]) result, resultX, resultY);
+			break;
+		case USHORT:
+		case SHORT:
+			downsampleShort(source, offset, pixelStride, littleEndian, dataType.isSigned(), sourceWidth, sourceHeight,
+					(short[]) result, resultX, resultY);
+			break;
+		case UINT:
+		case INT:
+			downsampleInt(source, offset, pixelStride, littleEndian, dataType.isSigned(), sourceWidth, sourceHeight,
+					(int[]) result, resultX, resultY);
+			break;
+		case FLOAT:
+			downsampleFloat(source, offset, pixelStride, littleEndian, sourceWidth, sourceHeight, (float[]) result, resultX,
+					resultY);
+			break;
+		case DOUBLE:
+			downsampleDouble(source, offset, pixelStride, littleEndian, sourceWidth, sourceHeight, (double[]) result,
+					resultX, resultY);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported data type: " + dataType);
+		}
+	}
+
+	private void downsampleUByte(byte[] source, int offset, int pixelStride, int sourceWidth, int sourceHeight,
+			byte[] result, int resultX, int resultY) {
+		int columns = (sourceWidth + factor - 1) / factor;
+		int rows = (sourceHeight + factor - 1) / factor;
+		int firstColumn = Math.max(0, -resultX), lastColumn = Math.min(columns, resultWidth - resultX);
+		int firstRow = Math.max(0, -resultY), lastRow = Math.min(rows, resultHeight - resultY);
+		for (int row = firstRow; row < lastRow; row++) {
+			int sy0 = row * factor, sy1 = Math.min(sy0 + factor, sourceHeight);
+			int resultIndex = (resultY + row) * resultWidth + resultX + firstColumn;
+			for (int column = firstColumn; column < lastColumn; column++, resultIndex++) {
+				int sx0 = column * factor, sx1 = Math.min(sx0 + factor, sourceWidth);
+				long sum = 0;
+				for (int sy = sy0; sy < sy1; sy++) {
+					int sourceIndex = offset + (sy * sourceWidth + sx0) * pixelStride;
+					for (int sx = sx0; sx < sx1; sx++, sourceIndex += pixelStride) {
+						sum += source[sourceIndex] & 0xff;
+					}
+				}
+				int count = (sy1 - sy0) * (sx1 - sx0);
+				result[resultIndex] = (byte) ((sum + count / 2) / count);
+			}
+		}
+	}
+
+	private void downsampleByte(byte[] source, int offset, int pixelStride, int sourceWidth, int sourceHeight,
+			byte[] result, int resultX, int resultY) {
+		int columns = (sourceWidth + factor - 1) / factor;
+		int rows = (sourceHeight + factor - 1) / factor;
+		int firstColumn = Math.max(0, -resultX), lastColumn = Math.min(columns, resultWidth - resultX);
+		int firstRow = Math.max(0, -resultY), lastRow = Math.min(rows, resultHeight - resultY);
+		for (int row = firstRow; row < lastRow; row++) {
+			int sy0 = row * factor, sy1 = Math.min(sy0 + factor, sourceHeight);
+			int resultIndex = (resultY + row) * resultWidth + resultX + firstColumn;
+			for (int column = firstColumn; column < lastColumn; column++, resultIndex++) {
+				int sx0 = column * factor, sx1 = Math.min(sx0 + factor, sourceWidth);
+				long sum = 0;
+				for (int sy = sy0; sy < sy1; sy++) {
+					int sourceIndex = offset + (sy * sourceWidth + sx0) * pixelStride;
+					for (int sx = sx0; sx < sx1; sx++, sourceIndex += pixelStride) {
+						sum += source[sourceIndex];
+					}
+				}
+				int count = (sy1 - sy0) * (sx1 - sx0);
+				result[resultIndex] = (byte) Math.round(sum / (double) count);
+			}
+		}
+	}
+
+	private void downsampleShort(byte[] source, int offset, int pixelStride, boolean littleEndian, boolean signed,
+			int sourceWidth, int sourceHeight, short[] result, int resultX, int resultY) {
+		int columns = (sourceWidth + factor - 1) / factor;
+		int rows = (sourceHeight + factor - 1) / factor;
+		int firstColumn = Math.max(0, -resultX), lastColumn = Math.min(columns, resultWidth - resultX);
+		int firstRow = Math.max(0, -resultY), lastRow = Math.min(rows, resultHeight - resultY);
+		int low = littleEndian? 0: 1, high = littleEndian? 1: 0;
+		for (int row = firstRow; row < lastRow; row++) {
+			int sy0 = row * factor, sy1 = Math.min(sy0 + factor, sourceHeight);
+			int resultIndex = (resultY + row) * resultWidth + resultX + firstColumn;
+			for (int column = firstColumn; column < lastColumn; column++, resultIndex++) {
+				int sx0 = column * factor, sx1 = Math.min(sx0 + factor, sourceWidth);
+				long sum = 0;
+				for (int sy = sy0; sy < sy1; sy++) {
+					int sourceIndex = offset + (sy * sourceWidth + sx0) * pixelStride;
+					for (int sx = sx0; sx < sx1; sx++, sourceIndex += pixelStride) {
+						int value = (source[sourceIndex + low] & 0xff) | ((source[sourceIndex + high] & 0xff) << 8);
+						sum += signed? (short) value: value;
+					}
+				}
+				int count = (sy1 - sy0) * (sx1 - sx0);
+				result[resultIndex] = (short) Math.round(sum / (double) count);
+			}
+		}
+	}
+
+	private void downsampleInt(byte[] source, int offset, int pixelStride, boolean littleEndian, boolean signed,
+			int sourceWidth, int sourceHeight, int[] result, int resultX, int resultY) {
+		int columns = (sourceWidth + factor - 1) / factor;
+		int rows = (sourceHeight + factor - 1) / factor;
+		int firstColumn = Math.max(0, -resultX), lastColumn = Math.min(columns, resultWidth - resultX);
+		int firstRow = Math.max(0, -resultY), lastRow = Math.min(rows, resultHeight - resultY);
+		for (int row = firstRow; row < lastRow; row++) {
+			int sy0 = row * factor, sy1 = Math.min(sy0 + factor, sourceHeight);
+			int resultIndex = (resultY + row) * resultWidth + resultX + firstColumn;
+			for (int column = firstColumn; column < lastColumn; column++, resultIndex++) {
+				int sx0 = column * factor, sx1 = Math.min(sx0 + factor, sourceWidth);
+				double sum = 0;
+				for (int sy = sy0; sy < sy1; sy++) {
+					int sourceIndex = offset + (sy * sourceWidth + sx0) * pixelStride;
+					for (int sx = sx0; sx < sx1; sx++, sourceIndex += pixelStride) {
+						int value = readInt(source, sourceIndex, littleEndian);
+						sum += signed? value: value & 0xffffffffL;
+					}
+				}
+				int count = (sy1 - sy0) * (sx1 - sx0);
+				result[resultIndex] = (int) Math.round(sum / count);
+			}
+		}
+	}
+
+	private void downsampleFloat(byte[] source, int offset, int pixelStride, boolean littleEndian, int sourceWidth,
+			int sourceHeight, float[] result, int resultX, int resultY) {
+		int columns = (sourceWidth + factor - 1) / factor;
+		int rows = (sourceHeight + factor - 1) / factor;
+		int firstColumn = Math.max(0, -resultX), lastColumn = Math.min(columns, resultWidth - resultX);
+		int firstRow = Math.max(0, -resultY), lastRow = Math.min(rows, resultHeight - resultY);
+		for (int row = firstRow; row < lastRow; row++) {
+			int sy0 = row * factor, sy1 = Math.min(sy0 + factor, sourceHeight);
+			int resultIndex = (resultY + row) * resultWidth + resultX + firstColumn;
+			for (int column = firstColumn; column < lastColumn; column++, resultIndex++) {
+				int sx0 = column * factor, sx1 = Math.min(sx0 + factor, sourceWidth);
+				double sum = 0;
+				for (int sy = sy0; sy < sy1; sy++) {
+					int sourceIndex = offset + (sy * sourceWidth + sx0) * pixelStride;
+					for (int sx = sx0; sx < sx1; sx++, sourceIndex += pixelStride) {
+						sum += Float.intBitsToFloat(readInt(source, sourceIndex, littleEndian));
+					}
+				}
+				result[resultIndex] = (float) (sum / ((sy1 - sy0) * (sx1 - sx0)));
+			}
+		}
+	}
+
+	private void downsampleDouble(byte[] source, int offset, int pixelStride, boolean littleEndian, int sourceWidth,
+			int sourceHeight, double[] result, int resultX, int resultY) {
+		int columns = (sourceWidth + factor - 1) / factor;
+		int rows = (sourceHeight + factor - 1) / factor;
+		int firstColumn = Math.max(0, -resultX), lastColumn = Math.min(columns, resultWidth - resultX);
+		int firstRow = Math.max(0, -resultY), lastRow = Math.min(rows, resultHeight - resultY);
+		for (int row = firstRow; row < lastRow; row++) {
+			int sy0 = row * factor, sy1 = Math.min(sy0 + factor, sourceHeight);
+			int resultIndex = (resultY + row) * resultWidth + resultX + firstColumn;
+			for (int column = firstColumn; column < lastColumn; column++, resultIndex++) {
+				int sx0 = column * factor, sx1 = Math.min(sx0 + factor, sourceWidth);
+				double sum = 0;
+				for (int sy = sy0; sy < sy1; sy++) {
+					int sourceIndex = offset + (sy * sourceWidth + sx0) * pixelStride;
+					for (int sx = sx0; sx < sx1; sx++, sourceIndex += pixelStride) {
+						sum += Double.longBitsToDouble(readLong(source, sourceIndex, littleEndian));
+					}
+				}
+				result[resultIndex] = sum / ((sy1 - sy0) * (sx1 - sx0));
+			}
+		}
+	}
+
+	private static int readInt(byte[] source, int index, boolean littleEndian) {
+		if (littleEndian) {
+			return (source[index] & 0xff) | ((source[index + 1] & 0xff) << 8) | ((source[index + 2] & 0xff) << 16)
+					| ((source[index + 3] & 0xff) << 24);
+		} else {
+			return ((source[index] & 0xff) << 24) | ((source[index + 1] & 0xff) << 16) | ((source[index + 2] & 0xff) << 8)
+					| (source[index + 3] & 0xff);
+		}
+	}
+
+	private static long readLong(byte[] source, int index, boolean littleEndian) {
+		long first = readInt(source, index, littleEndian) & 0xffffffffL;
+		long second = readInt(source, index + 4, littleEndian) & 0xffffffffL;
+		return littleEndian? (second << 32) | first: (first << 32) | second;
+	}
+}
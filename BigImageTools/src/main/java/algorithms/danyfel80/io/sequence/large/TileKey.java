@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Identifies a tile of an image file in the {@link SharedTileCache}: file,
+ * series, resolution, plane, channels and tile area. Two readers of the same
+ * file produce equal keys for the same tile.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public final class TileKey {
+
+	/**
+	 * Identifies a version of a file: its canonical path and modification time,
+	 * so that tiles of a rewritten file are not served from the cache.
+	 */
+	public static final class FileIdentity {
+		private final String path;
+		private final long modificationTime;
+
+		private FileIdentity(String path, long modificationTime) {
+			this.path = path;
+			this.modificationTime = modificationTime;
+		}
+
+		/**
+		 * @param filePath
+		 *          Path of an existing file.
+		 * @return The identity of the current version of the file.
+		 * @throws IOException
+		 *           If the file cannot be accessed.
+		 */
+		public static FileIdentity of(Path filePath) throws IOException {
+			Path realPath = filePath.toRealPath();
+			return new FileIdentity(realPath.toString(), Files.getLastModifiedTime(realPath).toMillis());
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public long getModificationTime() {
+			return modificationTime;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, modificationTime);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof FileIdentity))
+				return false;
+			FileIdentity other = (FileIdentity) obj;
+			return modificationTime == other.modificationTime && path.equals(other.path);
+		}
+
+		@Override
+		public String toString() {
+			return path + "@" + modificationTime;
+		}
+	}
+
+	private final FileIdentity file;
+	private final int series;
+	private final int resolution;
+	private final int[] channels;
+	private final int z;
+	private final int t;
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private final int hash;
+
+	/**
+	 * @param file
+	 *          File of the tile.
+	 * @param series
+	 *          Series of the tile.
+	 * @param resolution
+	 *          Resolution index of the pyramid level of the tile.
+	 * @param channels
+	 *          Channels of the tile, null for all the channels.
+	 * @param z
+	 *          Z position of the tile.
+	 * @param t
+	 *          T position of the tile.
+	 * @param tile
+	 *          Area of the tile, in pixels of its pyramid level. Tiles of
+	 *          different tile grids are different keys.
+	 */
+	public TileKey(FileIdentity file, int series, int resolution, int[] channels, int z, int t, Rectangle tile) {
+		this.file = Objects.requireNonNull(file);
+		this.series = series;
+		this.resolution = resolution;
+		this.channels = (channels != null)? channels.clone(): null;
+		this.z = z;
+		this.t = t;
+		this.x = tile.x;
+		this.y = tile.y;
+		this.width = tile.width;
+		this.height = tile.height;
+		this.hash = Objects.hash(file, series, resolution, Arrays.hashCode(this.channels), z, t, x, y, width, height);
+	}
+
+	public FileIdentity getFile() {
+		return file;
+	}
+
+	public int getSeries() {
+		return series;
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	public int[] getChannels() {
+		return (channels != null)? channels.clone(): null;
+	}
+
+	public int getZ() {
+		return z;
+	}
+
+	public int getT() {
+		return t;
+	}
+
+	public Rectangle getTile() {
+		return new Rectangle(x, y, width, height);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TileKey))
+			return false;
+		TileKey other = (TileKey) obj;
+		return hash == other.hash && series == other.series && resolution == other.resolution && z == other.z
+				&& t == other.t && x == other.x && y == other.y && width == other.width && height == other.height
+				&& Arrays.equals(channels, other.channels) && file.equals(other.file);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TileKey[%s, series=%d, resolution=%d, channels=%s, z=%d, t=%d, tile=(%d, %d, %d, %d)]", file,
+				series, resolution, Arrays.toString(channels), z, t, x, y, width, height);
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.io.IOException;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+
+/**
+ * Builds the sub-resolution levels of a tiled image while its tiles are
+ * written. Each level halves the size of the previous one. Tiles of a level
+ * are reduced 2x2 into a band holding one tile row of the next level, and the
+ * tiles of the band are handed to a {@link TileSink} as soon as the band is
+ * complete. Memory is then bounded by one tile row per level.
+ * <p>
+ * Tiles of each level must be added row by row. This class is not
+ * thread-safe, but {@link #reduce(IcyBufferedImage)} can be called from any
+ * thread.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TilePyramidBuilder {
+
+	/**
+	 * Receives the tiles of the sub-resolution levels.
+	 */
+	@FunctionalInterface
+	public interface TileSink {
+		/**
+		 * @param level
+		 *          Level of the tile, 1 being the first sub-resolution.
+		 * @param tileColumn
+		 *          Column of the tile in the grid of the level.
+		 * @param tileRow
+		 *          Row of the tile in the grid of the level.
+		 * @param tile
+		 *          Tile image, smaller than the tile size on the right and bottom
+		 *          edges of the level.
+		 * @throws IOException
+		 *           If the tile cannot be handled.
+		 */
+		void tileReady(int level, int tileColumn, int tileRow, IcyBufferedImage tile) throws IOException;
+	}
+
+	/**
+	 * @param imageSize
+	 *          Full resolution image size.
+	 * @param tileSize
+	 *          Tile size.
+	 * @return The amount of levels, including full resolution, needed for the
+	 *         lowest level to fit in a tile.
+	 */
+	public static int getLevelCount(Dimension imageSize, Dimension tileSize) {
+		int levelCount = 1;
+		Dimension levelSize = new Dimension(imageSize);
+		while (levelSize.width > tileSize.width || levelSize.height > tileSize.height) {
+			levelSize.setSize((levelSize.width + 1) / 2, (levelSize.height + 1) / 2);
+			levelCount++;
+		}
+		return levelCount;
+	}
+
+	/**
+	 * @param level
+	 *          Level index, 0 being full resolution.
+	 * @param imageSize
+	 *          Full resolution image size.
+	 * @return The size of the level.
+	 */
+	public static Dimension getLevelSize(int level, Dimension imageSize) {
+		Dimension levelSize = new Dimension(imageSize);
+		for (int l = 0; l < level; l++) {
+			levelSize.setSize((levelSize.width + 1) / 2, (levelSize.height + 1) / 2);
+		}
+		return levelSize;
+	}
+
+	/**
+	 * Reduces a tile by 2 in each direction, averaging 2x2 pixel blocks. Odd
+	 * last columns and rows are averaged with the pixels available.
+	 *
+	 * @param tile
+	 *          Tile image.
+	 * @return Reduced tile.
+	 */
+	public static IcyBufferedImage reduce(IcyBufferedImage tile) {
+		DataType dataType = tile.getDataType_();
+		int width = tile.getWidth();
+		int height = tile.getHeight();
+		int reducedWidth = (width + 1) / 2;
+		int reducedHeight = (height + 1) / 2;
+		IcyBufferedImage reducedTile = new IcyBufferedImage(reducedWidth, reducedHeight, tile.getSizeC(), dataType);
+
+		double[] row0 = new double[width];
+		double[] row1 = new double[width];
+		double[] reducedRow = new double[reducedWidth];
+		for (int c = 0; c < tile.getSizeC(); c++) {
+			Object data = tile.getDataXY(c);
+			Object reducedData = reducedTile.getDataXY(c);
+			for (int y = 0; y < reducedHeight; y++) {
+				AreaAveragingResampler.toDouble(dataType, data, 2 * y * width, row0);
+				boolean fullBlock = 2 * y + 1 < height;
+				if (fullBlock)
+					AreaAveragingResampler.toDouble(dataType, data, (2 * y + 1) * width, row1);
+				for (int x = 0; x < reducedWidth; x++) {
+					int x1 = Math.min(2 * x + 1, width - 1);
+					double sum = row0[2 * x] + row0[x1];
+					if (fullBlock)
+						sum += row1[2 * x] + row1[x1];
+					reducedRow[x] = sum / (fullBlock? 4: 2);
+				}
+				AreaAveragingResampler.fromDouble(dataType, reducedRow, reducedData, y * reducedWidth);
+			}
+		}
+		reducedTile.dataChanged();
+		return reducedTile;
+	}
+
+	private final DataType dataType;
+	private final int channelCount;
+	private final Dimension tileSize;
+	private final int levelCount;
+	private final TileSink sink;
+
+	private final Dimension[] levelSizes;
+	private final Object[][] bands;
+
+	/**
+	 * @param imageSize
+	 *          Full resolution image size.
+	 * @param tileSize
+	 *          Tile size, with even width and height.
+	 * @param channelCount
+	 *          Amount of channels of the tiles.
+	 * @param dataType
+	 *          Data type of the tiles.
+	 * @param levelCount
+	 *          Amount of levels, including full resolution.
+	 * @param sink
+	 *          Receiver of the tiles of the sub-resolution levels.
+	 */
+	public TilePyramidBuilder(Dimension imageSize, Dimension tileSize, int channelCount, DataType dataType,
+			int levelCount, TileSink sink) {
+		if (tileSize.width % 2 != 0 || tileSize.height % 2 != 0)
+			throw new IllegalArgumentException("Tile size must be even: " + tileSize);
+		this.dataType = dataType;
+		this.channelCount = channelCount;
+		this.tileSize = new Dimension(tileSize);
+		this.levelCount = levelCount;
+		this.sink = sink;
+
+		this.levelSizes = new Dimension[levelCount];
+		this.bands = new Object[levelCount][];
+		for (int level = 0; level < levelCount; level++) {
+			levelSizes[level] = getLevelSize(level, imageSize);
+		}
+	}
+
+	public int getLevelCount() {
+		return levelCount;
+	}
+
+	public Dimension getLevelSize(int level) {
+		return new Dimension(levelSizes[level]);
+	}
+
+	/**
+	 * @param level
+	 *          Level index.
+	 * @return The size of the tile grid of the level.
+	 */
+	public Dimension getTileGridSize(int level) {
+		return new Dimension((levelSizes[level].width + tileSize.width - 1) / tileSize.width,
+				(levelSizes[level].height + tileSize.height - 1) / tileSize.height);
+	}
+
+	/**
+	 * Adds a tile of the previous level, already reduced with
+	 * {@link #reduce(IcyBufferedImage)}, to a level. Tiles of a level must be
+	 * added row by row, each row from left to right.
+	 *
+	 * @param level
+	 *          Level receiving the tile, at least 1.
+	 * @param sourceTileColumn
+	 *          Column of the tile in the grid of the previous level.
+	 * @param sourceTileRow
+	 *          Row of the tile in the grid of the previous level.
+	 * @param reducedTile
+	 *          Reduced tile.
+	 * @throws IOException
+	 *           If the sink fails.
+	 */
+	public void addReducedTile(int level, int sourceTileColumn, int sourceTileRow, IcyBufferedImage reducedTile)
+			throws IOException {
+		if (level < 1 || level >= levelCount)
+			return;
+
+		Dimension levelSize = levelSizes[level];
+		Object[] band = getBand(level);
+		int bandX = sourceTileColumn * tileSize.width / 2;
+		int bandY = (sourceTileRow % 2) * tileSize.height / 2;
+		int width = reducedTile.getWidth();
+		for (int c = 0; c < channelCount; c++) {
+			Object data = reducedTile.getDataXY(c);
+			for (int y = 0; y < reducedTile.getHeight(); y++) {
+				System.arraycopy(data, y * width, band[c], (bandY + y) * levelSize.width + bandX, width);
+			}
+		}
+
+		Dimension sourceGridSize = getTileGridSize(level - 1);
+		boolean lastSourceColumn = sourceTileColumn == sourceGridSize.width - 1;
+		boolean lastSourceRowOfBand = sourceTileRow % 2 == 1 || sourceTileRow == sourceGridSize.height - 1;
+		if (lastSourceColumn && lastSourceRowOfBand)
+			flushBand(level, sourceTileRow / 2);
+	}
+
+	private Object[] getBand(int level) {
+		if (bands[level] == null) {
+			bands[level] = new Object[channelCount];
+			int bandLength = levelSizes[level].width * tileSize.height;
+			for (int c = 0; c < channelCount; c++) {
+				bands[level][c] = createArray(bandLength);
+			}
+		}
+		return bands[level];
+	}
+
+	private Object createArray(int length) {
+		switch (dataType) {
+		case UBYTE:
+		case BYTE:
+			return new byte[length];
+		case USHORT:
+		case SHORT:
+			return new short[length];
+		case UINT:
+		case INT:
+			return new int[length];
+		case FLOAT:
+			return new float[length];
+		case DOUBLE:
+			return new double[length];
+		default:
+			throw new IllegalArgumentException("Unsupported data type: " + dataType);
+		}
+	}
+
+	/**
+	 * Hands the tiles of a complete band to the sink and reduces them into the
+	 * next level.
+	 */
+	private void flushBand(int level, int tileRow) throws IOException {
+		Dimension levelSize = levelSizes[level];
+		Object[] band = bands[level];
+		int tileY = tileRow * tileSize.height;
+		int tileHeight = Math.min(tileSize.height, levelSize.height - tileY);
+		Dimension gridSize = getTileGridSize(level);
+		for (int tileColumn = 0; tileColumn < gridSize.width; tileColumn++) {
+			int tileX = tileColumn * tileSize.width;
+			int tileWidth = Math.min(tileSize.width, levelSize.width - tileX);
+			IcyBufferedImage tile = new IcyBufferedImage(tileWidth, tileHeight, channelCount, dataType);
+			for (int c = 0; c < channelCount; c++) {
+				Object data = tile.getDataXY(c);
+				for (int y = 0; y < tileHeight; y++) {
+					System.arraycopy(band[c], y * levelSize.width + tileX, data, y * tileWidth, tileWidth);
+				}
+			}
+			tile.dataChanged();
+
+			sink.tileReady(level, tileColumn, tileRow, tile);
+			if (level + 1 < levelCount)
+				addReducedTile(level + 1, tileColumn, tileRow, reduce(tile));
+		}
+		if (tileRow == gridSize.height - 1)
+			bands[level] = null;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+
+/**
+ * Chooses the size of the blocks read from a file so that each native tile or
+ * strip is decoded once:
+ * <ul>
+ * <li>Strips spanning the whole image width are read as full-width bands made
+ * of whole strips.</li>
+ * <li>Small native tiles are merged into blocks of whole tiles of at least
+ * {@link #getMinBlockSize()} pixels per side.</li>
+ * <li>Native tiles are never split unless a single one exceeds the memory
+ * budget of a block.</li>
+ * </ul>
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TileReadPlanner {
+
+	private static final int DEFAULT_TILE_SIZE = 256;
+
+	private final Dimension imageSize;
+	private final Dimension nativeTileSize;
+	private final int bytesPerPixel;
+	private int minBlockSize;
+	private long maxBlockBytes;
+
+	/**
+	 * @param imageSize
+	 *          Size of the image (or pyramid level) to read.
+	 * @param nativeTileSize
+	 *          Size of the tiles as stored in the file. Strips are reported as
+	 *          tiles as wide as the image. Non positive sizes mean an unknown
+	 *          layout.
+	 * @param bytesPerPixel
+	 *          Size of a pixel with all its channels.
+	 */
+	public TileReadPlanner(Dimension imageSize, Dimension nativeTileSize, int bytesPerPixel) {
+		this.imageSize = new Dimension(imageSize);
+		this.nativeTileSize = new Dimension(nativeTileSize);
+		this.bytesPerPixel = Math.max(1, bytesPerPixel);
+		this.minBlockSize = DEFAULT_TILE_SIZE;
+		this.maxBlockBytes = 16L * 1024 * 1024;
+	}
+
+	public int getMinBlockSize() {
+		return minBlockSize;
+	}
+
+	/**
+	 * @param minBlockSize
+	 *          Minimum side, in pixels, of blocks made of small native tiles.
+	 */
+	public void setMinBlockSize(int minBlockSize) {
+		this.minBlockSize = minBlockSize;
+	}
+
+	public long getMaxBlockBytes() {
+		return maxBlockBytes;
+	}
+
+	/**
+	 * @param maxBlockBytes
+	 *          Maximum size in bytes of a decoded block.
+	 */
+	public void setMaxBlockBytes(long maxBlockBytes) {
+		this.maxBlockBytes = maxBlockBytes;
+	}
+
+	/**
+	 * @return True if the image is stored in strips spanning its whole width.
+	 */
+	public boolean isStripped() {
+		return nativeTileSize.width >= imageSize.width && nativeTileSize.height > 0;
+	}
+
+	private boolean isLayoutKnown() {
+		return nativeTileSize.width > 0 && nativeTileSize.height > 0;
+	}
+
+	/**
+	 * @return The size of the blocks to read.
+	 */
+	public Dimension getReadBlockSize() {
+		if (!isLayoutKnown())
+			return new Dimension(DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE);
+
+		if (isStripped())
+			return getBandSize();
+
+		int tileWidth = Math.min(nativeTileSize.width, imageSize.width);
+		int tileHeight = Math.min(nativeTileSize.height, imageSize.height);
+		if (getBytes(tileWidth, tileHeight) > maxBlockBytes) {
+			// Too big to be read at once, native tiles are split.
+			return new Dimension(DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE);
+		}
+
+		int tilesPerBlockX = Math.max(1, (minBlockSize + tileWidth - 1) / tileWidth);
+		int tilesPerBlockY = Math.max(1, (minBlockSize + tileHeight - 1) / tileHeight);
+		while ((tilesPerBlockX > 1 || tilesPerBlockY > 1)
+				&& getBytes(tileWidth * tilesPerBlockX, tileHeight * tilesPerBlockY) > maxBlockBytes) {
+			if (tilesPerBlockX >= tilesPerBlockY)
+				tilesPerBlockX--;
+			else
+				tilesPerBlockY--;
+		}
+		return new Dimension(Math.min(tileWidth * tilesPerBlockX, imageSize.width),
+				Math.min(tileHeight * tilesPerBlockY, imageSize.height));
+	}
+
+	private Dimension getBandSize() {
+		int stripHeight = nativeTileSize.height;
+		long maxRows = Math.max(1, maxBlockBytes / getBytes(imageSize.width, 1));
+		if (stripHeight > maxRows) {
+			// A single strip does not fit in the budget, it will be decoded once per band.
+			return new Dimension(imageSize.width, (int) maxRows);
+		}
+		int stripsPerBand = Math.max(1, (minBlockSize + stripHeight - 1) / stripHeight);
+		stripsPerBand = (int) Math.min(stripsPerBand, maxRows / stripHeight);
+		return new Dimension(imageSize.width, Math.min(stripHeight * stripsPerBand, imageSize.height));
+	}
+
+	private long getBytes(int width, int height) {
+		return (long) width * height * bytesPerPixel;
+	}
+}
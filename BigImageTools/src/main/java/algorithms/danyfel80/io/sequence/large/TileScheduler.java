@@ -0,0 +1,327 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs tile tasks on a work-stealing executor while keeping a bounded amount
+ * of them in flight. Tasks are submitted lazily, so scheduling millions of
+ * tiles does not queue millions of objects.
+ * <p>
+ * When adaptive, the amount of tasks in flight follows the ratio between the
+ * time tasks spend waiting (file reads) and the time they spend computing
+ * (decoding and scaling): I/O-bound imports get more tasks in flight than
+ * available processors, CPU-bound ones get about one per processor. Tasks
+ * waiting on a shared resource, such as a bounded reader pool, also count as
+ * waiting, so the adaptation must be limited to the amount of tasks the
+ * resource can serve (see {@link #setAdaptiveLimit(int)}).
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TileScheduler implements AutoCloseable {
+
+	/**
+	 * Work unit executed by the scheduler.
+	 */
+	@FunctionalInterface
+	public interface TileTask {
+		/**
+		 * @param taskIndex
+		 *          Index of the task, between 0 and the task count.
+		 * @throws Exception
+		 *           If the task fails. Remaining tasks are not started.
+		 */
+		void run(int taskIndex) throws Exception;
+	}
+
+	private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+	private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+	private final ExecutorService executor;
+	private final boolean ownedExecutor;
+	private final int maxParallelism;
+
+	private final ReentrantLock lock;
+	private final Condition taskFinished;
+	private int parallelism;
+	private volatile boolean adaptive;
+	private int adaptiveLimit;
+	private double averageWaitTime;
+	private double averageComputeTime;
+
+	/**
+	 * Creates a scheduler with its own work-stealing pool of
+	 * {@code 4 * processors} threads, starting with {@code 2 * processors}
+	 * tasks in flight.
+	 */
+	public TileScheduler() {
+		this(new ForkJoinPool(PROCESSORS * 4, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true), true,
+				PROCESSORS * 4);
+	}
+
+	/**
+	 * Creates a scheduler that runs tasks on the given executor. The executor is
+	 * not shut down when the scheduler is closed.
+	 *
+	 * @param executor
+	 *          Executor running the tasks.
+	 * @param maxParallelism
+	 *          Maximum amount of tasks in flight.
+	 */
+	public TileScheduler(ExecutorService executor, int maxParallelism) {
+		this(executor, false, maxParallelism);
+	}
+
+	private TileScheduler(ExecutorService executor, boolean ownedExecutor, int maxParallelism) {
+		if (maxParallelism < 1)
+			throw new IllegalArgumentException("At least one task must be allowed in flight: " + maxParallelism);
+		this.executor = executor;
+		this.ownedExecutor = ownedExecutor;
+		this.maxParallelism = maxParallelism;
+		this.lock = new ReentrantLock();
+		this.taskFinished = lock.newCondition();
+		this.adaptiveLimit = maxParallelism;
+		this.parallelism = Math.min(PROCESSORS * 2, maxParallelism);
+		this.adaptive = threadBean.isCurrentThreadCpuTimeSupported();
+	}
+
+	public int getMaxParallelism() {
+		return maxParallelism;
+	}
+
+	public int getParallelism() {
+		lock.lock();
+		try {
+			return parallelism;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets a fixed amount of tasks in flight and disables adaptation.
+	 *
+	 * @param parallelism
+	 *          Amount of tasks in flight, clamped to the maximum parallelism.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("At least one task must be allowed in flight: " + parallelism);
+		lock.lock();
+		try {
+			this.parallelism = Math.min(parallelism, maxParallelism);
+			this.adaptive = false;
+			taskFinished.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isAdaptive() {
+		lock.lock();
+		try {
+			return adaptive;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param adaptive
+	 *          Whether the amount of tasks in flight follows the measured wait
+	 *          and compute times of tasks. Ignored if the JVM cannot measure
+	 *          thread CPU time.
+	 */
+	public void setAdaptive(boolean adaptive) {
+		lock.lock();
+		try {
+			this.adaptive = adaptive && threadBean.isCurrentThreadCpuTimeSupported();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getAdaptiveLimit() {
+		lock.lock();
+		try {
+			return adaptiveLimit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Limits the amount of tasks in flight chosen by the adaptation, e.g. to the
+	 * amount of readers tasks can borrow. Blocking on such a resource is
+	 * measured as waiting and would otherwise raise the parallelism up to the
+	 * maximum.
+	 *
+	 * @param adaptiveLimit
+	 *          Maximum amount of tasks in flight when adaptive, clamped to the
+	 *          maximum parallelism.
+	 */
+	public void setAdaptiveLimit(int adaptiveLimit) {
+		if (adaptiveLimit < 1)
+			throw new IllegalArgumentException("At least one task must be allowed in flight: " + adaptiveLimit);
+		lock.lock();
+		try {
+			this.adaptiveLimit = Math.min(adaptiveLimit, maxParallelism);
+			if (adaptive)
+				parallelism = Math.min(parallelism, this.adaptiveLimit);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the tasks {@code 0} to {@code taskCount - 1} and waits for all of
+	 * them to finish. Tasks may run in any order.
+	 *
+	 * @param taskCount
+	 *          Amount of tasks.
+	 * @param task
+	 *          Task to run for each index.
+	 * @param progressListener
+	 *          Receives the amount of finished tasks. Called on the calling
+	 *          thread. Can be null.
+	 * @throws InterruptedException
+	 *           If the calling thread is interrupted. Tasks already in flight
+	 *           keep running.
+	 * @throws ExecutionException
+	 *           If a task fails. The first failure is reported once all tasks in
+	 *           flight have finished.
+	 */
+	public void run(int taskCount, TileTask task, IntConsumer progressListener)
+			throws InterruptedException, ExecutionException {
+		Run run = new Run();
+		int reportedTasks = 0;
+		for (int taskIndex = 0; taskIndex < taskCount; taskIndex++) {
+			lock.lock();
+			try {
+				while (run.failure == null && run.tasksInFlight >= parallelism) {
+					taskFinished.await();
+				}
+				if (run.failure != null)
+					break;
+				run.tasksInFlight++;
+				reportedTasks = reportProgress(run, reportedTasks, progressListener);
+			} finally {
+				lock.unlock();
+			}
+			submit(run, task, taskIndex);
+		}
+
+		lock.lock();
+		try {
+			while (run.tasksInFlight > 0) {
+				taskFinished.await();
+				reportedTasks = reportProgress(run, reportedTasks, progressListener);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (run.failure != null)
+			throw new ExecutionException(run.failure);
+	}
+
+	private static class Run {
+		private int tasksInFlight;
+		private int finishedTasks;
+		private Throwable failure;
+	}
+
+	private int reportProgress(Run run, int reportedTasks, IntConsumer progressListener) {
+		if (progressListener != null && run.finishedTasks != reportedTasks)
+			progressListener.accept(run.finishedTasks);
+		return run.finishedTasks;
+	}
+
+	private void submit(Run run, TileTask task, int taskIndex) {
+		try {
+			executor.execute(() -> {
+				long startTime = System.nanoTime();
+				long startCpuTime = adaptive? threadBean.getCurrentThreadCpuTime(): 0;
+				Throwable failure = null;
+				try {
+					task.run(taskIndex);
+				} catch (Throwable e) {
+					failure = e;
+				}
+				long elapsedTime = System.nanoTime() - startTime;
+				long computeTime = adaptive? threadBean.getCurrentThreadCpuTime() - startCpuTime: 0;
+				finishTask(run, failure, elapsedTime, computeTime);
+			});
+		} catch (RuntimeException e) {
+			finishTask(run, e, 0, 0);
+		}
+	}
+
+	private void finishTask(Run run, Throwable failure, long elapsedTime, long computeTime) {
+		lock.lock();
+		try {
+			run.tasksInFlight--;
+			run.finishedTasks++;
+			if (failure != null && run.failure == null)
+				run.failure = failure;
+			if (adaptive && failure == null && elapsedTime > 0)
+				adaptParallelism(Math.max(0, elapsedTime - computeTime), Math.max(1, computeTime));
+			taskFinished.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void adaptParallelism(long waitTime, long computeTime) {
+		// Exponential moving averages, so the estimate follows changes in the file
+		// (e.g. reaching cached regions) without reacting to every single tile.
+		averageWaitTime = (averageWaitTime == 0)? waitTime: averageWaitTime * 0.9 + waitTime * 0.1;
+		averageComputeTime = (averageComputeTime == 0)? computeTime: averageComputeTime * 0.9 + computeTime * 0.1;
+		int targetParallelism = (int) Math.round(PROCESSORS * (1 + averageWaitTime / averageComputeTime));
+		parallelism = Math.max(1, Math.min(targetParallelism, adaptiveLimit));
+	}
+
+	/**
+	 * Shuts down the executor if it was created by this scheduler. Threads still
+	 * running after a second, e.g. inside a decode that ignores interruption,
+	 * are reported but do not fail the close, as it is called while another
+	 * failure may be in flight.
+	 *
+	 * @throws InterruptedException
+	 *           If interrupted while waiting for the executor threads to stop.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		if (ownedExecutor) {
+			executor.shutdownNow();
+			if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				System.err.println("Importer threads did not finish, they will stop after their current tile.");
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Order in which the tiles of a tile grid are read. Orders following the file
+ * layout reduce seeks and repeated strip decoding, space filling curves keep
+ * consecutive tiles close to each other in both directions.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public enum TileTraversalOrder {
+	/**
+	 * Row by row, left to right.
+	 */
+	ROW_MAJOR("Row major"),
+	/**
+	 * Increasing offset of the tiles in the file. Falls back to
+	 * {@link #ROW_MAJOR} if the file layout is unknown.
+	 */
+	FILE_OFFSET("File offset"),
+	/**
+	 * Z-order (Morton) curve.
+	 */
+	Z_ORDER("Z-order"),
+	/**
+	 * Hilbert curve.
+	 */
+	HILBERT("Hilbert"),
+	/**
+	 * Column by column inside bands of rows covered by the same native strip or
+	 * tile row, band after band.
+	 */
+	STRIP_ALIGNED("Strip aligned");
+
+	private final String name;
+
+	private TileTraversalOrder(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return True if the order needs the native layout of the file.
+	 */
+	public boolean isUsingNativeLayout() {
+		return this == FILE_OFFSET || this == STRIP_ALIGNED;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Computes the order of the tiles in a tile grid.
+	 *
+	 * @param tileGrid
+	 *          Tile grid, in tiles.
+	 * @param tileSize
+	 *          Size of the tiles of the grid, in pixels.
+	 * @param nativeLayout
+	 *          Layout of the tiles in the file. Can be null.
+	 * @return Indices of the tiles in the grid ({@code y * width + x}, relative to
+	 *         the grid origin) in traversal order.
+	 */
+	public int[] getTileOrder(Rectangle tileGrid, Dimension tileSize, NativeTileLayout nativeLayout) {
+		int tileCount = tileGrid.width * tileGrid.height;
+		switch (this) {
+		case FILE_OFFSET:
+			if (nativeLayout != null)
+				return getFileOffsetOrder(tileGrid, tileSize, nativeLayout);
+			break;
+		case Z_ORDER:
+			if (tileGrid.width <= 0xFFFF && tileGrid.height <= 0xFFFF)
+				return sortByKey(tileCount, index -> interleaveBits(index % tileGrid.width, index / tileGrid.width));
+			break;
+		case HILBERT:
+			if (tileGrid.width <= 0xFFFF && tileGrid.height <= 0xFFFF) {
+				int side = Integer.highestOneBit(Math.max(1, Math.max(tileGrid.width, tileGrid.height) - 1)) << 1;
+				return sortByKey(tileCount,
+						index -> getHilbertDistance(side, index % tileGrid.width, index / tileGrid.width));
+			}
+			break;
+		case STRIP_ALIGNED:
+			int bandHeight = 1;
+			if (nativeLayout != null)
+				bandHeight = Math.max(1, nativeLayout.getTileSize().height / tileSize.height);
+			return getBandOrder(tileGrid, bandHeight);
+		default:
+			break;
+		}
+		return getRowMajorOrder(tileCount);
+	}
+
+	private static int[] getRowMajorOrder(int tileCount) {
+		int[] order = new int[tileCount];
+		for (int i = 0; i < tileCount; i++) {
+			order[i] = i;
+		}
+		return order;
+	}
+
+	private static int[] getBandOrder(Rectangle tileGrid, int bandHeight) {
+		int[] order = new int[tileGrid.width * tileGrid.height];
+		int i = 0;
+		for (int bandY = 0; bandY < tileGrid.height; bandY += bandHeight) {
+			int bandEnd = Math.min(bandY + bandHeight, tileGrid.height);
+			for (int x = 0; x < tileGrid.width; x++) {
+				for (int y = bandY; y < bandEnd; y++) {
+					order[i++] = y * tileGrid.width + x;
+				}
+			}
+		}
+		return order;
+	}
+
+	private static int[] getFileOffsetOrder(Rectangle tileGrid, Dimension tileSize, NativeTileLayout nativeLayout) {
+		int tileCount = tileGrid.width * tileGrid.height;
+		long[] offsets = new long[tileCount];
+		for (int index = 0; index < tileCount; index++) {
+			offsets[index] = getTileOffset(tileGrid, tileSize, nativeLayout, index);
+		}
+		// Offsets are replaced by their rank so that they can be packed with the
+		// tile index in a single long.
+		long[] sortedOffsets = offsets.clone();
+		Arrays.sort(sortedOffsets);
+		return sortByKey(tileCount, index -> Arrays.binarySearch(sortedOffsets, offsets[index]));
+	}
+
+	private static long getTileOffset(Rectangle tileGrid, Dimension tileSize, NativeTileLayout nativeLayout,
+			int index) {
+		int x = (tileGrid.x + index % tileGrid.width) * tileSize.width;
+		int y = (tileGrid.y + index / tileGrid.width) * tileSize.height;
+		return nativeLayout.getTileOffset(x, y);
+	}
+
+	@FunctionalInterface
+	private interface SortKey {
+		long get(int index);
+	}
+
+	/**
+	 * Sorts tile indices by an unsigned 32 bit key without boxing.
+	 */
+	private static int[] sortByKey(int tileCount, SortKey key) {
+		long[] entries = new long[tileCount];
+		for (int index = 0; index < tileCount; index++) {
+			entries[index] = ((key.get(index) << 32) | index) ^ Long.MIN_VALUE;
+		}
+		Arrays.sort(entries);
+		int[] order = new int[tileCount];
+		for (int i = 0; i < tileCount; i++) {
+			order[i] = (int) entries[i];
+		}
+		return order;
+	}
+
+	private static long interleaveBits(int x, int y) {
+		return spreadBits(x) | (spreadBits(y) << 1);
+	}
+
+	private static long spreadBits(int value) {
+		long v = value & 0xFFFFL;
+		v = (v | (v << 8)) & 0x00FF00FFL;
+		v = (v | (v << 4)) & 0x0F0F0F0FL;
+		v = (v | (v << 2)) & 0x33333333L;
+		v = (v | (v << 1)) & 0x55555555L;
+		return v;
+	}
+
+	private static long getHilbertDistance(int side, int x, int y) {
+		long distance = 0;
+		for (int s = side / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0? 1: 0;
+			int ry = (y & s) > 0? 1: 0;
+			distance += (long) s * s * ((3 * rx) ^ ry);
+			if (ry == 0) {
+				if (rx == 1) {
+					x = side - 1 - x;
+					y = side - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return distance;
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import algorithms.danyfel80.io.sequence.tileprovider.ITileProvider;
+import icy.common.exception.UnsupportedFormatException;
+import icy.image.IcyBufferedImage;
+import icy.sequence.MetaDataUtil;
+import icy.sequence.Sequence;
+import icy.type.DataType;
+import icy.type.TypeUtil;
+import ome.xml.meta.OMEXMLMetadata;
+import plugins.kernel.importer.LociImporterPlugin;
+
+/**
+ * Image whose pixels are fetched tile by tile on demand from an
+ * {@link ITileProvider}. Only a bounded number of tiles is kept in memory, so
+ * images larger than the heap (or larger than 2^31 pixels) can be accessed
+ * with constant memory usage. Pixel coordinates are expressed as longs.
+ * <p>
+ * The image can be read from several threads. A missing tile is read once even
+ * if requested concurrently, and different tiles are read in parallel when the
+ * tile provider is thread-safe.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class VirtualLargeImage implements AutoCloseable {
+
+	/**
+	 * Opens the given file as a virtual image.
+	 *
+	 * @param filePath
+	 *          Path of the image file.
+	 * @param maxCachedTiles
+	 *          Maximum amount of decoded tiles kept in memory.
+	 * @return The virtual image. Tiles are read with readers borrowed from the
+	 *         {@link LargeSequenceReaderPool} for each missing tile.
+	 * @throws LargeSequenceImporterException
+	 *           If the file cannot be opened.
+	 */
+	public static VirtualLargeImage open(Path filePath, int maxCachedTiles) throws LargeSequenceImporterException {
+		if (!Files.exists(filePath)) {
+			throw new LargeSequenceImporterException(String.format("The file path does not exist: %s", filePath));
+		}
+
+		LociImporterPlugin importer;
+		try {
+			importer = LargeSequenceReaderPool.getInstance().borrowReader(filePath);
+		} catch (UnsupportedFormatException | IOException e) {
+			throw new LargeSequenceImporterException(String.format("Could not open the file: %s", filePath), e);
+		}
+
+		try {
+			OMEXMLMetadata metadata = importer.getOMEXMLMetaData();
+			Dimension tileSize = new Dimension(importer.getTileWidth(0), importer.getTileHeight(0));
+			if (tileSize.width <= 0 || tileSize.height <= 0 || tileSize.width > 2048 || tileSize.height > 2048)
+				tileSize.setSize(256, 256);
+
+			Dimension imageSize = new Dimension(MetaDataUtil.getSizeX(metadata, 0), MetaDataUtil.getSizeY(metadata, 0));
+			VirtualLargeImage image = new VirtualLargeImage(new PooledTileProvider(filePath, imageSize, tileSize),
+					imageSize.width, imageSize.height, MetaDataUtil.getSizeC(metadata, 0),
+					MetaDataUtil.getDataType(metadata, 0), tileSize, maxCachedTiles);
+			image.setName(MetaDataUtil.getName(metadata, 0));
+			return image;
+		} catch (UnsupportedFormatException | IOException e) {
+			throw new LargeSequenceImporterException(String.format("Could not open the file: %s", filePath), e);
+		} finally {
+			LargeSequenceReaderPool.getInstance().releaseReader(importer);
+		}
+	}
+
+	/**
+	 * Reads each tile with a reader borrowed from the
+	 * {@link LargeSequenceReaderPool}, so that tiles can be read in parallel.
+	 */
+	private static class PooledTileProvider implements ITileProvider {
+		private final Path filePath;
+		private final Dimension imageSize;
+		private final Dimension tileSize;
+
+		PooledTileProvider(Path filePath, Dimension imageSize, Dimension tileSize) {
+			this.filePath = filePath;
+			this.imageSize = new Dimension(imageSize);
+			this.tileSize = new Dimension(tileSize);
+		}
+
+		@Override
+		public IcyBufferedImage getTile(Point tile) throws IOException {
+			int x = tile.x * tileSize.width;
+			int y = tile.y * tileSize.height;
+			Rectangle tileRectangle = new Rectangle(x, y, Math.min(tileSize.width, imageSize.width - x),
+					Math.min(tileSize.height, imageSize.height - y));
+			try {
+				LociImporterPlugin reader = LargeSequenceReaderPool.getInstance().borrowReader(filePath);
+				try {
+					return reader.getImage(0, 0, tileRectangle, 0, 0);
+				} finally {
+					LargeSequenceReaderPool.getInstance().releaseReader(reader);
+				}
+			} catch (UnsupportedFormatException e) {
+				throw new IOException(String.format("Could not get the tile image (%s)", tileRectangle), e);
+			}
+		}
+
+		@Override
+		public boolean isThreadSafe() {
+			return true;
+		}
+	}
+
+	private final ITileProvider tileProvider;
+	private final long sizeX;
+	private final long sizeY;
+	private final int sizeC;
+	private final DataType dataType;
+	private final Dimension tileSize;
+	private final Map<Point, IcyBufferedImage> tileCache;
+	private final ConcurrentHashMap<Point, CompletableFuture<IcyBufferedImage>> loadingTiles;
+
+	private String name;
+
+	/**
+	 * @param tileProvider
+	 *          Provider of the tiles of the image.
+	 * @param sizeX
+	 *          Width of the image.
+	 * @param sizeY
+	 *          Height of the image.
+	 * @param sizeC
+	 *          Amount of channels of the image.
+	 * @param dataType
+	 *          Data type of the image.
+	 * @param tileSize
+	 *          Size of the tiles returned by the tile provider.
+	 * @param maxCachedTiles
+	 *          Maximum amount of decoded tiles kept in memory.
+	 */
+	public VirtualLargeImage(ITileProvider tileProvider, long sizeX, long sizeY, int sizeC, DataType dataType,
+			Dimension tileSize, int maxCachedTiles) {
+		if (maxCachedTiles < 1)
+			throw new IllegalArgumentException("At least one tile must be cached: " + maxCachedTiles);
+		this.tileProvider = tileProvider;
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeC = sizeC;
+		this.dataType = dataType;
+		this.tileSize = new Dimension(tileSize);
+		this.tileCache = new LinkedHashMap<Point, IcyBufferedImage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Point, IcyBufferedImage> eldest) {
+				return size() > maxCachedTiles;
+			}
+		};
+		this.loadingTiles = new ConcurrentHashMap<>();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public long getSizeX() {
+		return sizeX;
+	}
+
+	public long getSizeY() {
+		return sizeY;
+	}
+
+	public int getSizeC() {
+		return sizeC;
+	}
+
+	public DataType getDataType() {
+		return dataType;
+	}
+
+	public Dimension getTileSize() {
+		return new Dimension(tileSize);
+	}
+
+	/**
+	 * @param x
+	 *          Pixel x position.
+	 * @param y
+	 *          Pixel y position.
+	 * @param c
+	 *          Channel.
+	 * @return Value of the pixel at the given position.
+	 * @throws IOException
+	 *           If the tile containing the pixel cannot be retrieved.
+	 */
+	public double getValue(long x, long y, int c) throws IOException {
+		checkPosition(x, y);
+		IcyBufferedImage tile = getTile((int) (x / tileSize.width), (int) (y / tileSize.height));
+		Object data = tile.getDataXY(c);
+		int index = (int) (y % tileSize.height) * tile.getSizeX() + (int) (x % tileSize.width);
+		switch (dataType) {
+		case UBYTE:
+		case BYTE:
+			return TypeUtil.toDouble(((byte[]) data)[index], dataType.isSigned());
+		case USHORT:
+		case SHORT:
+			return TypeUtil.toDouble(((short[]) data)[index], dataType.isSigned());
+		case UINT:
+		case INT:
+			return TypeUtil.toDouble(((int[]) data)[index], dataType.isSigned());
+		case FLOAT:
+			return ((float[]) data)[index];
+		case DOUBLE:
+			return ((double[]) data)[index];
+		default:
+			throw new UnsupportedOperationException("Unsupported data type: " + dataType);
+		}
+	}
+
+	private void checkPosition(long x, long y) {
+		if (x < 0 || y < 0 || x >= sizeX || y >= sizeY)
+			throw new IndexOutOfBoundsException(String.format("Position (%d, %d) out of image (%d, %d)", x, y, sizeX, sizeY));
+	}
+
+	/**
+	 * Retrieves the tile at the given tile index, from the cache if possible.
+	 * When several threads request the same missing tile, it is read once and
+	 * the other threads wait for it.
+	 *
+	 * @param tileX
+	 *          Tile column.
+	 * @param tileY
+	 *          Tile row.
+	 * @return The tile image.
+	 * @throws IOException
+	 *           If the tile cannot be retrieved.
+	 */
+	public IcyBufferedImage getTile(int tileX, int tileY) throws IOException {
+		Point tileIndex = new Point(tileX, tileY);
+		synchronized (tileCache) {
+			IcyBufferedImage tile = tileCache.get(tileIndex);
+			if (tile != null)
+				return tile;
+		}
+		return loadTile(tileIndex);
+	}
+
+	private IcyBufferedImage loadTile(Point tileIndex) throws IOException {
+		CompletableFuture<IcyBufferedImage> loading = new CompletableFuture<>();
+		CompletableFuture<IcyBufferedImage> currentLoading = loadingTiles.putIfAbsent(tileIndex, loading);
+		if (currentLoading != null)
+			return awaitTile(currentLoading, tileIndex);
+
+		try {
+			// The tile may have been cached between the miss and the registration of
+			// this load.
+			IcyBufferedImage tile;
+			synchronized (tileCache) {
+				tile = tileCache.get(tileIndex);
+			}
+			if (tile == null) {
+				tile = readTile(tileIndex);
+				synchronized (tileCache) {
+					tileCache.put(tileIndex, tile);
+				}
+			}
+			loading.complete(tile);
+			return tile;
+		} catch (IOException | RuntimeException e) {
+			loading.completeExceptionally(e);
+			throw e;
+		} finally {
+			loadingTiles.remove(tileIndex, loading);
+		}
+	}
+
+	private IcyBufferedImage readTile(Point tileIndex) throws IOException {
+		if (tileProvider.isThreadSafe())
+			return tileProvider.getTile(tileIndex);
+		synchronized (tileProvider) {
+			return tileProvider.getTile(tileIndex);
+		}
+	}
+
+	private static IcyBufferedImage awaitTile(CompletableFuture<IcyBufferedImage> loading, Point tileIndex)
+			throws IOException {
+		try {
+			return loading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Interrupted while waiting for tile %s", tileIndex));
+		} catch (ExecutionException e) {
+			throw new IOException(String.format("Could not get tile %s", tileIndex), e.getCause());
+		}
+	}
+
+	/**
+	 * Copies a region of the virtual image into a new in-memory image.
+	 *
+	 * @param x
+	 *          Region x position.
+	 * @param y
+	 *          Region y position.
+	 * @param width
+	 *          Region width.
+	 * @param height
+	 *          Region height.
+	 * @return The image of the region, clipped to the image bounds.
+	 * @throws IOException
+	 *           If a tile of the region cannot be retrieved.
+	 */
+	public IcyBufferedImage getRegion(long x, long y, int width, int height) throws IOException {
+		checkPosition(x, y);
+		int regionWidth = (int) Math.min(width, sizeX - x);
+		int regionHeight = (int) Math.min(height, sizeY - y);
+		IcyBufferedImage region = new IcyBufferedImage(regionWidth, regionHeight, sizeC, dataType);
+
+		int firstTileX = (int) (x / tileSize.width), lastTileX = (int) ((x + regionWidth - 1) / tileSize.width);
+		int firstTileY = (int) (y / tileSize.height), lastTileY = (int) ((y + regionHeight - 1) / tileSize.height);
+		region.beginUpdate();
+		try {
+			for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+				for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+					IcyBufferedImage tile = getTile(tileX, tileY);
+					Point tilePosition = new Point((int) ((long) tileX * tileSize.width - x),
+							(int) ((long) tileY * tileSize.height - y));
+					region.copyData(tile, null, tilePosition);
+				}
+			}
+		} finally {
+			region.endUpdate();
+		}
+		return region;
+	}
+
+	/**
+	 * @param x
+	 *          Region x position.
+	 * @param y
+	 *          Region y position.
+	 * @param width
+	 *          Region width.
+	 * @param height
+	 *          Region height.
+	 * @return A sequence containing the specified region of the virtual image.
+	 * @throws IOException
+	 *           If a tile of the region cannot be retrieved.
+	 * @see #getRegion(long, long, int, int)
+	 */
+	public Sequence getRegionSequence(long x, long y, int width, int height) throws IOException {
+		Sequence sequence = new Sequence(getRegion(x, y, width, height));
+		sequence.setName(String.format("%s (%d, %d)", name, x, y));
+		return sequence;
+	}
+
+	/**
+	 * Removes all tiles from memory.
+	 */
+	public void clearCache() {
+		synchronized (tileCache) {
+			tileCache.clear();
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		clearCache();
+	}
+}
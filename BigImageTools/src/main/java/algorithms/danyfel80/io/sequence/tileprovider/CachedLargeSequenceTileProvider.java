@@ -3,27 +3,119 @@ package algorithms.danyfel80.io.sequence.tileprovider;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import org.ehcache.Cache;
 import org.ehcache.CacheManager;
+import org.ehcache.CachePersistenceException;
+import org.ehcache.PersistentCacheManager;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
 import org.ehcache.config.builders.CacheManagerBuilder;
 import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.spi.serialization.Serializer;
+
+import algorithms.danyfel80.io.sequence.large.LargeSequenceReaderPool;
+import algorithms.danyfel80.io.sequence.large.PersistentTileCache;
+import algorithms.danyfel80.io.sequence.large.SharedTileCache;
+import algorithms.danyfel80.io.sequence.large.TileKey;
 
 import icy.common.exception.UnsupportedFormatException;
 import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageUtil;
 import icy.plugin.PluginLoader;
 import ome.xml.meta.OMEXMLMetadata;
 import plugins.kernel.importer.LociImporterPlugin;
 
+/**
+ * Tile provider keeping read tiles in caches bounded in bytes. When a
+ * {@link SharedTileCache} is given to the builder, tiles are first looked up in
+ * it, so that tiles read by other readers of the process are reused, then in
+ * the tiers of this provider. Read tiles are added to the shared cache, which
+ * has its own budget. The tiers keep tiles serialized
+ * by {@link IcyBufferedImageSerializer}, so the size of each tier is exact
+ * whatever the tile geometry. Tiers:
+ * <ul>
+ * <li>Heap: always present, {@link Builder#DEFAULT_HEAP_SIZE} by default.</li>
+ * <li>Off-heap: optional, must be larger than the heap tier.</li>
+ * <li>Disk: optional, must be larger than the other tiers. Stored in a
+ * temporary directory created for the first provider with a disk tier and
+ * removed when the last one is closed.</li>
+ * </ul>
+ * Tiers can store tiles compressed with LZ4 (see {@link Builder#compressed}),
+ * trading a decompression on each hit for several times more tiles in the
+ * same space. Hits, misses and compression costs are reported by
+ * {@link #getStatistics()}.
+ * <p>
+ * Each call to {@link #getTile(Point)} returns an image owned by the caller,
+ * never an image held by a cache. The provider is thread-safe and can be shared by several workers. Missing
+ * tiles are read once even if requested concurrently. Tiles are read with the
+ * importer of the provider one at a time, or in parallel with readers borrowed
+ * from a {@link LargeSequenceReaderPool} when one is given to the builder.
+ * <p>
+ * A {@link PersistentTileCache} can be given to the builder to keep decoded
+ * tiles across sessions. It is looked up after the tiers, before reading.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
 public class CachedLargeSequenceTileProvider implements ITileProvider, AutoCloseable {
 	private static CacheManager cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
 			.withClassLoader(PluginLoader.getLoader()).build(true);
+	private static PersistentCacheManager diskCacheManager;
+	private static File diskCacheDirectory;
+	private static int diskCacheUsers;
+
+	private static synchronized CacheManager acquireDiskCacheManager() {
+		if (diskCacheManager == null) {
+			diskCacheDirectory = new File(System.getProperty("java.io.tmpdir"), "icy-tile-cache-" + System.nanoTime());
+			diskCacheManager = CacheManagerBuilder.newCacheManagerBuilder().withClassLoader(PluginLoader.getLoader())
+					.with(CacheManagerBuilder.persistence(diskCacheDirectory)).build(true);
+		}
+		diskCacheUsers++;
+		return diskCacheManager;
+	}
+
+	/**
+	 * Closes the disk cache manager and removes its directory when no provider
+	 * uses it anymore.
+	 */
+	private static synchronized void releaseDiskCacheManager() throws CachePersistenceException {
+		if (--diskCacheUsers > 0)
+			return;
+		PersistentCacheManager manager = diskCacheManager;
+		File directory = diskCacheDirectory;
+		diskCacheManager = null;
+		diskCacheDirectory = null;
+		try {
+			manager.close();
+			manager.destroy();
+		} finally {
+			directory.delete();
+		}
+	}
 
 	public static class Builder {
+		/**
+		 * Default heap tier size: 256 MB or an eighth of the maximum heap, whichever
+		 * is lower.
+		 */
+		public static final long DEFAULT_HEAP_SIZE = Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
 		private LociImporterPlugin importer;
 		private Dimension tileSize;
+		private long heapSize = DEFAULT_HEAP_SIZE;
+		private long offHeapSize;
+		private long diskSize;
+		private SharedTileCache sharedCache;
+		private LargeSequenceReaderPool readerPool;
+		private PersistentTileCache persistentCache;
+		private boolean compressed;
 
 		CachedLargeSequenceTileProvider tileProvider;
 
@@ -38,9 +130,84 @@ public class CachedLargeSequenceTileProvider implements ITileProvider, AutoClose
 			return this;
 		}
 
-		public CachedLargeSequenceTileProvider build() throws IOException {
+		/**
+		 * @param heapSize
+		 *          Size in bytes of the heap tier.
+		 */
+		public Builder heapSize(long heapSize) {
+			this.heapSize = heapSize;
+			return this;
+		}
+
+		/**
+		 * @param offHeapSize
+		 *          Size in bytes of the off-heap tier. 0 (the default) disables it.
+		 */
+		public Builder offHeapSize(long offHeapSize) {
+			this.offHeapSize = offHeapSize;
+			return this;
+		}
+
+		/**
+		 * @param diskSize
+		 *          Size in bytes of the disk tier. 0 (the default) disables it.
+		 */
+		public Builder diskSize(long diskSize) {
+			this.diskSize = diskSize;
+			return this;
+		}
+
+		/**
+		 * @param sharedCache
+		 *          Cache shared with other readers, e.g.
+		 *          {@link SharedTileCache#getInstance()}, looked up before the tiers
+		 *          of the provider. Null (the default) disables it.
+		 */
+		public Builder sharedCache(SharedTileCache sharedCache) {
+			this.sharedCache = sharedCache;
+			return this;
+		}
+
+		/**
+		 * @param readerPool
+		 *          Pool from which readers of the file are borrowed to read
+		 *          missing tiles in parallel. Null (the default) reads tiles one at a
+		 *          time with the importer of the provider.
+		 */
+		public Builder readerPool(LargeSequenceReaderPool readerPool) {
+			this.readerPool = readerPool;
+			return this;
+		}
+
+		/**
+		 * @param persistentCache
+		 *          Directory cache looked up before reading missing tiles, in which
+		 *          read tiles are stored. Null (the default) disables it.
+		 */
+		public Builder persistentCache(PersistentTileCache persistentCache) {
+			this.persistentCache = persistentCache;
+			return this;
+		}
+
+		/**
+		 * @param compressed
+		 *          Whether tiles are stored compressed with LZ4 in the tiers. False
+		 *          by default.
+		 */
+		public Builder compressed(boolean compressed) {
+			this.compressed = compressed;
+			return this;
+		}
+
+		public CachedLargeSequenceTileProvider build() throws IOException, IllegalArgumentException {
+			checkTierSizes();
 			tileProvider = new CachedLargeSequenceTileProvider();
 			tileProvider.setImporter(importer);
+			tileProvider.setTierSizes(heapSize, offHeapSize, diskSize);
+			tileProvider.setSharedCache(sharedCache);
+			tileProvider.setReaderPool(readerPool);
+			tileProvider.setPersistentCache(persistentCache);
+			tileProvider.setCompressed(compressed);
 			if (tileSize == null) {
 				try {
 					tileSize = new Dimension(importer.getTileWidth(0), importer.getTileHeight(0));
@@ -51,24 +218,48 @@ public class CachedLargeSequenceTileProvider implements ITileProvider, AutoClose
 			tileProvider.setTileSize(tileSize);
 			return tileProvider;
 		}
+
+		private void checkTierSizes() throws IllegalArgumentException {
+			if (heapSize <= 0)
+				throw new IllegalArgumentException("The heap tier size must be positive: " + heapSize);
+			if (offHeapSize < 0 || diskSize < 0)
+				throw new IllegalArgumentException(
+						String.format("Negative tier size (off-heap: %d, disk: %d)", offHeapSize, diskSize));
+			if (offHeapSize > 0 && offHeapSize <= heapSize)
+				throw new IllegalArgumentException(
+						String.format("The off-heap tier (%d) must be larger than the heap tier (%d)", offHeapSize, heapSize));
+			if (diskSize > 0 && diskSize <= Math.max(heapSize, offHeapSize))
+				throw new IllegalArgumentException(
+						String.format("The disk tier (%d) must be larger than the other tiers", diskSize));
+		}
 	}
 
 	private LociImporterPlugin importer;
-	private OMEXMLMetadata metadata;
+	private LargeSequenceReaderPool readerPool;
+	private Dimension imageSize;
 	private Dimension tileSize;
 	private final String cacheName = "TileProviderCache" + this.hashCode();
+	private CacheManager tileCacheManager;
 	private Cache<Point, IcyBufferedImage> tileCache;
-	private boolean providerPrepared;
-
-	private Point currentTileIndex;
-	private Point currentTilePosition;
-	private Dimension currentTileSize;
-	private Rectangle currentTileRectangle;
+	private long heapSize;
+	private long offHeapSize;
+	private long diskSize;
+	private SharedTileCache sharedCache;
+	private PersistentTileCache persistentCache;
+	private boolean compressed;
+	private final TileCacheStatistics statistics = new TileCacheStatistics();
+	private TileKey.FileIdentity fileIdentity;
+	private volatile boolean providerPrepared;
+	private final ConcurrentHashMap<Point, CompletableFuture<IcyBufferedImage>> loadingTiles = new ConcurrentHashMap<>();
 
 	protected void setImporter(LociImporterPlugin importer) {
 		this.importer = importer;
 	}
-	
+
+	protected void setReaderPool(LargeSequenceReaderPool readerPool) {
+		this.readerPool = readerPool;
+	}
+
 	public Dimension getTileSize() {
 		return this.tileSize;
 	}
@@ -77,111 +268,197 @@ public class CachedLargeSequenceTileProvider implements ITileProvider, AutoClose
 		this.tileSize = tileSize;
 	}
 
-	@Override
-	public IcyBufferedImage getTile(Point tileIndex) throws IOException, IllegalArgumentException {
-		prepareProvider();
-		setCurrentTileIndex(tileIndex);
-		return retrieveCurrentTile();
+	protected void setTierSizes(long heapSize, long offHeapSize, long diskSize) {
+		this.heapSize = heapSize;
+		this.offHeapSize = offHeapSize;
+		this.diskSize = diskSize;
 	}
 
-	private void prepareProvider() throws IOException {
-		if (!isProviderPrepared()) {
-			startCache();
-			try {
-				metadata = importer.getOMEXMLMetaData();
-			} catch (UnsupportedFormatException | IOException e) {
-				throw new IOException("Could not retrieve the metadata", e);
-			}
-			setProviderPrepared();
-		}
-	}
-
-	private boolean isProviderPrepared() {
-		return providerPrepared;
+	protected void setSharedCache(SharedTileCache sharedCache) {
+		this.sharedCache = sharedCache;
 	}
 
-	private void setProviderPrepared() {
-		providerPrepared = true;
+	protected void setPersistentCache(PersistentTileCache persistentCache) {
+		this.persistentCache = persistentCache;
 	}
 
-	private void startCache() {
-		this.tileCache = cacheManager.getCache(cacheName, Point.class, IcyBufferedImage.class);
-		if (tileCache == null) {
-			tileCache = cacheManager.createCache(cacheName, CacheConfigurationBuilder
-					.newCacheConfigurationBuilder(Point.class, IcyBufferedImage.class, ResourcePoolsBuilder.heap(500)).build());
-		}
+	protected void setCompressed(boolean compressed) {
+		this.compressed = compressed;
 	}
 
-	private Point getCurrentTileIndex() {
-		return currentTileIndex;
+	/**
+	 * @return The statistics of the caches of this provider. Requests served by
+	 *         the shared cache are counted as hits.
+	 */
+	public TileCacheStatistics getStatistics() {
+		return statistics;
 	}
 
-	private void setCurrentTileIndex(Point tileIndex) throws IllegalArgumentException {
+	/**
+	 * Retrieves a tile from the caches, or reads it if it is not cached. This
+	 * method can be called concurrently. When several threads request the same
+	 * missing tile, it is read once and the other threads wait for it.
+	 */
+	@Override
+	public IcyBufferedImage getTile(Point tileIndex) throws IOException, IllegalArgumentException {
 		if (tileIndex == null)
 			throw new IllegalArgumentException("Null tile index");
-		currentTileIndex = tileIndex;
-	}
+		prepareProvider();
 
-	private IcyBufferedImage retrieveCurrentTile() throws IOException {
-		IcyBufferedImage currentTile = retrieveCurrentTileFromCache();
-		if (currentTile == null) {
-			currentTile = computeCurrentTile();
-			storeCurrentTileInCache(currentTile);
+		Point index = new Point(tileIndex);
+		Rectangle tileRectangle = computeTileRectangle(index);
+		TileKey key = (fileIdentity != null)? new TileKey(fileIdentity, 0, 0, null, 0, 0, tileRectangle): null;
+		IcyBufferedImage tile = (sharedCache != null)? sharedCache.get(key): null;
+		if (tile != null) {
+			statistics.recordHit();
+			return IcyBufferedImageUtil.getCopy(tile);
 		}
-		return currentTile;
+
+		// Tiers return a new image on each hit.
+		tile = tileCache.get(index);
+		if (tile != null) {
+			statistics.recordHit();
+			return tile;
+		}
+
+		statistics.recordMiss();
+		return IcyBufferedImageUtil.getCopy(loadTile(index, tileRectangle, key));
 	}
 
-	private IcyBufferedImage retrieveCurrentTileFromCache() {
-		return tileCache.get(getCurrentTileIndex());
+	@Override
+	public boolean isThreadSafe() {
+		return true;
 	}
 
-	private IcyBufferedImage computeCurrentTile() throws IOException {
-		computeTileRectangle();
-		IcyBufferedImage tileImage;
-		try {
-			tileImage = importer.getImage(0, 0, currentTileRectangle, 0, 0);
-		} catch (UnsupportedFormatException | IOException e) {
-			throw new IOException(String.format("Could not get the tile image (%s)", currentTileRectangle), e);
+	private void prepareProvider() throws IOException {
+		if (providerPrepared)
+			return;
+		synchronized (this) {
+			if (!providerPrepared) {
+				startCache();
+				OMEXMLMetadata metadata;
+				try {
+					metadata = importer.getOMEXMLMetaData();
+				} catch (UnsupportedFormatException | IOException e) {
+					throw new IOException("Could not retrieve the metadata", e);
+				}
+				imageSize = new Dimension(metadata.getPixelsSizeX(0).getValue(), metadata.getPixelsSizeY(0).getValue());
+				if (sharedCache != null || persistentCache != null || readerPool != null)
+					fileIdentity = TileKey.FileIdentity.of(Paths.get(importer.getOpened()));
+				providerPrepared = true;
+			}
 		}
-		return tileImage;
 	}
 
-	private void computeTileRectangle() {
-		computeCurrentTilePosition();
-		computeCurrentTileSize();
-		currentTileRectangle = new Rectangle(currentTilePosition.x, currentTilePosition.y, currentTileSize.width,
-				currentTileSize.height);
+	private void startCache() {
+		tileCacheManager = (diskSize > 0)? acquireDiskCacheManager(): cacheManager;
+		this.tileCache = tileCacheManager.getCache(cacheName, Point.class, IcyBufferedImage.class);
+		if (tileCache == null) {
+			ResourcePoolsBuilder resourcePools = ResourcePoolsBuilder.newResourcePoolsBuilder().heap(heapSize, MemoryUnit.B);
+			if (offHeapSize > 0)
+				resourcePools = resourcePools.offheap(offHeapSize, MemoryUnit.B);
+			if (diskSize > 0)
+				resourcePools = resourcePools.disk(diskSize, MemoryUnit.B, false);
+
+			// Tiles are stored serialized on heap too, so that their size is measured
+			// on a byte buffer instead of walking the image object graph.
+			Serializer<IcyBufferedImage> serializer = compressed
+					? new CompressedIcyBufferedImageSerializer(statistics)
+					: new IcyBufferedImageSerializer();
+			tileCache = tileCacheManager.createCache(cacheName,
+					CacheConfigurationBuilder.newCacheConfigurationBuilder(Point.class, IcyBufferedImage.class, resourcePools)
+							.withValueSerializer(serializer).withValueSerializingCopier().build());
+		}
 	}
 
-	private void computeCurrentTilePosition() {
-		if (currentTilePosition == null)
-			currentTilePosition = new Point();
-
-		currentTilePosition.setLocation(getCurrentTileIndex().x * tileSize.width,
-				getCurrentTileIndex().y * tileSize.height);
+	private Rectangle computeTileRectangle(Point tileIndex) {
+		int x = tileIndex.x * tileSize.width;
+		int y = tileIndex.y * tileSize.height;
+		return new Rectangle(x, y, Math.min(tileSize.width, imageSize.width - x),
+				Math.min(tileSize.height, imageSize.height - y));
 	}
 
-	private void computeCurrentTileSize() {
-		if (currentTileSize == null)
-			currentTileSize = new Dimension();
+	/**
+	 * Reads a tile and stores it in the caches, unless another thread is already
+	 * reading it, in which case its result is awaited. The result is shared by
+	 * the threads and caches, callers must copy it.
+	 */
+	private IcyBufferedImage loadTile(Point tileIndex, Rectangle tileRectangle, TileKey key) throws IOException {
+		CompletableFuture<IcyBufferedImage> loading = new CompletableFuture<>();
+		CompletableFuture<IcyBufferedImage> currentLoading = loadingTiles.putIfAbsent(tileIndex, loading);
+		if (currentLoading != null)
+			return awaitTile(currentLoading, tileRectangle);
 
-		currentTileSize.setSize(tileSize.width, tileSize.height);
-
-		if (metadata.getPixelsSizeX(0).getValue() <= currentTilePosition.x + tileSize.width) {
-			currentTileSize.width = metadata.getPixelsSizeX(0).getValue() - currentTilePosition.x;
+		try {
+			// The tile may have been stored between the cache miss and the
+			// registration of this load.
+			IcyBufferedImage tile = tileCache.get(tileIndex);
+			if (tile == null) {
+				tile = (persistentCache != null)? persistentCache.get(key): null;
+				if (tile == null) {
+					tile = readTile(tileRectangle);
+					if (persistentCache != null)
+						persistentCache.put(key, tile);
+				}
+				tileCache.put(tileIndex, tile);
+				if (sharedCache != null)
+					sharedCache.put(key, tile);
+			}
+			loading.complete(tile);
+			return tile;
+		} catch (IOException | RuntimeException e) {
+			loading.completeExceptionally(e);
+			throw e;
+		} finally {
+			loadingTiles.remove(tileIndex, loading);
 		}
-		if (metadata.getPixelsSizeY(0).getValue() <= currentTilePosition.y + tileSize.height) {
-			currentTileSize.height = metadata.getPixelsSizeY(0).getValue() - currentTilePosition.y;
+	}
+
+	private IcyBufferedImage awaitTile(CompletableFuture<IcyBufferedImage> loading, Rectangle tileRectangle)
+			throws IOException {
+		try {
+			return loading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Interrupted while waiting for the tile image (%s)", tileRectangle));
+		} catch (ExecutionException e) {
+			throw new IOException(String.format("Could not get the tile image (%s)", tileRectangle), e.getCause());
 		}
 	}
 
-	private void storeCurrentTileInCache(IcyBufferedImage currentTileImage) {
-		tileCache.put(currentTileIndex, currentTileImage);
+	/**
+	 * Reads a tile from the file. Without reader pool, reads are serialized on
+	 * the importer as it cannot be used by several threads at once.
+	 */
+	private IcyBufferedImage readTile(Rectangle tileRectangle) throws IOException {
+		try {
+			if (readerPool == null) {
+				synchronized (importer) {
+					return importer.getImage(0, 0, tileRectangle, 0, 0);
+				}
+			}
+
+			LociImporterPlugin reader = readerPool.borrowReader(Paths.get(fileIdentity.getPath()));
+			try {
+				return reader.getImage(0, 0, tileRectangle, 0, 0);
+			} finally {
+				readerPool.releaseReader(reader);
+			}
+		} catch (UnsupportedFormatException | IOException e) {
+			throw new IOException(String.format("Could not get the tile image (%s)", tileRectangle), e);
+		}
 	}
 
 	@Override
-	public void close() throws Exception {
-		cacheManager.removeCache(cacheName);
+	public synchronized void close() throws Exception {
+		if (tileCacheManager == null)
+			return;
+		CacheManager manager = tileCacheManager;
+		tileCacheManager = null;
+		providerPrepared = false;
+		manager.removeCache(cacheName);
+		if (manager != cacheManager)
+			releaseDiskCacheManager();
 	}
 
 }
@@ -0,0 +1,97 @@
+package algorithms.danyfel80.io.sequence.tileprovider;
+
+import java.nio.ByteBuffer;
+
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+import icy.image.IcyBufferedImage;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Cache serializer storing {@link IcyBufferedImage} compressed with LZ4. The
+ * image is encoded by {@link IcyBufferedImageSerializer} and compressed, then
+ * stored after its uncompressed length. Decoded slide tiles usually shrink
+ * several times, so a tier bounded in bytes holds several times more tiles.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class CompressedIcyBufferedImageSerializer implements Serializer<IcyBufferedImage> {
+
+	private static final LZ4Factory lz4Factory = LZ4Factory.fastestInstance();
+
+	private final IcyBufferedImageSerializer imageSerializer;
+	private final LZ4Compressor compressor;
+	private final LZ4FastDecompressor decompressor;
+	private final TileCacheStatistics statistics;
+
+	/**
+	 * @param statistics
+	 *          Statistics in which compression and decompression times are
+	 *          recorded. Null if they are not needed.
+	 */
+	public CompressedIcyBufferedImageSerializer(TileCacheStatistics statistics) {
+		this.imageSerializer = new IcyBufferedImageSerializer();
+		this.compressor = lz4Factory.fastCompressor();
+		this.decompressor = lz4Factory.fastDecompressor();
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Constructor used by Ehcache when the serializer is configured by class.
+	 *
+	 * @param classLoader
+	 *          Ignored, images hold no user classes.
+	 */
+	public CompressedIcyBufferedImageSerializer(ClassLoader classLoader) {
+		this((TileCacheStatistics) null);
+	}
+
+	@Override
+	public ByteBuffer serialize(IcyBufferedImage image) throws SerializerException {
+		long start = System.nanoTime();
+		ByteBuffer raw = imageSerializer.serialize(image);
+		int rawLength = raw.remaining();
+		ByteBuffer compressed = ByteBuffer.allocate(4 + compressor.maxCompressedLength(rawLength));
+		compressed.putInt(rawLength);
+		compressor.compress(raw, compressed);
+		compressed.flip();
+
+		// Copy to an exact size buffer, the heap tier measures the buffer capacity.
+		ByteBuffer result = ByteBuffer.allocate(compressed.remaining());
+		result.put(compressed);
+		result.flip();
+		if (statistics != null)
+			statistics.recordCompression(System.nanoTime() - start, rawLength, result.remaining());
+		return result;
+	}
+
+	@Override
+	public IcyBufferedImage read(ByteBuffer binary) throws ClassNotFoundException, SerializerException {
+		long start = System.nanoTime();
+		ByteBuffer compressed = binary.duplicate();
+		int rawLength = compressed.getInt();
+		if (rawLength < 0)
+			throw new SerializerException("Invalid uncompressed length: " + rawLength);
+		ByteBuffer raw = ByteBuffer.allocate(rawLength);
+		try {
+			decompressor.decompress(compressed, compressed.position(), raw, 0, rawLength);
+		} catch (LZ4Exception e) {
+			throw new SerializerException("Corrupted compressed image", e);
+		}
+		IcyBufferedImage image = imageSerializer.read(raw);
+		if (statistics != null)
+			statistics.recordDecompression(System.nanoTime() - start);
+		return image;
+	}
+
+	@Override
+	public boolean equals(IcyBufferedImage object, ByteBuffer binary)
+			throws ClassNotFoundException, SerializerException {
+		return imageSerializer.serialize(object).equals(imageSerializer.serialize(read(binary)));
+	}
+
+}
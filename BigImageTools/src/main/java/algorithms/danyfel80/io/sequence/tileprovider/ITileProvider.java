@@ -22,4 +22,12 @@ public interface ITileProvider {
 	 *           If the tile cannot be retrieved.
 	 */
 	IcyBufferedImage getTile(Point tile) throws IOException;
+
+	/**
+	 * @return True if {@link #getTile(Point)} can be called by several threads at
+	 *         once. False by default.
+	 */
+	default boolean isThreadSafe() {
+		return false;
+	}
 }
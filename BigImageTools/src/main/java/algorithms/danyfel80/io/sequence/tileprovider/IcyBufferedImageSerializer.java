@@ -0,0 +1,146 @@
+package algorithms.danyfel80.io.sequence.tileprovider;
+
+import java.nio.ByteBuffer;
+
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+
+/**
+ * Compact cache serializer for {@link IcyBufferedImage}. An image is stored as
+ * its size, channel count and data type followed by the raw primitive data of
+ * each channel, so the serialized size is the pixel data size plus a 13 byte
+ * header.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class IcyBufferedImageSerializer implements Serializer<IcyBufferedImage> {
+
+	private static final int HEADER_SIZE = 13;
+
+	public IcyBufferedImageSerializer() {
+	}
+
+	/**
+	 * Constructor used by Ehcache when the serializer is configured by class.
+	 *
+	 * @param classLoader
+	 *          Ignored, images hold no user classes.
+	 */
+	public IcyBufferedImageSerializer(ClassLoader classLoader) {
+		this();
+	}
+
+	/**
+	 * @param image
+	 *          Image to measure.
+	 * @return The size in bytes of the serialized image.
+	 */
+	public static long getSerializedSize(IcyBufferedImage image) {
+		return HEADER_SIZE
+				+ (long) image.getSizeX() * image.getSizeY() * image.getSizeC() * image.getDataType_().getSize();
+	}
+
+	@Override
+	public ByteBuffer serialize(IcyBufferedImage image) throws SerializerException {
+		long size = getSerializedSize(image);
+		if (size > Integer.MAX_VALUE)
+			throw new SerializerException("Image too large to be serialized: " + size + " bytes");
+
+		DataType dataType = image.getDataType_();
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(image.getSizeX());
+		buffer.putInt(image.getSizeY());
+		buffer.putInt(image.getSizeC());
+		buffer.put((byte) dataType.ordinal());
+		for (int c = 0; c < image.getSizeC(); c++) {
+			Object data = image.getDataXY(c);
+			switch (dataType) {
+			case UBYTE:
+			case BYTE:
+				buffer.put((byte[]) data);
+				break;
+			case USHORT:
+			case SHORT:
+				buffer.asShortBuffer().put((short[]) data);
+				break;
+			case UINT:
+			case INT:
+				buffer.asIntBuffer().put((int[]) data);
+				break;
+			case ULONG:
+			case LONG:
+				buffer.asLongBuffer().put((long[]) data);
+				break;
+			case FLOAT:
+				buffer.asFloatBuffer().put((float[]) data);
+				break;
+			case DOUBLE:
+				buffer.asDoubleBuffer().put((double[]) data);
+				break;
+			default:
+				throw new SerializerException("Unsupported data type: " + dataType);
+			}
+			if (dataType.getSize() > 1)
+				buffer.position(buffer.position() + image.getSizeX() * image.getSizeY() * dataType.getSize());
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public IcyBufferedImage read(ByteBuffer binary) throws ClassNotFoundException, SerializerException {
+		ByteBuffer buffer = binary.duplicate();
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		int channels = buffer.getInt();
+		int dataTypeIndex = buffer.get();
+		if (dataTypeIndex < 0 || dataTypeIndex >= DataType.values().length)
+			throw new SerializerException("Unknown data type index: " + dataTypeIndex);
+		DataType dataType = DataType.values()[dataTypeIndex];
+
+		IcyBufferedImage image = new IcyBufferedImage(width, height, channels, dataType);
+		for (int c = 0; c < channels; c++) {
+			Object data = image.getDataXY(c);
+			switch (dataType) {
+			case UBYTE:
+			case BYTE:
+				buffer.get((byte[]) data);
+				break;
+			case USHORT:
+			case SHORT:
+				buffer.asShortBuffer().get((short[]) data);
+				break;
+			case UINT:
+			case INT:
+				buffer.asIntBuffer().get((int[]) data);
+				break;
+			case ULONG:
+			case LONG:
+				buffer.asLongBuffer().get((long[]) data);
+				break;
+			case FLOAT:
+				buffer.asFloatBuffer().get((float[]) data);
+				break;
+			case DOUBLE:
+				buffer.asDoubleBuffer().get((double[]) data);
+				break;
+			default:
+				throw new SerializerException("Unsupported data type: " + dataType);
+			}
+			if (dataType.getSize() > 1)
+				buffer.position(buffer.position() + width * height * dataType.getSize());
+		}
+		image.dataChanged();
+		return image;
+	}
+
+	@Override
+	public boolean equals(IcyBufferedImage object, ByteBuffer binary)
+			throws ClassNotFoundException, SerializerException {
+		return serialize(object).equals(binary.duplicate());
+	}
+
+}
@@ -37,4 +37,12 @@ public class IcyBufferedImageTileProvider implements ITileProvider {
 		return tileImage;
 	}
 
+	/**
+	 * Tiles are copied from the image, which is only read.
+	 */
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+
 }
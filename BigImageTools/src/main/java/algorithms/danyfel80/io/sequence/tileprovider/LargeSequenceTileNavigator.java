@@ -0,0 +1,387 @@
+package algorithms.danyfel80.io.sequence.tileprovider;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import algorithms.danyfel80.io.sequence.large.LargeSequenceHelper;
+import algorithms.danyfel80.io.sequence.large.LargeSequenceReaderPool;
+import algorithms.danyfel80.io.sequence.large.PyramidLevel;
+import icy.common.exception.UnsupportedFormatException;
+import icy.image.IcyBufferedImage;
+import plugins.kernel.importer.LociImporterPlugin;
+
+/**
+ * Serves the tiles of a large image while the user pans and zooms on it. The
+ * navigator tracks the current viewport and pyramid level and, in the
+ * background, prefetches:
+ * <ul>
+ * <li>the tiles visible in the viewport,</li>
+ * <li>a ring of neighbour tiles, wider in the pan direction,</li>
+ * <li>the tiles covering the viewport on the next finer and coarser pyramid
+ * levels.</li>
+ * </ul>
+ * Prefetches run on low priority threads and are cancelled when they leave the
+ * prefetched area before starting. Loaded tiles are kept in a bounded LRU
+ * cache. Tiles are read at their pyramid level on readers borrowed from the
+ * {@link LargeSequenceReaderPool}.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class LargeSequenceTileNavigator implements AutoCloseable {
+
+	private static class TileKey {
+		private final int level;
+		private final int x;
+		private final int y;
+
+		TileKey(int level, int x, int y) {
+			this.level = level;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(level, x, y);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof TileKey))
+				return false;
+			TileKey other = (TileKey) obj;
+			return level == other.level && x == other.x && y == other.y;
+		}
+	}
+
+	private final Path filePath;
+	private final Dimension tileSize;
+	private final LargeSequenceReaderPool readerPool;
+	private final List<PyramidLevel> pyramidLevels;
+	private final int cacheCapacity;
+	private final Map<TileKey, IcyBufferedImage> tileCache;
+	private final Map<TileKey, FutureTask<IcyBufferedImage>> prefetches;
+	private final ThreadPoolExecutor prefetchExecutor;
+
+	private int prefetchMargin;
+	private Rectangle viewport;
+	private int viewportLevel;
+
+	/**
+	 * @param filePath
+	 *          Image file.
+	 * @param tileSize
+	 *          Size of the served tiles, in pixels of their level.
+	 * @param cacheCapacity
+	 *          Maximum amount of tiles kept in memory.
+	 * @throws IOException
+	 *           If the file cannot be opened.
+	 */
+	public LargeSequenceTileNavigator(Path filePath, Dimension tileSize, int cacheCapacity) throws IOException {
+		if (cacheCapacity < 1)
+			throw new IllegalArgumentException("The cache must hold at least one tile: " + cacheCapacity);
+		this.filePath = filePath;
+		this.tileSize = new Dimension(tileSize);
+		this.readerPool = LargeSequenceReaderPool.getInstance();
+		this.cacheCapacity = cacheCapacity;
+		this.tileCache = new LinkedHashMap<TileKey, IcyBufferedImage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TileKey, IcyBufferedImage> eldest) {
+				return size() > LargeSequenceTileNavigator.this.cacheCapacity;
+			}
+		};
+		this.prefetches = new HashMap<>();
+		this.prefetchMargin = 1;
+
+		LociImporterPlugin importer = borrowReader();
+		try {
+			pyramidLevels = LargeSequenceHelper.getPyramidLevels(importer, 0);
+		} catch (UnsupportedFormatException e) {
+			throw new IOException("Could not retrieve the resolution levels of " + filePath, e);
+		} finally {
+			readerPool.releaseReader(importer);
+		}
+
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		AtomicInteger threadCount = new AtomicInteger();
+		prefetchExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "TilePrefetcher-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+	}
+
+	public List<PyramidLevel> getPyramidLevels() {
+		return pyramidLevels;
+	}
+
+	public Dimension getTileSize() {
+		return new Dimension(tileSize);
+	}
+
+	public int getPrefetchMargin() {
+		return prefetchMargin;
+	}
+
+	/**
+	 * @param prefetchMargin
+	 *          Amount of tiles prefetched around the viewport. Twice as many are
+	 *          prefetched in the pan direction. 1 by default.
+	 */
+	public void setPrefetchMargin(int prefetchMargin) {
+		if (prefetchMargin < 0)
+			throw new IllegalArgumentException("Negative prefetch margin: " + prefetchMargin);
+		this.prefetchMargin = prefetchMargin;
+	}
+
+	/**
+	 * Moves the viewport. Prefetches outside the new prefetched area that did not
+	 * start yet are cancelled, and the tiles of the new area are scheduled.
+	 *
+	 * @param viewport
+	 *          Visible area, in full resolution pixels.
+	 * @param level
+	 *          Index of the displayed pyramid level in {@link #getPyramidLevels()}.
+	 */
+	public synchronized void setViewport(Rectangle viewport, int level) {
+		if (level < 0 || level >= pyramidLevels.size())
+			throw new IllegalArgumentException(String.format("No pyramid level %d (%d levels)", level, pyramidLevels.size()));
+
+		Point panDirection = new Point();
+		if (this.viewport != null && this.viewportLevel == level) {
+			panDirection.x = Integer.signum((int) (viewport.getCenterX() - this.viewport.getCenterX()));
+			panDirection.y = Integer.signum((int) (viewport.getCenterY() - this.viewport.getCenterY()));
+		}
+		this.viewport = new Rectangle(viewport);
+		this.viewportLevel = level;
+
+		Set<TileKey> wantedTiles = new LinkedHashSet<>();
+		addTiles(wantedTiles, level, viewport, new Point(), 0);
+		addTiles(wantedTiles, level, viewport, panDirection, prefetchMargin);
+		if (level > 0)
+			addTiles(wantedTiles, level - 1, viewport, panDirection, 0);
+		if (level < pyramidLevels.size() - 1)
+			addTiles(wantedTiles, level + 1, viewport, panDirection, prefetchMargin);
+
+		cancelPrefetches(wantedTiles);
+		for (TileKey tile: wantedTiles) {
+			schedulePrefetch(tile);
+		}
+	}
+
+	public synchronized Rectangle getViewport() {
+		return (viewport != null)? new Rectangle(viewport): null;
+	}
+
+	/**
+	 * @param level
+	 *          Pyramid level index.
+	 * @param area
+	 *          Area in full resolution pixels.
+	 * @return Indices of the tiles of the level covering the area.
+	 */
+	public Rectangle getTileGrid(int level, Rectangle area) {
+		PyramidLevel pyramidLevel = pyramidLevels.get(level);
+		int x0 = (int) Math.floor(area.getMinX() * pyramidLevel.getScaleX() / tileSize.width);
+		int y0 = (int) Math.floor(area.getMinY() * pyramidLevel.getScaleY() / tileSize.height);
+		int x1 = (int) Math.ceil(area.getMaxX() * pyramidLevel.getScaleX() / tileSize.width);
+		int y1 = (int) Math.ceil(area.getMaxY() * pyramidLevel.getScaleY() / tileSize.height);
+		Rectangle grid = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+		return grid.intersection(getLevelTileGrid(level));
+	}
+
+	/**
+	 * @param level
+	 *          Pyramid level index.
+	 * @return Indices of all the tiles of the level.
+	 */
+	public Rectangle getLevelTileGrid(int level) {
+		Dimension levelSize = pyramidLevels.get(level).getSize();
+		return new Rectangle((levelSize.width + tileSize.width - 1) / tileSize.width,
+				(levelSize.height + tileSize.height - 1) / tileSize.height);
+	}
+
+	private void addTiles(Set<TileKey> tiles, int level, Rectangle area, Point panDirection, int margin) {
+		Rectangle grid = getTileGrid(level, area);
+		if (grid.isEmpty())
+			return;
+		int left = margin * ((panDirection.x < 0)? 2: 1);
+		int right = margin * ((panDirection.x > 0)? 2: 1);
+		int top = margin * ((panDirection.y < 0)? 2: 1);
+		int bottom = margin * ((panDirection.y > 0)? 2: 1);
+		Rectangle expandedGrid = new Rectangle(grid.x - left, grid.y - top, grid.width + left + right,
+				grid.height + top + bottom);
+		expandedGrid = expandedGrid.intersection(getLevelTileGrid(level));
+
+		// Tiles closest to the viewport first.
+		int rings = Math.max(left, Math.max(right, Math.max(top, bottom)));
+		for (int ring = 0; ring <= rings; ring++) {
+			Rectangle ringGrid = new Rectangle(grid.x - ring, grid.y - ring, grid.width + 2 * ring, grid.height + 2 * ring)
+					.intersection(expandedGrid);
+			for (int y = ringGrid.y; y < ringGrid.y + ringGrid.height; y++) {
+				for (int x = ringGrid.x; x < ringGrid.x + ringGrid.width; x++) {
+					tiles.add(new TileKey(level, x, y));
+				}
+			}
+		}
+	}
+
+	private void cancelPrefetches(Set<TileKey> wantedTiles) {
+		List<FutureTask<IcyBufferedImage>> unwantedPrefetches = new ArrayList<>();
+		Iterator<Map.Entry<TileKey, FutureTask<IcyBufferedImage>>> iterator = prefetches.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<TileKey, FutureTask<IcyBufferedImage>> prefetch = iterator.next();
+			if (!wantedTiles.contains(prefetch.getKey())) {
+				unwantedPrefetches.add(prefetch.getValue());
+				iterator.remove();
+			}
+		}
+		// Running reads are not interrupted, Bio-Formats readers do not support it.
+		unwantedPrefetches.forEach(prefetch -> prefetch.cancel(false));
+		prefetchExecutor.purge();
+	}
+
+	private void schedulePrefetch(TileKey tile) {
+		synchronized (tileCache) {
+			if (tileCache.containsKey(tile))
+				return;
+		}
+		if (prefetches.containsKey(tile))
+			return;
+
+		FutureTask<IcyBufferedImage> prefetch = new FutureTask<IcyBufferedImage>(() -> loadTile(tile)) {
+			@Override
+			protected void done() {
+				removePrefetch(tile, this);
+			}
+		};
+		prefetches.put(tile, prefetch);
+		prefetchExecutor.execute(prefetch);
+	}
+
+	private synchronized void removePrefetch(TileKey tile, Future<IcyBufferedImage> prefetch) {
+		prefetches.remove(tile, prefetch);
+	}
+
+	/**
+	 * Returns a tile, from the cache if possible. If the tile is being
+	 * prefetched, waits for the prefetch. Otherwise the tile is read on the
+	 * calling thread.
+	 *
+	 * @param level
+	 *          Pyramid level index.
+	 * @param tile
+	 *          Tile index in the level.
+	 * @return The tile image.
+	 * @throws IOException
+	 *           If the tile cannot be read.
+	 * @throws InterruptedException
+	 *           If interrupted while waiting for a prefetch.
+	 */
+	public IcyBufferedImage getTile(int level, Point tile) throws IOException, InterruptedException {
+		TileKey key = new TileKey(level, tile.x, tile.y);
+		IcyBufferedImage tileImage;
+		synchronized (tileCache) {
+			tileImage = tileCache.get(key);
+		}
+		if (tileImage != null)
+			return tileImage;
+
+		Future<IcyBufferedImage> prefetch;
+		synchronized (this) {
+			prefetch = prefetches.get(key);
+		}
+		if (prefetch != null && !prefetch.isCancelled()) {
+			try {
+				return prefetch.get();
+			} catch (ExecutionException e) {
+				// The read is retried on the calling thread.
+			} catch (CancellationException e) {
+				// Cancelled meanwhile, the tile is read on the calling thread.
+			}
+		}
+		return loadTile(key);
+	}
+
+	/**
+	 * @return Tiles currently in the cache.
+	 */
+	public int getCachedTileCount() {
+		synchronized (tileCache) {
+			return tileCache.size();
+		}
+	}
+
+	private IcyBufferedImage loadTile(TileKey key) throws IOException {
+		PyramidLevel level = pyramidLevels.get(key.level);
+		Dimension levelSize = level.getSize();
+		int x = key.x * tileSize.width;
+		int y = key.y * tileSize.height;
+		Rectangle tileRectangle = new Rectangle(x, y, Math.min(tileSize.width, levelSize.width - x),
+				Math.min(tileSize.height, levelSize.height - y));
+
+		LociImporterPlugin importer = borrowReader();
+		IcyBufferedImage tileImage;
+		try {
+			tileImage = LargeSequenceHelper.getImage(importer, 0, level, tileRectangle, 0, 0);
+		} catch (UnsupportedFormatException e) {
+			throw new IOException(String.format("Could not read tile %s of level %d", tileRectangle, key.level), e);
+		} finally {
+			readerPool.releaseReader(importer);
+		}
+		synchronized (tileCache) {
+			tileCache.put(key, tileImage);
+		}
+		return tileImage;
+	}
+
+	private LociImporterPlugin borrowReader() throws IOException {
+		try {
+			return readerPool.borrowReader(filePath);
+		} catch (UnsupportedFormatException e) {
+			throw new IOException("Could not open " + filePath, e);
+		}
+	}
+
+	/**
+	 * Cancels all prefetches and empties the cache.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			List<FutureTask<IcyBufferedImage>> pending = new ArrayList<>(prefetches.values());
+			pending.forEach(prefetch -> prefetch.cancel(false));
+			prefetches.clear();
+		}
+		prefetchExecutor.shutdownNow();
+		synchronized (tileCache) {
+			tileCache.clear();
+		}
+	}
+}
@@ -4,9 +4,15 @@ import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.io.IOException;
+import java.nio.file.Paths;
 
+import algorithms.danyfel80.io.sequence.large.LargeSequenceHelper;
+import algorithms.danyfel80.io.sequence.large.PyramidLevel;
+import algorithms.danyfel80.io.sequence.large.SharedTileCache;
+import algorithms.danyfel80.io.sequence.large.TileKey;
 import icy.common.exception.UnsupportedFormatException;
 import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageUtil;
 import ome.xml.meta.OMEXMLMetadata;
 import plugins.kernel.importer.LociImporterPlugin;
 
@@ -15,6 +21,9 @@ public class LargeSequenceTileProvider implements ITileProvider {
 	private Dimension tileSize;
 	private boolean providerPrepared;
 	private LociImporterPlugin importer;
+	private PyramidLevel pyramidLevel;
+	private SharedTileCache tileCache;
+	private TileKey.FileIdentity fileIdentity;
 
 	private Rectangle currentTileRectangle;
 	private Point currentTileIndex;
@@ -53,14 +62,72 @@ public class LargeSequenceTileProvider implements ITileProvider {
 		this.importer = importer;
 	}
 
+	public PyramidLevel getPyramidLevel() {
+		return pyramidLevel;
+	}
+
+	/**
+	 * @param pyramidLevel
+	 *          Stored level from which tiles are read. Tile indices and sizes are
+	 *          expressed in pixels of this level. Null (the default) reads the
+	 *          full resolution image.
+	 */
+	public void setPyramidLevel(PyramidLevel pyramidLevel) {
+		this.pyramidLevel = pyramidLevel;
+	}
+
+	public SharedTileCache getTileCache() {
+		return tileCache;
+	}
+
+	/**
+	 * @param tileCache
+	 *          Cache in which tiles are looked up and stored, e.g.
+	 *          {@link SharedTileCache#getInstance()}. Tiles are copied out of the
+	 *          cache, so that returned tiles can be modified. Null (the default)
+	 *          reads all the tiles from the file.
+	 */
+	public void setTileCache(SharedTileCache tileCache) {
+		this.tileCache = tileCache;
+	}
+
 	@Override
 	public IcyBufferedImage getTile(Point tileIndex) throws IOException {
 		prepareProvider();
 		setCurrentTileIndex(tileIndex);
 		computeTileRectangle();
+
+		TileKey key = null;
+		if (getTileCache() != null) {
+			int resolution = (getPyramidLevel() != null)? getPyramidLevel().getResolutionIndex(): 0;
+			key = new TileKey(getFileIdentity(), 0, resolution, null, 0, 0, getCurrentTileRectangle());
+			IcyBufferedImage cachedImage = getTileCache().get(key);
+			if (cachedImage != null)
+				return IcyBufferedImageUtil.getCopy(cachedImage);
+		}
+
+		IcyBufferedImage tileImage = readCurrentTile();
+		if (key != null) {
+			getTileCache().put(key, tileImage);
+			tileImage = IcyBufferedImageUtil.getCopy(tileImage);
+		}
+		return tileImage;
+	}
+
+	protected TileKey.FileIdentity getFileIdentity() throws IOException {
+		if (fileIdentity == null)
+			fileIdentity = TileKey.FileIdentity.of(Paths.get(getImporter().getOpened()));
+		return fileIdentity;
+	}
+
+	protected IcyBufferedImage readCurrentTile() throws IOException {
 		IcyBufferedImage tileImage;
 		try {
-			tileImage = getImporter().getImage(0, 0, getCurrentTileRectangle(), 0, 0);
+			if (getPyramidLevel() == null)
+				tileImage = getImporter().getImage(0, 0, getCurrentTileRectangle(), 0, 0);
+			else
+				tileImage = LargeSequenceHelper.getImage(getImporter(), 0, getPyramidLevel(), getCurrentTileRectangle(), 0,
+						0);
 		} catch (UnsupportedFormatException e) {
 			throw new IOException(e);
 		}
@@ -80,13 +147,13 @@ public class LargeSequenceTileProvider implements ITileProvider {
 			if (getImporter() == null)
 				throw new IOException("No importer specified");
 
-			if (getTileSize() == null || getTileSize().width * getTileSize().height == 0) {
-				try {
+			try {
+				if (getTileSize() == null || getTileSize().width * getTileSize().height == 0) {
 					setTileSize(new Dimension(getImporter().getTileWidth(0), getImporter().getTileHeight(0)));
-					setMetatadata(getImporter().getOMEXMLMetaData());
-				} catch (UnsupportedFormatException e) {
-					throw new IOException(e);
 				}
+				setMetatadata(getImporter().getOMEXMLMetaData());
+			} catch (UnsupportedFormatException e) {
+				throw new IOException(e);
 			}
 
 			setProviderPrepared(true);
@@ -138,14 +205,21 @@ public class LargeSequenceTileProvider implements ITileProvider {
 
 		getCurrentTileSize().setSize(getTileSize().width, getTileSize().height);
 
-		if (getMetatadata().getPixelsSizeX(0).getValue() <= getCurrentTilePosition().x + getTileSize().width) {
-			getCurrentTileSize().width = getMetatadata().getPixelsSizeX(0).getValue() - getCurrentTilePosition().x;
+		Dimension imageSize = getImageSize();
+		if (imageSize.width <= getCurrentTilePosition().x + getTileSize().width) {
+			getCurrentTileSize().width = imageSize.width - getCurrentTilePosition().x;
 		}
-		if (getMetatadata().getPixelsSizeY(0).getValue() <= getCurrentTilePosition().y + getTileSize().height) {
-			getCurrentTileSize().height = getMetatadata().getPixelsSizeY(0).getValue() - getCurrentTilePosition().y;
+		if (imageSize.height <= getCurrentTilePosition().y + getTileSize().height) {
+			getCurrentTileSize().height = imageSize.height - getCurrentTilePosition().y;
 		}
 	}
 
+	protected Dimension getImageSize() {
+		if (getPyramidLevel() != null)
+			return getPyramidLevel().getSize();
+		return new Dimension(getMetatadata().getPixelsSizeX(0).getValue(), getMetatadata().getPixelsSizeY(0).getValue());
+	}
+
 	protected Dimension getCurrentTileSize() {
 		return currentTileSize;
 	}
@@ -0,0 +1,109 @@
+package algorithms.danyfel80.io.sequence.tileprovider;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the tiers of a {@link CachedLargeSequenceTileProvider}: hits
+ * and misses, and the cost of compressing and decompressing tiles when the
+ * tiers are compressed. Counters can be updated concurrently.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TileCacheStatistics {
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder compressionCount = new LongAdder();
+	private final LongAdder compressionTime = new LongAdder();
+	private final LongAdder decompressionCount = new LongAdder();
+	private final LongAdder decompressionTime = new LongAdder();
+	private final LongAdder rawBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+
+	void recordHit() {
+		hitCount.increment();
+	}
+
+	void recordMiss() {
+		missCount.increment();
+	}
+
+	void recordCompression(long nanos, long tileRawBytes, long tileCompressedBytes) {
+		compressionCount.increment();
+		compressionTime.add(nanos);
+		rawBytes.add(tileRawBytes);
+		compressedBytes.add(tileCompressedBytes);
+	}
+
+	void recordDecompression(long nanos) {
+		decompressionCount.increment();
+		decompressionTime.add(nanos);
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * @return The ratio of requests served by the tiers, 0 if there was no
+	 *         request.
+	 */
+	public double getHitRatio() {
+		long hits = getHitCount();
+		long requests = hits + getMissCount();
+		return (requests > 0)? (double) hits / requests: 0;
+	}
+
+	public long getCompressionCount() {
+		return compressionCount.sum();
+	}
+
+	/**
+	 * @return Total time spent compressing tiles, in nanoseconds.
+	 */
+	public long getCompressionTime() {
+		return compressionTime.sum();
+	}
+
+	public long getDecompressionCount() {
+		return decompressionCount.sum();
+	}
+
+	/**
+	 * @return Total time spent decompressing tiles, in nanoseconds.
+	 */
+	public long getDecompressionTime() {
+		return decompressionTime.sum();
+	}
+
+	/**
+	 * @return Mean time to decompress a tile, in nanoseconds. 0 if no tile was
+	 *         decompressed.
+	 */
+	public double getMeanDecompressionTime() {
+		long count = getDecompressionCount();
+		return (count > 0)? (double) getDecompressionTime() / count: 0;
+	}
+
+	/**
+	 * @return The ratio between the raw and compressed sizes of the stored tiles,
+	 *         1 if no tile was compressed.
+	 */
+	public double getCompressionRatio() {
+		long compressed = compressedBytes.sum();
+		return (compressed > 0)? (double) rawBytes.sum() / compressed: 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"hits: %d, misses: %d (hit ratio %.1f%%), compression ratio: %.2f, compressed tiles: %d (%.2f ms), decompressed tiles: %d (%.2f ms, %.1f us per tile)",
+				getHitCount(), getMissCount(), getHitRatio() * 100, getCompressionRatio(), getCompressionCount(),
+				getCompressionTime() / 1e6, getDecompressionCount(), getDecompressionTime() / 1e6,
+				getMeanDecompressionTime() / 1e3);
+	}
+}
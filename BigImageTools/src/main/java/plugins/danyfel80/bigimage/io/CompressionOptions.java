@@ -0,0 +1,111 @@
+package plugins.danyfel80.bigimage.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import algorithms.danyfel80.io.sequence.large.LargeSequenceExporter;
+import algorithms.danyfel80.io.sequence.large.TileCompression;
+import algorithms.danyfel80.io.sequence.large.TileCompression.Codec;
+import loci.formats.FormatException;
+import plugins.adufour.blocks.util.VarList;
+import plugins.adufour.ezplug.EzGroup;
+import plugins.adufour.ezplug.EzLabel;
+import plugins.adufour.ezplug.EzVarBoolean;
+import plugins.adufour.ezplug.EzVarDouble;
+import plugins.adufour.ezplug.EzVarEnum;
+import plugins.adufour.ezplug.EzVarInteger;
+import plugins.adufour.vars.lang.VarString;
+
+/**
+ * Compression parameters shared by the plugins writing big images. When
+ * profiling is enabled, each codec is measured on sample tiles of the image
+ * before writing. The results are shown under the options and given as a
+ * Blocks output.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+class CompressionOptions {
+
+	private static final int PROFILE_TILE_COUNT = 16;
+
+	private EzVarEnum<Codec> codecVar;
+	private EzVarInteger deflateLevelVar;
+	private EzVarDouble jpegQualityVar;
+	private EzVarBoolean profileVar;
+	private EzLabel profileLabel;
+	private VarString profileResultVar;
+
+	CompressionOptions() {
+		codecVar = new EzVarEnum<>("Compression", Codec.values(), Codec.LZW);
+		deflateLevelVar = new EzVarInteger("Deflate level", TileCompression.DEFAULT_DEFLATE_LEVEL, 1, 9, 1);
+		jpegQualityVar = new EzVarDouble("JPEG quality", TileCompression.DEFAULT_JPEG_QUALITY, 0, 1, 0.05);
+		profileVar = new EzVarBoolean("Profile codecs", false);
+		profileLabel = new EzLabel("");
+		profileResultVar = new VarString("Compression profile", "");
+		codecVar.addVisibilityTriggerTo(deflateLevelVar, Codec.DEFLATE);
+		codecVar.addVisibilityTriggerTo(jpegQualityVar, Codec.JPEG);
+		profileVar.addVisibilityTriggerTo(profileLabel, true);
+	}
+
+	EzGroup createGroup() {
+		return new EzGroup("Compression options", codecVar, deflateLevelVar, jpegQualityVar, profileVar,
+				profileLabel);
+	}
+
+	void declareInput(VarList inputMap) {
+		inputMap.add(codecVar.name, codecVar.getVariable());
+		inputMap.add(deflateLevelVar.name, deflateLevelVar.getVariable());
+		inputMap.add(jpegQualityVar.name, jpegQualityVar.getVariable());
+		inputMap.add(profileVar.name, profileVar.getVariable());
+	}
+
+	/**
+	 * Declares the profile results, empty when profiling is disabled.
+	 */
+	void declareOutput(VarList outputMap) {
+		outputMap.add(profileResultVar.getName(), profileResultVar);
+	}
+
+	TileCompression getCompression() {
+		return getCompression(codecVar.getValue(true));
+	}
+
+	/**
+	 * @return The compression using the given codec with the Deflate level and
+	 *         JPEG quality of these options.
+	 */
+	TileCompression getCompression(Codec codec) {
+		switch (codec) {
+		case DEFLATE:
+			return TileCompression.deflate(deflateLevelVar.getValue(true));
+		case JPEG:
+			return TileCompression.jpeg(jpegQualityVar.getValue(true).floatValue());
+		default:
+			return TileCompression.of(codec);
+		}
+	}
+
+	/**
+	 * Sets the compression of the exporter and profiles the codecs if asked to.
+	 * The exporter must have its metadata and tile provider.
+	 */
+	void configure(LargeSequenceExporter exporter) throws InterruptedException, IOException, FormatException {
+		exporter.setCompression(getCompression());
+		profileResultVar.setValue("");
+		profileLabel.setText("");
+		if (profileVar.getValue(true))
+			profile(exporter);
+	}
+
+	private void profile(LargeSequenceExporter exporter) throws InterruptedException, IOException, FormatException {
+		List<TileCompression> compressions = Arrays.asList(TileCompression.uncompressed(), TileCompression.lzw(),
+				TileCompression.deflate(deflateLevelVar.getValue(true)),
+				TileCompression.jpeg(jpegQualityVar.getValue(true).floatValue()), TileCompression.jpeg2000());
+		List<TileCompression.Profile> profiles = exporter.profileCompressions(compressions, PROFILE_TILE_COUNT);
+		String result = profiles.stream().map(TileCompression.Profile::toString).collect(Collectors.joining("\n"));
+		profileResultVar.setValue(result);
+		profileLabel.setText("<html>" + result.replace("\n", "<br>") + "</html>");
+	}
+}
@@ -1,10 +1,15 @@
 package plugins.danyfel80.bigimage.io;
 
+import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.io.File;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 import algorithms.danyfel80.io.sequence.large.LargeSequenceImporter;
+import algorithms.danyfel80.io.sequence.large.SharedTileCache;
+import algorithms.danyfel80.io.sequence.large.TileTraversalOrder;
 import icy.common.listener.DetailedProgressListener;
 import icy.sequence.Sequence;
 import icy.system.IcyHandledException;
@@ -13,9 +18,12 @@ import plugins.adufour.blocks.util.VarList;
 import plugins.adufour.ezplug.EzGroup;
 import plugins.adufour.ezplug.EzPlug;
 import plugins.adufour.ezplug.EzStoppable;
+import plugins.adufour.ezplug.EzVarBoolean;
+import plugins.adufour.ezplug.EzVarEnum;
 import plugins.adufour.ezplug.EzVarFile;
 import plugins.adufour.ezplug.EzVarInteger;
 import plugins.adufour.ezplug.EzVarSequence;
+import plugins.adufour.ezplug.EzVarText;
 
 /**
  * This plugin loads a large 2D image and shows the loaded sequence.
@@ -29,6 +37,8 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 
 	// Resolution pyramid position
 	private EzVarInteger resolutionLevel;
+	private EzVarInteger targetWidth;
+	private EzVarInteger targetHeight;
 
 	// Sub-image retrieval settings
 	private EzVarInteger rectangleX;
@@ -36,9 +46,22 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 	private EzVarInteger rectangleW;
 	private EzVarInteger rectangleH;
 
+	// Plane selection settings
+	private EzVarInteger series;
+	private EzVarInteger planeZ;
+	private EzVarInteger planeT;
+	private EzVarText channels;
+
+	// Reading settings
+	private EzVarEnum<TileTraversalOrder> tileOrder;
+	private EzVarBoolean progressive;
+
 	// Progress listener
 	private DetailedProgressListener progressEventHandler;
 
+	// Running importation
+	private volatile LargeSequenceImporter runningImporter;
+
 	// Block output
 	private EzVarSequence resultSequenceVar;
 
@@ -48,18 +71,38 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 		resolutionLevel = new EzVarInteger("Resolution level", 0, 100, 1);
 		resolutionLevel.setToolTipText("The resolution of the resulting image downsampled by powers of 2"
 				+ " (e.g. 1 will import the image with half its size)");
+		targetWidth = new EzVarInteger("Target width", 0, 0, Integer.MAX_VALUE, 1);
+		targetHeight = new EzVarInteger("Target height", 0, 0, Integer.MAX_VALUE, 1);
+		targetWidth.setToolTipText("Exact width of the resulting image. 0 uses the resolution level");
+		targetHeight.setToolTipText("Exact height of the resulting image. 0 uses the resolution level");
 		rectangleX = new EzVarInteger("X");
 		rectangleY = new EzVarInteger("Y");
 		rectangleW = new EzVarInteger("Width");
 		rectangleH = new EzVarInteger("Height");
+		tileOrder = new EzVarEnum<>("Tile order", TileTraversalOrder.values(), TileTraversalOrder.ROW_MAJOR);
+		tileOrder.setToolTipText("Order in which tiles are read from the file");
+		progressive = new EzVarBoolean("Progressive loading", false);
+		progressive.setToolTipText("Shows a coarse preview first and refines it up to the requested resolution");
+		series = new EzVarInteger("Series", 0, 0, 10000, 1);
+		planeZ = new EzVarInteger("Z", 0, 0, 100000, 1);
+		planeT = new EzVarInteger("T", 0, 0, 100000, 1);
+		channels = new EzVarText("Channels");
+		channels.setValue("");
+		channels.setToolTipText("Comma separated channel indices to load (e.g. 0,2). Empty loads all channels");
 
 		addEzComponent(file);
-		EzGroup resolutionGroup = new EzGroup("Resolution options", resolutionLevel);
+		EzGroup resolutionGroup = new EzGroup("Resolution options", resolutionLevel, targetWidth, targetHeight);
 		addEzComponent(resolutionGroup);
 		resolutionGroup.setFoldedState(false);
 		EzGroup tileGroup = new EzGroup("Load rectangle", rectangleX, rectangleY, rectangleW, rectangleH);
 		addEzComponent(tileGroup);
 		tileGroup.setFoldedState(false);
+		EzGroup planeGroup = new EzGroup("Plane selection", series, planeZ, planeT, channels);
+		addEzComponent(planeGroup);
+		planeGroup.setFoldedState(true);
+		EzGroup readingGroup = new EzGroup("Reading options", tileOrder, progressive);
+		addEzComponent(readingGroup);
+		readingGroup.setFoldedState(true);
 
 	}
 
@@ -69,17 +112,39 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 		resolutionLevel = new EzVarInteger("Resolution level", 0, 100, 1);
 		resolutionLevel.setToolTipText("The resolution of the resulting image downsampled by powers of 2"
 				+ " (e.g. 1 will import the image with half its size)");
+		targetWidth = new EzVarInteger("Target width", 0, 0, Integer.MAX_VALUE, 1);
+		targetHeight = new EzVarInteger("Target height", 0, 0, Integer.MAX_VALUE, 1);
+		targetWidth.setToolTipText("Exact width of the resulting image. 0 uses the resolution level");
+		targetHeight.setToolTipText("Exact height of the resulting image. 0 uses the resolution level");
 		rectangleX = new EzVarInteger("X");
 		rectangleY = new EzVarInteger("Y");
 		rectangleW = new EzVarInteger("Width");
 		rectangleH = new EzVarInteger("Height");
+		tileOrder = new EzVarEnum<>("Tile order", TileTraversalOrder.values(), TileTraversalOrder.ROW_MAJOR);
+		tileOrder.setToolTipText("Order in which tiles are read from the file");
+		progressive = new EzVarBoolean("Progressive loading", false);
+		progressive.setToolTipText("Shows a coarse preview first and refines it up to the requested resolution");
+		series = new EzVarInteger("Series", 0, 0, 10000, 1);
+		planeZ = new EzVarInteger("Z", 0, 0, 100000, 1);
+		planeT = new EzVarInteger("T", 0, 0, 100000, 1);
+		channels = new EzVarText("Channels");
+		channels.setValue("");
+		channels.setToolTipText("Comma separated channel indices to load (e.g. 0,2). Empty loads all channels");
 
 		inputMap.add(file.name, file.getVariable());
 		inputMap.add(resolutionLevel.name, resolutionLevel.getVariable());
+		inputMap.add(targetWidth.name, targetWidth.getVariable());
+		inputMap.add(targetHeight.name, targetHeight.getVariable());
 		inputMap.add(rectangleX.name, rectangleX.getVariable());
 		inputMap.add(rectangleY.name, rectangleY.getVariable());
 		inputMap.add(rectangleW.name, rectangleW.getVariable());
 		inputMap.add(rectangleH.name, rectangleH.getVariable());
+		inputMap.add(series.name, series.getVariable());
+		inputMap.add(planeZ.name, planeZ.getVariable());
+		inputMap.add(planeT.name, planeT.getVariable());
+		inputMap.add(channels.name, channels.getVariable());
+		inputMap.add(tileOrder.name, tileOrder.getVariable());
+		inputMap.add(progressive.name, progressive.getVariable());
 	}
 
 	@Override
@@ -93,10 +158,18 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 		// Read input
 		File filePath = file.getValue(true);
 		int resolution = resolutionLevel.getValue(true);
+		int width = targetWidth.getValue(true);
+		int height = targetHeight.getValue(true);
 		int x = rectangleX.getValue(true);
 		int y = rectangleY.getValue(true);
 		int w = rectangleW.getValue(true);
 		int h = rectangleH.getValue(true);
+		int seriesIndex = series.getValue(true);
+		int z = planeZ.getValue(true);
+		int t = planeT.getValue(true);
+		int[] channelIndices = parseChannels(channels.getValue());
+		TileTraversalOrder order = tileOrder.getValue(true);
+		boolean progressiveLoading = progressive.getValue(true);
 
 		// Process
 		long startTime = System.currentTimeMillis();
@@ -104,19 +177,43 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 		importer.setFilePath(Paths.get(filePath.toString()));
 		importer.setTargetResolution(resolution);
 		importer.setTargetPixelRectangle(new Rectangle(x, y, w, h));
+		if (width > 0 && height > 0) {
+			importer.setTargetSize(new Dimension(width, height));
+		}
+		importer.setSeries(seriesIndex);
+		importer.setZ(z);
+		importer.setT(t);
+		importer.setChannels(channelIndices);
+		importer.setTileTraversalOrder(order);
+		importer.setProgressive(progressiveLoading);
+		// Tiles read by previous loads of the file are reused
+		importer.setTileCache(SharedTileCache.getInstance());
 		if (!isHeadLess()) {
 			importer.addProgressListener(getProgressEventHandler());
+			if (progressiveLoading) {
+				// The sequence is shown as soon as the first preview is available.
+				importer.addStageListener((sequence, stage, stageCount) -> {
+					if (stage == 0)
+						addSequence(sequence);
+				});
+			}
 		}
 
 		Sequence result;
+		runningImporter = importer;
 		try {
 			result = importer.call();
+		} catch (CancellationException e) {
+			System.out.println(String.format("Loading of %s cancelled.", filePath.toString()));
+			return;
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new IcyHandledException(e);
-		}
-		if (!isHeadLess()) {
-			importer.removeProgressListener(getProgressEventHandler());
+		} finally {
+			runningImporter = null;
+			if (!isHeadLess()) {
+				importer.removeProgressListener(getProgressEventHandler());
+			}
 		}
 		long endTime = System.currentTimeMillis();
 		long executionTime = endTime - startTime;
@@ -124,12 +221,22 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 		// Set result
 		if (isHeadLess()) {
 			resultSequenceVar.setValue(result);
-		} else {
+		} else if (!progressiveLoading) {
 			addSequence(result);
 		}
 		System.out.println(String.format("%s loaded in %d milliseconds.", filePath.toString(), executionTime));
 	}
 
+	private static int[] parseChannels(String channelList) {
+		if (channelList == null || channelList.trim().isEmpty())
+			return null;
+		try {
+			return Arrays.stream(channelList.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+		} catch (NumberFormatException e) {
+			throw new IcyHandledException("Invalid channel list: " + channelList);
+		}
+	}
+
 	private DetailedProgressListener getProgressEventHandler() {
 		if (progressEventHandler == null) {
 			progressEventHandler = (double progress, String message, Object data) -> {
@@ -142,6 +249,13 @@ public class LoadBigImage extends EzPlug implements Block, EzStoppable {
 		return progressEventHandler;
 	}
 
+	@Override
+	public void stopExecution() {
+		LargeSequenceImporter importer = runningImporter;
+		if (importer != null)
+			importer.cancel();
+	}
+
 	@Override
 	public void clean() {
 	}
@@ -0,0 +1,144 @@
+package plugins.danyfel80.bigimage.io;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import algorithms.danyfel80.io.sequence.large.LargeSequenceBatchImporter;
+import icy.common.listener.DetailedProgressListener;
+import icy.roi.ROI;
+import icy.roi.ROI2D;
+import icy.sequence.Sequence;
+import icy.system.IcyHandledException;
+import plugins.adufour.blocks.lang.Block;
+import plugins.adufour.blocks.util.VarList;
+import plugins.adufour.ezplug.EzGroup;
+import plugins.adufour.ezplug.EzPlug;
+import plugins.adufour.ezplug.EzStoppable;
+import plugins.adufour.ezplug.EzVarFile;
+import plugins.adufour.ezplug.EzVarInteger;
+import plugins.adufour.ezplug.EzVarSequence;
+import plugins.adufour.vars.lang.VarROIArray;
+import plugins.adufour.vars.lang.VarSequenceArray;
+
+/**
+ * This plugin loads several regions of a large 2D image in a single pass. The
+ * regions are given as 2D ROIs in full resolution pixel coordinates. In the
+ * graphical interface, the ROIs of a selected sequence are used.
+ *
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class LoadBigImageRegions extends EzPlug implements Block, EzStoppable {
+
+	// Image file path
+	private EzVarFile file;
+
+	// Resolution pyramid position
+	private EzVarInteger resolutionLevel;
+
+	// Regions to load
+	private EzVarSequence roiSequence;
+	private VarROIArray rois;
+
+	// Progress listener
+	private DetailedProgressListener progressEventHandler;
+
+	// Block output
+	private VarSequenceArray resultSequencesVar;
+
+	@Override
+	protected void initialize() {
+		file = new EzVarFile("Image path", "");
+		resolutionLevel = new EzVarInteger("Resolution level", 0, 100, 1);
+		resolutionLevel.setToolTipText("The resolution of the resulting images downsampled by powers of 2"
+				+ " (e.g. 1 will import the regions with half their size)");
+		roiSequence = new EzVarSequence("Regions from");
+		roiSequence.setToolTipText("Sequence holding the ROIs to load, in full resolution pixels");
+
+		addEzComponent(file);
+		EzGroup resolutionGroup = new EzGroup("Resolution options", resolutionLevel);
+		addEzComponent(resolutionGroup);
+		resolutionGroup.setFoldedState(false);
+		addEzComponent(roiSequence);
+	}
+
+	@Override
+	public void declareInput(VarList inputMap) {
+		file = new EzVarFile("Image path", "");
+		resolutionLevel = new EzVarInteger("Resolution level", 0, 100, 1);
+		resolutionLevel.setToolTipText("The resolution of the resulting images downsampled by powers of 2"
+				+ " (e.g. 1 will import the regions with half their size)");
+		rois = new VarROIArray("Regions");
+
+		inputMap.add(file.name, file.getVariable());
+		inputMap.add(resolutionLevel.name, resolutionLevel.getVariable());
+		inputMap.add(rois.getName(), rois);
+	}
+
+	@Override
+	public void declareOutput(VarList outputMap) {
+		resultSequencesVar = new VarSequenceArray("loaded sequences");
+		outputMap.add(resultSequencesVar.getName(), resultSequencesVar);
+	}
+
+	@Override
+	protected void execute() {
+		// Read input
+		File filePath = file.getValue(true);
+		int resolution = resolutionLevel.getValue(true);
+		List<ROI> regions = isHeadLess()? Arrays.asList(rois.getValue(true)): roiSequence.getValue(true).getROIs();
+
+		// Process
+		long startTime = System.currentTimeMillis();
+		LargeSequenceBatchImporter importer = new LargeSequenceBatchImporter();
+		importer.setFilePath(Paths.get(filePath.toString()));
+		regions.stream().filter(roi -> roi instanceof ROI2D)
+				.forEach(roi -> importer.addRegion(((ROI2D) roi).getBounds2D(), resolution));
+		if (importer.getRegions().isEmpty()) {
+			throw new IcyHandledException("No 2D region to load");
+		}
+		if (!isHeadLess()) {
+			importer.addProgressListener(getProgressEventHandler());
+		}
+
+		List<Sequence> result;
+		try {
+			result = importer.call();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IcyHandledException(e);
+		}
+		if (!isHeadLess()) {
+			importer.removeProgressListener(getProgressEventHandler());
+		}
+		long endTime = System.currentTimeMillis();
+		long executionTime = endTime - startTime;
+
+		// Set result
+		if (isHeadLess()) {
+			resultSequencesVar.setValue(result.toArray(new Sequence[result.size()]));
+		} else {
+			result.forEach(this::addSequence);
+		}
+		System.out.println(String.format("%d regions of %s loaded in %d milliseconds.", result.size(),
+				filePath.toString(), executionTime));
+	}
+
+	private DetailedProgressListener getProgressEventHandler() {
+		if (progressEventHandler == null) {
+			progressEventHandler = (double progress, String message, Object data) -> {
+				getUI().setProgressBarValue(progress);
+				getUI().setProgressBarMessage(message);
+				return false;
+			};
+		}
+
+		return progressEventHandler;
+	}
+
+	@Override
+	public void clean() {
+	}
+
+}
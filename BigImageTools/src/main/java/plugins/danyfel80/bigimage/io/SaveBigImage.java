@@ -28,6 +28,7 @@ public class SaveBigImage extends EzPlug implements EzStoppable, Block {
 
 	private EzVarSequence sequenceVar;
 	private EzVarFile fileVar;
+	private CompressionOptions compressionOptions;
 
 	private Sequence sequence;
 	private Path filePath;
@@ -39,20 +40,25 @@ public class SaveBigImage extends EzPlug implements EzStoppable, Block {
 	protected void initialize() {
 		sequenceVar = new EzVarSequence("Sequence");
 		fileVar = new EzVarFile("File", null);
+		compressionOptions = new CompressionOptions();
 		addEzComponent(sequenceVar);
 		addEzComponent(fileVar);
+		addEzComponent(compressionOptions.createGroup());
 	}
 
 	@Override
 	public void declareInput(VarList inputMap) {
 		sequenceVar = new EzVarSequence("Sequence");
 		fileVar = new EzVarFile("File", null);
+		compressionOptions = new CompressionOptions();
 		inputMap.add(sequenceVar.name, sequenceVar.getVariable());
 		inputMap.add(fileVar.name, fileVar.getVariable());
+		compressionOptions.declareInput(inputMap);
 	}
 
 	@Override
 	public void declareOutput(VarList outputMap) {
+		compressionOptions.declareOutput(outputMap);
 	}
 
 	@Override
@@ -76,6 +82,7 @@ public class SaveBigImage extends EzPlug implements EzStoppable, Block {
 			exporter.setOutputImageMetadata(metadata);
 			exporter.setOutputFilePath(filePath);
 			exporter.setTileProvider(new IcyBufferedImageTileProvider(sequence.getFirstImage()));
+			compressionOptions.configure(exporter);
 			if (!isHeadLess())
 				exporter.addProgressListener(getProgressListener());
 
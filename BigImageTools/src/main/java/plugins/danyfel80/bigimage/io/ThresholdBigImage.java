@@ -1,11 +1,13 @@
 package plugins.danyfel80.bigimage.io;
 
+import java.awt.Dimension;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 
 import algorithms.danyfel80.io.sequence.large.LargeSequenceExporter;
+import algorithms.danyfel80.io.sequence.large.LargeSequenceReaderPool;
 import algorithms.danyfel80.io.sequence.tileprovider.LargeSequenceThresholdedTileProvider;
 import icy.common.exception.UnsupportedFormatException;
 import icy.common.listener.DetailedProgressListener;
@@ -29,6 +31,7 @@ public class ThresholdBigImage extends EzPlug implements EzStoppable, Block {
 	EzVarDoubleArrayNative thresholdValuesVar;
 	EzVarBoolean outputInvertedVar;
 	EzVarFile outputFileVar;
+	CompressionOptions compressionOptions;
 
 	private Path inputFilePath;
 	private double[] thresholdValues;
@@ -46,11 +49,13 @@ public class ThresholdBigImage extends EzPlug implements EzStoppable, Block {
 				true);
 		outputInvertedVar = new EzVarBoolean("Invert output", false);
 		outputFileVar = new EzVarFile("Output image file", null);
+		compressionOptions = new CompressionOptions();
 
 		addEzComponent(inputFileVar);
 		addEzComponent(thresholdValuesVar);
 		addEzComponent(outputInvertedVar);
 		addEzComponent(outputFileVar);
+		addEzComponent(compressionOptions.createGroup());
 	}
 
 	@Override
@@ -60,15 +65,19 @@ public class ThresholdBigImage extends EzPlug implements EzStoppable, Block {
 				true);
 		outputInvertedVar = new EzVarBoolean("Invert output", false);
 		outputFileVar = new EzVarFile("Output image file", null);
+		compressionOptions = new CompressionOptions();
 
 		inputMap.add(inputFileVar.name, inputFileVar.getVariable());
 		inputMap.add(thresholdValuesVar.name, thresholdValuesVar.getVariable());
 		inputMap.add(outputInvertedVar.name, outputInvertedVar.getVariable());
 		inputMap.add(outputFileVar.name, outputFileVar.getVariable());
+		compressionOptions.declareInput(inputMap);
 	}
 
 	@Override
-	public void declareOutput(VarList outputMap) {}
+	public void declareOutput(VarList outputMap) {
+		compressionOptions.declareOutput(outputMap);
+	}
 
 	@Override
 	protected void execute() {
@@ -85,12 +94,7 @@ public class ThresholdBigImage extends EzPlug implements EzStoppable, Block {
 			e.printStackTrace();
 			throw new IcyHandledException(e);
 		} finally {
-			try {
-				importer.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-				throw new IcyHandledException(e);
-			}
+			LargeSequenceReaderPool.getInstance().releaseReader(importer);
 		}
 	}
 
@@ -114,21 +118,25 @@ public class ThresholdBigImage extends EzPlug implements EzStoppable, Block {
 	}
 
 	private void getInputImageImporter() {
-		importer = new LociImporterPlugin();
 		try {
-			importer.open(inputFilePath.toString(), LociImporterPlugin.FLAG_METADATA_ALL);
+			importer = LargeSequenceReaderPool.getInstance().borrowReader(inputFilePath);
 		} catch (UnsupportedFormatException | IOException e) {
 			e.printStackTrace();
 			throw new IcyHandledException("Could not open input file", e);
 		}
 	}
 
-	private void createImageExporter() throws UnsupportedFormatException, IOException {
+	private void createImageExporter()
+			throws UnsupportedFormatException, IOException, InterruptedException, FormatException {
 		exporter = new LargeSequenceExporter();
 		exporter.setOutputFilePath(outputFilePath);
 		exporter.setOutputImageMetadata(getMetadata());
 		exporter.setTileProvider(tileProvider);
-		exporter.TILE_SIZE.setSize(importer.getTileWidth(0), importer.getTileHeight(0));
+		Dimension tileSize = LargeSequenceExporter
+				.getTiffTileSize(new Dimension(importer.getTileWidth(0), importer.getTileHeight(0)));
+		exporter.TILE_SIZE.setSize(tileSize);
+		tileProvider.setTileSize(tileSize);
+		compressionOptions.configure(exporter);
 		if (!isHeadLess()) {
 			exporter.addProgressListener(getProgressListener());
 		}
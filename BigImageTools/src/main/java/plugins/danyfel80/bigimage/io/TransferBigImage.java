@@ -1,11 +1,15 @@
 package plugins.danyfel80.bigimage.io;
 
+import java.awt.Dimension;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 
 import algorithms.danyfel80.io.sequence.large.LargeSequenceExporter;
+import algorithms.danyfel80.io.sequence.large.LargeSequenceReaderPool;
+import algorithms.danyfel80.io.sequence.large.SharedTileCache;
+import algorithms.danyfel80.io.sequence.large.TiffTileSource;
 import algorithms.danyfel80.io.sequence.tileprovider.LargeSequenceTileProvider;
 import icy.common.exception.UnsupportedFormatException;
 import icy.common.listener.DetailedProgressListener;
@@ -17,6 +21,7 @@ import plugins.adufour.blocks.lang.Block;
 import plugins.adufour.blocks.util.VarList;
 import plugins.adufour.ezplug.EzPlug;
 import plugins.adufour.ezplug.EzStoppable;
+import plugins.adufour.ezplug.EzVarBoolean;
 import plugins.adufour.ezplug.EzVarFile;
 import plugins.kernel.importer.LociImporterPlugin;
 
@@ -24,9 +29,13 @@ public class TransferBigImage extends EzPlug implements EzStoppable, Block {
 
 	EzVarFile inputFileVar;
 	EzVarFile outputFileVar;
+	CompressionOptions compressionOptions;
+	EzVarBoolean copyTilesVar;
 
 	private Path inputFilePath;
 	private Path outputFilePath;
+	private boolean copyTiles;
+	private TiffTileSource tileSource;
 	private LargeSequenceTileProvider tileProvider;
 	private LociImporterPlugin importer;
 	private LargeSequenceExporter exporter;
@@ -37,22 +46,31 @@ public class TransferBigImage extends EzPlug implements EzStoppable, Block {
 	protected void initialize() {
 		inputFileVar = new EzVarFile("Input File", null);
 		outputFileVar = new EzVarFile("Output File", null);
+		compressionOptions = new CompressionOptions();
+		copyTilesVar = new EzVarBoolean("Copy compressed tiles", true);
 
 		addEzComponent(inputFileVar);
 		addEzComponent(outputFileVar);
+		addEzComponent(copyTilesVar);
+		addEzComponent(compressionOptions.createGroup());
 	}
 
 	@Override
 	public void declareInput(VarList inputMap) {
 		inputFileVar = new EzVarFile("Input File", null);
 		outputFileVar = new EzVarFile("Output File", null);
+		compressionOptions = new CompressionOptions();
+		copyTilesVar = new EzVarBoolean("Copy compressed tiles", true);
 
 		inputMap.add(inputFileVar.name, inputFileVar.getVariable());
 		inputMap.add(outputFileVar.name, outputFileVar.getVariable());
+		inputMap.add(copyTilesVar.name, copyTilesVar.getVariable());
+		compressionOptions.declareInput(inputMap);
 	}
 
 	@Override
 	public void declareOutput(VarList outputMap) {
+		compressionOptions.declareOutput(outputMap);
 	}
 
 	@Override
@@ -70,18 +88,15 @@ public class TransferBigImage extends EzPlug implements EzStoppable, Block {
 			e.printStackTrace();
 			throw new IcyHandledException(e);
 		} finally {
-			try {
-				importer.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-				throw new IcyHandledException(e);
-			}
+			closeTileSource();
+			LargeSequenceReaderPool.getInstance().releaseReader(importer);
 		}
 	}
 
 	private void retrieveParameters() {
 		inputFilePath = inputFileVar.getValue(true).toPath();
 		outputFilePath = outputFileVar.getValue(true).toPath();
+		copyTiles = copyTilesVar.getValue(true);
 		PathMatcher extensionMatcher = FileSystems.getDefault().getPathMatcher("glob:*.ome.tiff");
 		if (!extensionMatcher.matches(outputFilePath.getFileName())) {
 			outputFilePath = outputFilePath.resolveSibling(outputFilePath.getFileName() + ".ome.tiff");
@@ -92,30 +107,58 @@ public class TransferBigImage extends EzPlug implements EzStoppable, Block {
 		tileProvider = new LargeSequenceTileProvider();
 		getInputImageImporter();
 		tileProvider.setImporter(importer);
+		tileProvider.setTileCache(SharedTileCache.getInstance());
 	}
 
 	private void getInputImageImporter() {
-		importer = new LociImporterPlugin();
 		try {
-			importer.open(inputFilePath.toString(), LociImporterPlugin.FLAG_METADATA_ALL);
+			importer = LargeSequenceReaderPool.getInstance().borrowReader(inputFilePath);
 		} catch (UnsupportedFormatException | IOException e) {
 			e.printStackTrace();
 			throw new IcyHandledException("Could not open input file", e);
 		}
 	}
 
-	private void createImageExporter() throws UnsupportedFormatException, IOException {
+	private void createImageExporter()
+			throws UnsupportedFormatException, IOException, InterruptedException, FormatException {
 		exporter = new LargeSequenceExporter();
 		exporter.setOutputFilePath(outputFilePath);
 		OMEXMLMetadata metadata = getMetadata();
 		exporter.setOutputImageMetadata(metadata);
 		exporter.setTileProvider(tileProvider);
-		exporter.TILE_SIZE.setSize(importer.getTileWidth(0), importer.getTileHeight(0));
+		Dimension tileSize = LargeSequenceExporter
+				.getTiffTileSize(new Dimension(importer.getTileWidth(0), importer.getTileHeight(0)));
+		exporter.TILE_SIZE.setSize(tileSize);
+		tileProvider.setTileSize(tileSize);
+		compressionOptions.configure(exporter);
+		if (copyTiles)
+			setTileSource();
 		if (!isHeadLess()) {
 			exporter.addProgressListener(getProgressListener());
 		}
 	}
 
+	/**
+	 * Tiles of the input file are copied when it is a TIFF file holding a single
+	 * Z and T, so that its IFDs are the channels, and its tiles use the selected
+	 * codec. The selected compression is kept in every case, tiles that cannot
+	 * be copied are encoded with it.
+	 */
+	private void setTileSource() throws UnsupportedFormatException, IOException {
+		OMEXMLMetadata inputMetadata = (OMEXMLMetadata) importer.getOMEXMLMetaData();
+		if (MetaDataUtil.getSizeZ(inputMetadata, 0) != 1 || MetaDataUtil.getSizeT(inputMetadata, 0) != 1)
+			return;
+
+		tileSource = TiffTileSource.open(inputFilePath);
+		if (tileSource == null)
+			return;
+		if (tileSource.getCodec() != exporter.getCompression().getCodec()) {
+			closeTileSource();
+			return;
+		}
+		exporter.setTileSource(tileSource);
+	}
+
 	private OMEXMLMetadata getMetadata() throws UnsupportedFormatException, IOException {
 		OMEXMLMetadata inputMetadata = (OMEXMLMetadata) importer.getOMEXMLMetaData();
 		OMEXMLMetadata metadata = LargeSequenceExporter.createMetadata(MetaDataUtil.getSizeX(inputMetadata, 0),
@@ -148,12 +191,25 @@ public class TransferBigImage extends EzPlug implements EzStoppable, Block {
 
 	private void transfer() throws InterruptedException, IOException, FormatException {
 		exporter.write();
+		if (tileSource != null && !isHeadLess())
+			getUI().setProgressBarMessage(String.format("%d tiles copied from input file", tileSource.getCopiedTileCount()));
 	}
 
 	private void closeExporter() throws Exception {
 		exporter.close();
 	}
 
+	private void closeTileSource() {
+		if (tileSource != null) {
+			try {
+				tileSource.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			tileSource = null;
+		}
+	}
+
 	@Override
 	public void clean() {
 	}
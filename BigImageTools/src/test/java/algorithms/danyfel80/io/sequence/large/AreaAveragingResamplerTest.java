@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.Random;
+
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageUtil;
+import icy.type.DataType;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class AreaAveragingResamplerTest {
+
+	private static final int CHANNELS = 2;
+
+	@Test
+	public void testDownscaleMatchesBruteForce() {
+		checkAgainstBruteForce(new Dimension(53, 41), new Rectangle2D.Double(3.25, 2.5, 41.5, 30.75),
+				new Dimension(17, 13), new Dimension(5, 4));
+	}
+
+	@Test
+	public void testUpscaleMatchesBruteForce() {
+		checkAgainstBruteForce(new Dimension(9, 7), new Rectangle2D.Double(0.5, 1, 7.25, 5.5), new Dimension(23, 16),
+				new Dimension(6, 6));
+	}
+
+	@Test
+	public void testWholeBlockMatchesBruteForce() {
+		checkAgainstBruteForce(new Dimension(31, 29), new Rectangle2D.Double(0, 0, 31, 29), new Dimension(10, 10),
+				new Dimension(10, 10));
+	}
+
+	@Test
+	public void testIntegerValuesAreRoundedAndClamped() {
+		double[] values = {-3, 0.4, 0.5, 127.6, 255, 300};
+		byte[] data = new byte[values.length];
+		AreaAveragingResampler.fromDouble(DataType.UBYTE, values, data, 0);
+		assertArrayEquals(new byte[] {0, 0, 1, (byte) 128, (byte) 255, (byte) 255}, data);
+
+		double[] readValues = new double[values.length];
+		AreaAveragingResampler.toDouble(DataType.UBYTE, data, 0, readValues);
+		assertArrayEquals(new double[] {0, 0, 1, 128, 255, 255}, readValues, 0);
+	}
+
+	/**
+	 * Resamples a random image block by block and compares each pixel with the
+	 * mean of the source pixels it covers, weighted by the covered area.
+	 */
+	private static void checkAgainstBruteForce(Dimension sourceSize, Rectangle2D sourceRectangle,
+			Dimension resultSize, Dimension blockSize) {
+		IcyBufferedImage source = createRandomImage(sourceSize);
+		IcyBufferedImage result = new IcyBufferedImage(resultSize.width, resultSize.height, CHANNELS, DataType.DOUBLE);
+		Object[] resultData = new Object[CHANNELS];
+		for (int c = 0; c < CHANNELS; c++) {
+			resultData[c] = result.getDataXY(c);
+		}
+
+		AreaAveragingResampler resampler = new AreaAveragingResampler(DataType.DOUBLE, resultData, resultSize.width,
+				resultSize.height, sourceRectangle, sourceSize);
+		for (int y = 0; y < resultSize.height; y += blockSize.height) {
+			for (int x = 0; x < resultSize.width; x += blockSize.width) {
+				Rectangle resultBlock = new Rectangle(x, y, Math.min(blockSize.width, resultSize.width - x),
+						Math.min(blockSize.height, resultSize.height - y));
+				Rectangle blockSourceRectangle = resampler.getSourceRectangle(resultBlock);
+				IcyBufferedImage blockSource = IcyBufferedImageUtil.getSubImage(source, blockSourceRectangle.x,
+						blockSourceRectangle.y, blockSourceRectangle.width, blockSourceRectangle.height);
+				resampler.resample(blockSource, blockSourceRectangle, resultBlock);
+			}
+		}
+
+		double pixelWidth = sourceRectangle.getWidth() / resultSize.width;
+		double pixelHeight = sourceRectangle.getHeight() / resultSize.height;
+		for (int c = 0; c < CHANNELS; c++) {
+			double[] sourceData = (double[]) source.getDataXY(c);
+			double[] data = (double[]) resultData[c];
+			for (int y = 0; y < resultSize.height; y++) {
+				for (int x = 0; x < resultSize.width; x++) {
+					double x0 = sourceRectangle.getX() + x * pixelWidth;
+					double y0 = sourceRectangle.getY() + y * pixelHeight;
+					double expected = getAreaAverage(sourceData, sourceSize, x0, y0, x0 + pixelWidth, y0 + pixelHeight);
+					assertEquals(String.format("Pixel (%d, %d) of channel %d", x, y, c), expected,
+							data[y * resultSize.width + x], 1e-9);
+				}
+			}
+		}
+	}
+
+	private static IcyBufferedImage createRandomImage(Dimension size) {
+		Random random = new Random(42);
+		IcyBufferedImage image = new IcyBufferedImage(size.width, size.height, CHANNELS, DataType.DOUBLE);
+		for (int c = 0; c < CHANNELS; c++) {
+			double[] data = (double[]) image.getDataXY(c);
+			for (int i = 0; i < data.length; i++) {
+				data[i] = random.nextDouble() * 1000;
+			}
+		}
+		image.dataChanged();
+		return image;
+	}
+
+	private static double getAreaAverage(double[] data, Dimension size, double x0, double y0, double x1, double y1) {
+		double sum = 0;
+		double area = 0;
+		int yEnd = (int) Math.min(Math.ceil(y1), size.height);
+		int xEnd = (int) Math.min(Math.ceil(x1), size.width);
+		for (int y = (int) Math.floor(y0); y < yEnd; y++) {
+			double height = Math.min(y1, y + 1) - Math.max(y0, y);
+			for (int x = (int) Math.floor(x0); x < xEnd; x++) {
+				double weight = (Math.min(x1, x + 1) - Math.max(x0, x)) * height;
+				sum += weight * data[y * size.width + x];
+				area += weight;
+			}
+		}
+		return sum / area;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Dimension;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffParser;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class BigTiffTileWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTileSizeMustBeMultipleOf16() {
+		new BigTiffTileWriter.Directory(100, 100, 40, 32);
+	}
+
+	@Test
+	public void testWriteAndReadUncompressedTiles() throws Exception {
+		int width = 20;
+		int height = 12;
+		int tileSize = 16;
+		Path filePath = folder.getRoot().toPath().resolve("tiles.tiff");
+		byte[] expectedSamples = new byte[width * height];
+		for (int i = 0; i < expectedSamples.length; i++) {
+			expectedSamples[i] = (byte) (i * 3);
+		}
+
+		try (BigTiffTileWriter writer = new BigTiffTileWriter(filePath, false)) {
+			BigTiffTileWriter.Directory directory = new BigTiffTileWriter.Directory(width, height, tileSize, tileSize);
+			long[] offsets = new long[directory.getTilesPerRow() * directory.getTilesPerColumn()];
+			long[] byteCounts = new long[offsets.length];
+			for (int tileColumn = 0; tileColumn < directory.getTilesPerRow(); tileColumn++) {
+				// Edge tiles are padded to the full tile size
+				byte[] tile = new byte[tileSize * tileSize];
+				for (int y = 0; y < height; y++) {
+					for (int x = tileColumn * tileSize; x < Math.min(width, (tileColumn + 1) * tileSize); x++) {
+						tile[y * tileSize + x - tileColumn * tileSize] = expectedSamples[y * width + x];
+					}
+				}
+				offsets[tileColumn] = writer.appendTile(tile);
+				byteCounts[tileColumn] = tile.length;
+			}
+			directory.setTiles(offsets, byteCounts);
+			writer.writeDirectory(directory, true);
+		}
+
+		try (TiffParser parser = new TiffParser(filePath.toString())) {
+			IFDList ifds = parser.getIFDs();
+			assertEquals(1, ifds.size());
+			IFD ifd = ifds.get(0);
+			assertEquals(width, ifd.getImageWidth());
+			assertEquals(height, ifd.getImageLength());
+			assertEquals(tileSize, ifd.getTileWidth());
+			assertEquals(tileSize, ifd.getTileLength());
+			assertArrayEquals(expectedSamples, parser.getSamples(ifd, new byte[width * height]));
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Dimension;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import algorithms.danyfel80.io.sequence.tileprovider.IcyBufferedImageTileProvider;
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffParser;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class LargeSequenceExporterTest {
+
+	private static final int CHANNELS = 3;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testTileSizeIsRoundedToMultipleOf16() {
+		assertEquals(new Dimension(48, 32), LargeSequenceExporter.getTiffTileSize(new Dimension(40, 20)));
+		assertEquals(new Dimension(256, 16), LargeSequenceExporter.getTiffTileSize(new Dimension(256, 16)));
+	}
+
+	@Test
+	public void testWriteMultiChannelPyramid() throws Exception {
+		Dimension imageSize = new Dimension(70, 45);
+		Dimension tileSize = new Dimension(32, 32);
+		IcyBufferedImage image = createImage(imageSize);
+		Path filePath = exportImage(image, tileSize, true);
+
+		IcyBufferedImage level1 = TilePyramidBuilder.reduce(image);
+		IcyBufferedImage level2 = TilePyramidBuilder.reduce(level1);
+		try (TiffParser parser = new TiffParser(filePath.toString())) {
+			IFDList ifds = parser.getIFDs();
+			assertEquals(CHANNELS, ifds.size());
+			for (int c = 0; c < CHANNELS; c++) {
+				IFD ifd = ifds.get(c);
+				checkImage(parser, ifd, tileSize, image, c);
+				IFDList subIfds = parser.getSubIFDs(ifd);
+				assertEquals(2, subIfds.size());
+				checkImage(parser, subIfds.get(0), tileSize, level1, c);
+				checkImage(parser, subIfds.get(1), tileSize, level2, c);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteWithRoundedTileSize() throws Exception {
+		Dimension imageSize = new Dimension(70, 45);
+		IcyBufferedImage image = createImage(imageSize);
+		Path filePath = exportImage(image, new Dimension(40, 20), false);
+
+		try (TiffParser parser = new TiffParser(filePath.toString())) {
+			IFDList ifds = parser.getIFDs();
+			assertEquals(CHANNELS, ifds.size());
+			for (int c = 0; c < CHANNELS; c++) {
+				checkImage(parser, ifds.get(c), new Dimension(48, 32), image, c);
+			}
+		}
+	}
+
+	@Test
+	public void testCopyTilesFromLzwFile() throws Exception {
+		Dimension imageSize = new Dimension(70, 45);
+		Dimension tileSize = new Dimension(32, 32);
+		IcyBufferedImage image = createImage(imageSize);
+		Path sourcePath = exportImage("source.ome.tiff", image, tileSize, false, TileCompression.lzw(), null);
+
+		Path filePath;
+		try (TiffTileSource tileSource = TiffTileSource.open(sourcePath)) {
+			assertEquals(TileCompression.Codec.LZW, tileSource.getCodec());
+			filePath = exportImage("copy.ome.tiff", image, tileSize, false, TileCompression.lzw(), tileSource);
+			// 3x2 tiles in each channel
+			assertEquals(6 * CHANNELS, tileSource.getCopiedTileCount());
+		}
+
+		checkFile(filePath, tileSize, image);
+	}
+
+	@Test
+	public void testEncodeTilesOfOtherTileSize() throws Exception {
+		Dimension imageSize = new Dimension(70, 45);
+		IcyBufferedImage image = createImage(imageSize);
+		Path sourcePath = exportImage("source.ome.tiff", image, new Dimension(32, 32), false, TileCompression.lzw(),
+				null);
+
+		Path filePath;
+		try (TiffTileSource tileSource = TiffTileSource.open(sourcePath)) {
+			filePath = exportImage("copy.ome.tiff", image, new Dimension(64, 64), false, TileCompression.lzw(),
+					tileSource);
+			assertEquals(0, tileSource.getCopiedTileCount());
+		}
+
+		checkFile(filePath, new Dimension(64, 64), image);
+	}
+
+	@Test
+	public void testEncodeTilesOfOtherCodec() throws Exception {
+		Dimension imageSize = new Dimension(70, 45);
+		Dimension tileSize = new Dimension(32, 32);
+		IcyBufferedImage image = createImage(imageSize);
+		Path sourcePath = exportImage("source.ome.tiff", image, tileSize, false, TileCompression.lzw(), null);
+
+		Path filePath;
+		try (TiffTileSource tileSource = TiffTileSource.open(sourcePath)) {
+			filePath = exportImage("copy.ome.tiff", image, tileSize, false,
+					TileCompression.deflate(TileCompression.DEFAULT_DEFLATE_LEVEL), tileSource);
+			assertEquals(0, tileSource.getCopiedTileCount());
+		}
+
+		checkFile(filePath, tileSize, image);
+	}
+
+	private Path exportImage(IcyBufferedImage image, Dimension tileSize, boolean pyramid) throws Exception {
+		return exportImage("image.ome.tiff", image, tileSize, pyramid, null, null);
+	}
+
+	/**
+	 * @param compression
+	 *          Compression of the tiles, null for the default one.
+	 * @param tileSource
+	 *          Source of the tiles to copy, null to encode all the tiles.
+	 */
+	private Path exportImage(String fileName, IcyBufferedImage image, Dimension tileSize, boolean pyramid,
+			TileCompression compression, TiffTileSource tileSource) throws Exception {
+		Path filePath = folder.getRoot().toPath().resolve(fileName);
+		try (LargeSequenceExporter exporter = new LargeSequenceExporter()) {
+			exporter.setOutputImageMetadata(
+					LargeSequenceExporter.createMetadata(image.getWidth(), image.getHeight(), CHANNELS, DataType.USHORT));
+			exporter.setOutputFilePath(filePath);
+			exporter.setPyramid(pyramid);
+			if (compression != null)
+				exporter.setCompression(compression);
+			if (tileSource != null)
+				exporter.setTileSource(tileSource);
+			Dimension tiffTileSize = LargeSequenceExporter.getTiffTileSize(tileSize);
+			exporter.TILE_SIZE.setSize(tiffTileSize);
+			IcyBufferedImageTileProvider tileProvider = new IcyBufferedImageTileProvider(image);
+			tileProvider.setTileSize(tiffTileSize);
+			exporter.setTileProvider(tileProvider);
+			exporter.write();
+		}
+		return filePath;
+	}
+
+	private static void checkFile(Path filePath, Dimension tileSize, IcyBufferedImage expectedImage) throws Exception {
+		try (TiffParser parser = new TiffParser(filePath.toString())) {
+			IFDList ifds = parser.getIFDs();
+			assertEquals(CHANNELS, ifds.size());
+			for (int c = 0; c < CHANNELS; c++) {
+				checkImage(parser, ifds.get(c), tileSize, expectedImage, c);
+			}
+		}
+	}
+
+	private static IcyBufferedImage createImage(Dimension size) {
+		IcyBufferedImage image = new IcyBufferedImage(size.width, size.height, CHANNELS, DataType.USHORT);
+		for (int c = 0; c < CHANNELS; c++) {
+			short[] data = (short[]) image.getDataXY(c);
+			for (int y = 0; y < size.height; y++) {
+				for (int x = 0; x < size.width; x++) {
+					data[y * size.width + x] = (short) (x * 257 + y * 911 + c * 10007);
+				}
+			}
+		}
+		image.dataChanged();
+		return image;
+	}
+
+	private static void checkImage(TiffParser parser, IFD ifd, Dimension tileSize, IcyBufferedImage expectedImage,
+			int channel) throws Exception {
+		int width = expectedImage.getWidth();
+		int height = expectedImage.getHeight();
+		assertEquals(width, ifd.getImageWidth());
+		assertEquals(height, ifd.getImageLength());
+		assertEquals(tileSize.width, ifd.getTileWidth());
+		assertEquals(tileSize.height, ifd.getTileLength());
+
+		byte[] bytes = parser.getSamples(ifd, new byte[width * height * 2]);
+		short[] samples = new short[width * height];
+		ByteBuffer.wrap(bytes).order(ifd.isLittleEndian()? ByteOrder.LITTLE_ENDIAN: ByteOrder.BIG_ENDIAN)
+				.asShortBuffer().get(samples);
+		assertArrayEquals(String.format("Channel %d of %dx%d image", channel, width, height),
+				(short[]) expectedImage.getDataXY(channel), samples);
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class PersistentTileCacheTest {
+
+	private static final int TILE_SIZE = 16;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testLeastRecentlyUsedTileIsEvictedOnReopen() throws Exception {
+		Path directory = folder.newFolder("cache").toPath();
+		TileKey.FileIdentity file = TileKey.FileIdentity.of(folder.newFile("image.tif").toPath());
+		TileKey[] keys = {createKey(file, 1), createKey(file, 2), createKey(file, 3)};
+		IcyBufferedImage[] tiles = {createTile(1), createTile(2), createTile(3)};
+
+		PersistentTileCache cache = new PersistentTileCache(directory, 1 << 20);
+		Path[] tileFiles = new Path[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			tileFiles[i] = putTile(cache, keys[i], tiles[i]);
+			Files.setLastModifiedTime(tileFiles[i], FileTime.fromMillis(1000L * (i + 1)));
+		}
+		long tileBytes = cache.getSizeBytes() / keys.length;
+		// The hit makes the first tile the most recently used one.
+		assertNotNull(cache.get(keys[0]));
+
+		cache = new PersistentTileCache(directory, 2 * tileBytes);
+		assertEquals(2, cache.getTileCount());
+		assertEquals(2 * tileBytes, cache.getSizeBytes());
+		assertFalse(Files.exists(tileFiles[1]));
+		assertNull(cache.get(keys[1]));
+		checkTile(tiles[0], cache.get(keys[0]));
+		checkTile(tiles[2], cache.get(keys[2]));
+	}
+
+	@Test
+	public void testTruncatedTileIsDiscarded() throws Exception {
+		Path directory = folder.newFolder("cache").toPath();
+		TileKey key = createKey(TileKey.FileIdentity.of(folder.newFile("image.tif").toPath()), 1);
+		PersistentTileCache cache = new PersistentTileCache(directory, 1 << 20);
+		Path tileFile = putTile(cache, key, createTile(1));
+		try (FileChannel channel = FileChannel.open(tileFile, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() / 2);
+		}
+
+		assertNull(cache.get(key));
+		assertEquals(0, cache.getTileCount());
+		assertEquals(0, cache.getSizeBytes());
+		assertFalse(Files.exists(tileFile));
+	}
+
+	@Test
+	public void testTemporaryFilesAreDeletedOnOpen() throws Exception {
+		Path directory = folder.newFolder("cache").toPath();
+		TileKey key = createKey(TileKey.FileIdentity.of(folder.newFile("image.tif").toPath()), 1);
+		PersistentTileCache cache = new PersistentTileCache(directory, 1 << 20);
+		Path tileFile = putTile(cache, key, createTile(1));
+		Path temporaryFile = directory.resolve(tileFile.getFileName() + ".1.tmp");
+		Files.copy(tileFile, temporaryFile);
+
+		cache = new PersistentTileCache(directory, 1 << 20);
+		assertFalse(Files.exists(temporaryFile));
+		assertEquals(1, cache.getTileCount());
+		assertEquals(Files.size(tileFile), cache.getSizeBytes());
+		checkTile(createTile(1), cache.get(key));
+	}
+
+	@Test
+	public void testTileOfOtherKeyIsRejected() throws Exception {
+		Path directory = folder.newFolder("cache").toPath();
+		TileKey.FileIdentity file = TileKey.FileIdentity.of(folder.newFile("image.tif").toPath());
+		TileKey key1 = createKey(file, 1);
+		TileKey key2 = createKey(file, 2);
+		PersistentTileCache cache = new PersistentTileCache(directory, 1 << 20);
+		Path tileFile1 = putTile(cache, key1, createTile(1));
+		Path tileFile2 = putTile(cache, key2, createTile(2));
+		// Simulates a digest collision: the file of the second key holds the first
+		// tile.
+		Files.copy(tileFile1, tileFile2, StandardCopyOption.REPLACE_EXISTING);
+
+		assertNull(cache.get(key2));
+		assertFalse(Files.exists(tileFile2));
+		assertEquals(1, cache.getTileCount());
+		checkTile(createTile(1), cache.get(key1));
+	}
+
+	private static TileKey createKey(TileKey.FileIdentity file, int tileX) {
+		return new TileKey(file, 0, 0, null, 0, 0, new Rectangle(tileX * TILE_SIZE, 0, TILE_SIZE, TILE_SIZE));
+	}
+
+	private static IcyBufferedImage createTile(int seed) {
+		IcyBufferedImage tile = new IcyBufferedImage(TILE_SIZE, TILE_SIZE, 1, DataType.UBYTE);
+		byte[] data = (byte[]) tile.getDataXY(0);
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7 + seed * 31);
+		}
+		tile.dataChanged();
+		return tile;
+	}
+
+	/**
+	 * @return The file in which the tile is stored.
+	 */
+	private static Path putTile(PersistentTileCache cache, TileKey key, IcyBufferedImage tile) throws IOException {
+		Set<Path> previousFiles = listFiles(cache.getDirectory());
+		cache.put(key, tile);
+		Set<Path> files = listFiles(cache.getDirectory());
+		files.removeAll(previousFiles);
+		assertEquals(1, files.size());
+		Path tileFile = files.iterator().next();
+		assertTrue(tileFile.getFileName().toString().endsWith(".tile"));
+		return tileFile;
+	}
+
+	private static Set<Path> listFiles(Path directory) throws IOException {
+		Set<Path> files = new HashSet<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file: stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static void checkTile(IcyBufferedImage expectedTile, IcyBufferedImage tile) {
+		assertNotNull(tile);
+		assertEquals(DataType.UBYTE, tile.getDataType_());
+		assertEquals(expectedTile.getSizeX(), tile.getSizeX());
+		assertEquals(expectedTile.getSizeY(), tile.getSizeY());
+		assertArrayEquals((byte[]) expectedTile.getDataXY(0), (byte[]) tile.getDataXY(0));
+	}
+}
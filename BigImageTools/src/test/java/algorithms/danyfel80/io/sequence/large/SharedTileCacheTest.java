@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class SharedTileCacheTest {
+
+	private static final int TILE_SIZE = 16;
+	private static final int CACHED_TILES = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testScanDoesNotEvictFrequentTile() throws Exception {
+		TileKey.FileIdentity file = TileKey.FileIdentity.of(folder.newFile("image.tif").toPath());
+		IcyBufferedImage tile = new IcyBufferedImage(TILE_SIZE, TILE_SIZE, 1, DataType.UBYTE);
+		long tileBytes = SharedTileCache.getTileBytes(tile);
+		SharedTileCache cache = new SharedTileCache(CACHED_TILES * tileBytes);
+
+		TileKey frequentKey = createKey(file, 0, 0);
+		assertNull(cache.get(frequentKey));
+		cache.put(frequentKey, tile);
+		for (int i = 0; i < 5; i++) {
+			assertNotNull(cache.get(frequentKey));
+		}
+
+		// One pass over ten times more tiles than the cache holds, as when a whole
+		// slide is read once.
+		for (int y = 1; y <= 10; y++) {
+			for (int x = 0; x < CACHED_TILES; x++) {
+				TileKey key = createKey(file, x, y);
+				assertNull(cache.get(key));
+				cache.put(key, new IcyBufferedImage(TILE_SIZE, TILE_SIZE, 1, DataType.UBYTE));
+				assertTrue(cache.getSizeBytes() <= cache.getMaxBytes());
+			}
+		}
+
+		assertNotNull(cache.get(frequentKey));
+		assertEquals(6, cache.getHitCount());
+	}
+
+	@Test
+	public void testRecentScanTileIsKept() throws Exception {
+		TileKey.FileIdentity file = TileKey.FileIdentity.of(folder.newFile("image.tif").toPath());
+		IcyBufferedImage tile = new IcyBufferedImage(TILE_SIZE, TILE_SIZE, 1, DataType.UBYTE);
+		SharedTileCache cache = new SharedTileCache(CACHED_TILES * SharedTileCache.getTileBytes(tile));
+
+		TileKey key = null;
+		for (int x = 0; x < 2 * CACHED_TILES; x++) {
+			key = createKey(file, x, 0);
+			cache.put(key, new IcyBufferedImage(TILE_SIZE, TILE_SIZE, 1, DataType.UBYTE));
+		}
+		// The latest tile is in the window whatever its frequency.
+		assertNotNull(cache.get(key));
+	}
+
+	private static TileKey createKey(TileKey.FileIdentity file, int tileX, int tileY) {
+		return new TileKey(file, 0, 0, null, 0, 0,
+				new Rectangle(tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Dimension;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import icy.image.IcyBufferedImage;
+import icy.image.IcyBufferedImageUtil;
+import icy.type.DataType;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TilePyramidBuilderTest {
+
+	private static final int CHANNELS = 2;
+
+	@Test
+	public void testLevelSizesOnOddSizes() {
+		Dimension imageSize = new Dimension(1001, 517);
+		Dimension tileSize = new Dimension(256, 256);
+		assertEquals(3, TilePyramidBuilder.getLevelCount(imageSize, tileSize));
+		assertEquals(new Dimension(501, 259), TilePyramidBuilder.getLevelSize(1, imageSize));
+		assertEquals(new Dimension(251, 130), TilePyramidBuilder.getLevelSize(2, imageSize));
+		assertEquals(1, TilePyramidBuilder.getLevelCount(new Dimension(256, 255), tileSize));
+	}
+
+	@Test
+	public void testReduceOddTile() {
+		IcyBufferedImage tile = new IcyBufferedImage(3, 3, 1, DataType.UBYTE);
+		byte[] data = (byte[]) tile.getDataXY(0);
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (10 * i);
+		}
+		tile.dataChanged();
+
+		IcyBufferedImage reducedTile = TilePyramidBuilder.reduce(tile);
+		assertEquals(2, reducedTile.getWidth());
+		assertEquals(2, reducedTile.getHeight());
+		// Last column and row are averaged with the pixels available.
+		assertArrayEquals(new byte[] {20, 35, 65, 80}, (byte[]) reducedTile.getDataXY(0));
+	}
+
+	@Test
+	public void testLevelsMatchWholeImageReduction() throws IOException {
+		checkLevels(new Dimension(75, 41), new Dimension(16, 16));
+		checkLevels(new Dimension(33, 97), new Dimension(16, 32));
+	}
+
+	/**
+	 * Adds the reduced tiles of an image to a builder, and compares the tiles
+	 * of each level with the whole image reduced as many times.
+	 */
+	private static void checkLevels(Dimension imageSize, Dimension tileSize) throws IOException {
+		IcyBufferedImage image = createImage(imageSize);
+		int levelCount = TilePyramidBuilder.getLevelCount(imageSize, tileSize);
+		IcyBufferedImage[] levels = new IcyBufferedImage[levelCount];
+		int[] tileCounts = new int[levelCount];
+		TilePyramidBuilder builder = new TilePyramidBuilder(imageSize, tileSize, CHANNELS, DataType.UBYTE, levelCount,
+				(level, tileColumn, tileRow, tile) -> {
+					if (levels[level] == null) {
+						Dimension levelSize = TilePyramidBuilder.getLevelSize(level, imageSize);
+						levels[level] = new IcyBufferedImage(levelSize.width, levelSize.height, CHANNELS, DataType.UBYTE);
+					}
+					copyTile(tile, levels[level], tileColumn * tileSize.width, tileRow * tileSize.height);
+					tileCounts[level]++;
+				});
+
+		Dimension gridSize = builder.getTileGridSize(0);
+		for (int tileRow = 0; tileRow < gridSize.height; tileRow++) {
+			for (int tileColumn = 0; tileColumn < gridSize.width; tileColumn++) {
+				int x = tileColumn * tileSize.width;
+				int y = tileRow * tileSize.height;
+				IcyBufferedImage tile = IcyBufferedImageUtil.getSubImage(image, x, y,
+						Math.min(tileSize.width, imageSize.width - x), Math.min(tileSize.height, imageSize.height - y));
+				builder.addReducedTile(1, tileColumn, tileRow, TilePyramidBuilder.reduce(tile));
+			}
+		}
+
+		IcyBufferedImage expectedLevel = image;
+		for (int level = 1; level < levelCount; level++) {
+			expectedLevel = TilePyramidBuilder.reduce(expectedLevel);
+			Dimension levelGridSize = builder.getTileGridSize(level);
+			assertEquals("Tiles of level " + level, levelGridSize.width * levelGridSize.height, tileCounts[level]);
+			assertEquals(builder.getLevelSize(level), new Dimension(expectedLevel.getWidth(), expectedLevel.getHeight()));
+			for (int c = 0; c < CHANNELS; c++) {
+				assertArrayEquals(String.format("Level %d, channel %d", level, c), (byte[]) expectedLevel.getDataXY(c),
+						(byte[]) levels[level].getDataXY(c));
+			}
+		}
+	}
+
+	private static IcyBufferedImage createImage(Dimension size) {
+		IcyBufferedImage image = new IcyBufferedImage(size.width, size.height, CHANNELS, DataType.UBYTE);
+		for (int c = 0; c < CHANNELS; c++) {
+			byte[] data = (byte[]) image.getDataXY(c);
+			for (int y = 0; y < size.height; y++) {
+				for (int x = 0; x < size.width; x++) {
+					data[y * size.width + x] = (byte) (x * 7 + y * 13 + c * 101);
+				}
+			}
+		}
+		image.dataChanged();
+		return image;
+	}
+
+	private static void copyTile(IcyBufferedImage tile, IcyBufferedImage image, int x, int y) {
+		for (int c = 0; c < CHANNELS; c++) {
+			byte[] tileData = (byte[]) tile.getDataXY(c);
+			byte[] data = (byte[]) image.getDataXY(c);
+			for (int row = 0; row < tile.getHeight(); row++) {
+				System.arraycopy(tileData, row * tile.getWidth(), data, (y + row) * image.getWidth() + x, tile.getWidth());
+			}
+		}
+	}
+}
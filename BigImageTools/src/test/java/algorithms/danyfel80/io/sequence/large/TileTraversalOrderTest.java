@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.large;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class TileTraversalOrderTest {
+
+	private static final Dimension TILE_SIZE = new Dimension(64, 64);
+	private static final Dimension[] GRID_SIZES = {new Dimension(1, 1), new Dimension(1, 7), new Dimension(7, 1),
+			new Dimension(5, 3), new Dimension(7, 9), new Dimension(16, 16), new Dimension(33, 2)};
+
+	@Test
+	public void testOrdersArePermutations() {
+		for (TileTraversalOrder order: TileTraversalOrder.values()) {
+			for (Dimension gridSize: GRID_SIZES) {
+				Rectangle tileGrid = new Rectangle(2, 3, gridSize.width, gridSize.height);
+				int[] tileOrder = order.getTileOrder(tileGrid, TILE_SIZE, null);
+
+				int[] sortedOrder = tileOrder.clone();
+				Arrays.sort(sortedOrder);
+				int[] expectedIndices = new int[gridSize.width * gridSize.height];
+				Arrays.setAll(expectedIndices, i -> i);
+				assertArrayEquals(String.format("%s on %dx%d", order, gridSize.width, gridSize.height), expectedIndices,
+						sortedOrder);
+			}
+		}
+	}
+
+	@Test
+	public void testRowMajorOrder() {
+		int[] tileOrder = TileTraversalOrder.ROW_MAJOR.getTileOrder(new Rectangle(0, 0, 3, 2), TILE_SIZE, null);
+		assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5}, tileOrder);
+	}
+
+	@Test
+	public void testOrdersWithoutLayoutFallBackToRowMajor() {
+		Rectangle tileGrid = new Rectangle(0, 0, 5, 3);
+		int[] rowMajorOrder = TileTraversalOrder.ROW_MAJOR.getTileOrder(tileGrid, TILE_SIZE, null);
+		assertArrayEquals(rowMajorOrder, TileTraversalOrder.FILE_OFFSET.getTileOrder(tileGrid, TILE_SIZE, null));
+		assertArrayEquals(rowMajorOrder, TileTraversalOrder.STRIP_ALIGNED.getTileOrder(tileGrid, TILE_SIZE, null));
+	}
+
+	@Test
+	public void testZOrder() {
+		int[] tileOrder = TileTraversalOrder.Z_ORDER.getTileOrder(new Rectangle(0, 0, 4, 4), TILE_SIZE, null);
+		assertArrayEquals(new int[] {0, 1, 4, 5, 2, 3, 6, 7, 8, 9, 12, 13, 10, 11, 14, 15}, tileOrder);
+	}
+
+	@Test
+	public void testHilbertOrderMovesToNeighbours() {
+		int width = 8;
+		int[] tileOrder = TileTraversalOrder.HILBERT.getTileOrder(new Rectangle(0, 0, width, width), TILE_SIZE, null);
+		assertEquals(0, tileOrder[0]);
+		for (int i = 1; i < tileOrder.length; i++) {
+			int distance = Math.abs(tileOrder[i] % width - tileOrder[i - 1] % width)
+					+ Math.abs(tileOrder[i] / width - tileOrder[i - 1] / width);
+			assertTrue("Jump between tiles " + tileOrder[i - 1] + " and " + tileOrder[i], distance == 1);
+		}
+	}
+}
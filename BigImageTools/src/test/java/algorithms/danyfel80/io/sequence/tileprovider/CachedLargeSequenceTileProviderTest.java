@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2018 Institut Pasteur.
+ *
+ * This file is part of Icy.
+ *
+ * Icy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Icy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Icy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package algorithms.danyfel80.io.sequence.tileprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import algorithms.danyfel80.io.sequence.large.LargeSequenceExporter;
+import algorithms.danyfel80.io.sequence.large.LargeSequenceExporterException;
+import icy.common.exception.UnsupportedFormatException;
+import icy.image.IcyBufferedImage;
+import icy.type.DataType;
+import ome.xml.meta.OMEXMLMetadata;
+import plugins.kernel.importer.LociImporterPlugin;
+
+/**
+ * @author Daniel Felipe Gonzalez Obando
+ */
+public class CachedLargeSequenceTileProviderTest {
+
+	private static final int THREADS = 8;
+	private static final Dimension IMAGE_SIZE = new Dimension(100, 80);
+	private static final Dimension TILE_SIZE = new Dimension(32, 32);
+
+	/**
+	 * Importer counting the tiles it reads. Reads wait until they are released,
+	 * so that concurrent requests arrive while the tile is being read.
+	 */
+	private static class CountingImporter extends LociImporterPlugin {
+		private final AtomicInteger readCount = new AtomicInteger();
+		private final CountDownLatch readStarted = new CountDownLatch(1);
+		private final CountDownLatch readReleased = new CountDownLatch(1);
+
+		@Override
+		public OMEXMLMetadata getOMEXMLMetaData() throws UnsupportedFormatException, IOException {
+			try {
+				return LargeSequenceExporter.createMetadata(IMAGE_SIZE.width, IMAGE_SIZE.height, 1, DataType.USHORT);
+			} catch (LargeSequenceExporterException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public IcyBufferedImage getImage(int series, int resolution, Rectangle rectangle, int z, int t)
+				throws UnsupportedFormatException, IOException {
+			readCount.incrementAndGet();
+			readStarted.countDown();
+			try {
+				readReleased.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			return createTile(rectangle);
+		}
+	}
+
+	@Test
+	public void testConcurrentMissesReadTileOnce() throws Exception {
+		CountingImporter importer = new CountingImporter();
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try (CachedLargeSequenceTileProvider tileProvider = new CachedLargeSequenceTileProvider.Builder(importer)
+				.tileSize(TILE_SIZE).build()) {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<IcyBufferedImage>> results = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					return tileProvider.getTile(new Point(3, 2));
+				}));
+			}
+			start.countDown();
+			assertTrue(importer.readStarted.await(10, TimeUnit.SECONDS));
+			// Lets the other workers request the tile while it is being read.
+			Thread.sleep(100);
+			importer.readReleased.countDown();
+
+			IcyBufferedImage expectedTile = createTile(new Rectangle(96, 64, 4, 16));
+			List<IcyBufferedImage> tiles = new ArrayList<>();
+			for (Future<IcyBufferedImage> result: results) {
+				IcyBufferedImage tile = result.get(10, TimeUnit.SECONDS);
+				assertEquals(4, tile.getSizeX());
+				assertEquals(16, tile.getSizeY());
+				assertArrayEquals((short[]) expectedTile.getDataXY(0), (short[]) tile.getDataXY(0));
+				for (IcyBufferedImage otherTile: tiles) {
+					assertTrue("Workers must get their own copy of the tile", tile != otherTile);
+				}
+				tiles.add(tile);
+			}
+			assertEquals(1, importer.readCount.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static IcyBufferedImage createTile(Rectangle rectangle) {
+		IcyBufferedImage tile = new IcyBufferedImage(rectangle.width, rectangle.height, 1, DataType.USHORT);
+		short[] data = (short[]) tile.getDataXY(0);
+		for (int y = 0; y < rectangle.height; y++) {
+			for (int x = 0; x < rectangle.width; x++) {
+				data[y * rectangle.width + x] = (short) ((rectangle.x + x) * 257 + (rectangle.y + y) * 911);
+			}
+		}
+		tile.dataChanged();
+		return tile;
+	}
+}